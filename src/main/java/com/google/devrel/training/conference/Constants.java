@@ -14,5 +14,17 @@ public final    class Constants {
     public static final String API_EXPLORER_CLIENT_ID = Constant.API_EXPLORER_CLIENT_ID;
 
     public static final String MEMCACHE_ANNOUNCEMENTS_KEY = "RECENT_ANNOUNCEMENTS";
+    public static final String MEMCACHE_NEARLY_SOLD_OUT_KEY = "NEARLY_SOLD_OUT";
     public static final String MEMCACHE_FEATURED_SPEAKER_KEY = "FEATURED_SPEAKER";
+    public static final String MEMCACHE_FEATURED_SPEAKERS_PREFIX = "FEATURED_SPEAKERS_";
+    public static final String MEMCACHE_WAITLIST_PREFIX = "WAITLIST_";
+    public static final String MEMCACHE_ADMISSION_SEQUENCE_PREFIX = "ADMISSION_SEQUENCE_";
+    public static final String MEMCACHE_ADMISSION_HEAD_PREFIX = "ADMISSION_HEAD_";
+    public static final String MEMCACHE_CONFERENCE_QUERY_PREFIX = "CONFERENCE_QUERY_";
+    public static final String MEMCACHE_CONFERENCE_QUERY_GENERATION_KEY = "CONFERENCE_QUERY_GENERATION";
+    public static final String MEMCACHE_CONFERENCE_QUERY_PLAN_PREFIX = "CONFERENCE_QUERY_PLAN_";
+    public static final String MEMCACHE_SESSIONS_PREFIX = "SESSIONS_";
+    public static final String MEMCACHE_SESSIONS_VERSION_PREFIX = "SESSIONS_VERSION_";
+    public static final String MEMCACHE_SESSION_IMPORT_PREFIX = "SESSION_IMPORT_";
+    public static final String MEMCACHE_OUTBOX_LEASE_PREFIX = "OUTBOX_LEASE_";
 }
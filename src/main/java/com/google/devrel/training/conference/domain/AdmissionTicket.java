@@ -0,0 +1,183 @@
+package com.google.devrel.training.conference.domain;
+
+import java.util.Date;
+
+import com.google.api.server.spi.config.AnnotationBoolean;
+import com.google.api.server.spi.config.ApiResourceProperty;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Cache;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Ignore;
+import com.googlecode.objectify.annotation.Index;
+
+/**
+ * AdmissionTicket class stores the place of a user in the admission queue of a Conference.
+ *
+ * Tickets are root entities keyed by the conference and the user, so a user holds at most
+ * one place in the queue and enqueueing doesn't contend on any shared entity group.
+ * Tickets finding no seats left stay in the waitlist of the conference.
+ */
+@Cache
+@Entity
+public class AdmissionTicket {
+
+    public static enum Status {
+        WAITING,
+        WAITLISTED,
+        ADMITTED,
+        REJECTED
+    }
+
+    /**
+     * The name for the datastore key, built from the conference key and the user id.
+     */
+    @Id
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    private String id;
+
+    /**
+     * String representation of the Conference key.
+     */
+    @Index
+    private String websafeConferenceKey;
+
+    /**
+     * The userId of the user waiting for a seat.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    private String userId;
+
+    @Index
+    private Status status;
+
+    /**
+     * The arrival time, which orders the queue.
+     */
+    @Index
+    private Date requested;
+
+    /**
+     * The number the ticket drew when it entered the queue, which tells its position without
+     * counting the tickets ahead of it, see AdmissionService. Zero if there was none to draw.
+     */
+    @Index
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    private long sequence;
+
+    /**
+     * Why the ticket was admitted, waitlisted or rejected.
+     */
+    private String reason;
+
+    /**
+     * The place in the queue or the waitlist, counting from 1.
+     * Only set on waiting and waitlisted tickets returned by the API.
+     */
+    @Ignore
+    private Integer position;
+
+    public AdmissionTicket(final String websafeConferenceKey, final String userId,
+                           final long sequence) {
+        this.id = createId(websafeConferenceKey, userId);
+        this.websafeConferenceKey = websafeConferenceKey;
+        this.userId = userId;
+        requeue(sequence);
+    }
+
+    /**
+     * Returns the key of the ticket of a user for a conference.
+     *
+     * @param websafeConferenceKey String representation of Conference key.
+     * @param userId The userId of the user.
+     * @return the key of the ticket.
+     */
+    public static Key<AdmissionTicket> createKey(final String websafeConferenceKey,
+                                                 final String userId) {
+        return Key.create(AdmissionTicket.class, createId(websafeConferenceKey, userId));
+    }
+
+    private static String createId(final String websafeConferenceKey, final String userId) {
+        return websafeConferenceKey + ":" + userId;
+    }
+
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public String getId() {
+        return id;
+    }
+
+    public String getWebsafeConferenceKey() {
+        return websafeConferenceKey;
+    }
+
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public String getUserId() {
+        return userId;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * Returns a defensive copy of requested if not null.
+     * @return a defensive copy of requested if not null.
+     */
+    public Date getRequested() {
+        return requested == null ? null : new Date(requested.getTime());
+    }
+
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public long getSequence() {
+        return sequence;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    public Integer getPosition() {
+        return position;
+    }
+
+    public void setPosition(final Integer position) {
+        this.position = position;
+    }
+
+    /**
+     * Puts the ticket at the end of the queue.
+     *
+     * @param sequence The number drawn for the new place.
+     */
+    public void requeue(final long sequence) {
+        status = Status.WAITING;
+        requested = new Date();
+        this.sequence = sequence;
+        reason = null;
+    }
+
+    public void admit(final String reason) {
+        status = Status.ADMITTED;
+        this.reason = reason;
+        position = null;
+    }
+
+    /**
+     * Keeps the ticket in the waitlist, at its arrival time.
+     */
+    public void waitlist(final String reason) {
+        status = Status.WAITLISTED;
+        this.reason = reason;
+        position = null;
+    }
+
+    public void reject(final String reason) {
+        status = Status.REJECTED;
+        this.reason = reason;
+        position = null;
+    }
+
+    @SuppressWarnings("unused")
+    private AdmissionTicket() {}
+
+}
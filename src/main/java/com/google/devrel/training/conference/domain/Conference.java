@@ -12,9 +12,11 @@ import com.googlecode.objectify.Key;
 import com.googlecode.objectify.annotation.Cache;
 import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Ignore;
 import com.googlecode.objectify.annotation.Index;
 import com.googlecode.objectify.annotation.Parent;
 
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
@@ -62,6 +64,18 @@ public class Conference {
     @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
     private String organizerUserId;
 
+    /**
+     * The display name of the organizer, attached for responses. Not stored.
+     */
+    @Ignore
+    private String organizerDisplayName;
+
+    /**
+     * The seats available summed over the SeatShards, when attached for a response.
+     */
+    @Ignore
+    private Integer attachedSeatsAvailable;
+
     /**
      * Topics related to this conference.
      */
@@ -99,10 +113,21 @@ public class Conference {
 
     /**
      * Number of seats currently available.
+     *
+     * With sharded seats it keeps the count from when the seats were sharded, and the
+     * SeatShards hold the current one.
      */
     @Index
     private int seatsAvailable;
 
+    /**
+     * Number of SeatShards holding the seats of this conference.
+     *
+     * Zero means the seats are not sharded and seatsAvailable is the authoritative count.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    private int seatShards;
+
     public Conference(final long id, final String organizerUserId,
                       final ConferenceForm conferenceForm) {
         Preconditions.checkNotNull(conferenceForm.getName(), "The name is required");
@@ -142,16 +167,26 @@ public class Conference {
     /**
      * Returns organizer's display name.
      *
+     * The name is loaded on demand unless it was attached beforehand, which list responses
+     * do for all their conferences with a single batch get.
+     *
      * @return organizer's display name. If there is no Profile, return his/her userId.
      */
     public String getOrganizerDisplayName() {
-        // Profile organizer = ofy().load().key(Key.create(Profile.class, organizerUserId)).now();
-        Profile organizer = ofy().load().key(getProfileKey()).now();
-        if (organizer == null) {
-            return organizerUserId;
-        } else {
-            return organizer.getDisplayName();
+        if (organizerDisplayName == null) {
+            attachOrganizer(ofy().load().key(getProfileKey()).now());
         }
+        return organizerDisplayName;
+    }
+
+    /**
+     * Attaches the display name of the organizer, so getOrganizerDisplayName doesn't have to
+     * load the Profile.
+     *
+     * @param organizer The Profile of the organizer, null if there is none.
+     */
+    public void attachOrganizer(final Profile organizer) {
+        organizerDisplayName = organizer == null ? organizerUserId : organizer.getDisplayName();
     }
 
     /**
@@ -190,10 +225,35 @@ public class Conference {
         return maxAttendees;
     }
 
+    /**
+     * Returns the number of seats available.
+     *
+     * With sharded seats it is the sum attached by attachSeatsAvailable, or the snapshot if
+     * none was attached. SeatShardService.getSeatsAvailable reads the exact sum.
+     *
+     * @return the number of seats available.
+     */
     public int getSeatsAvailable() {
+        if (seatShards > 0 && attachedSeatsAvailable != null) {
+            return attachedSeatsAvailable;
+        }
         return seatsAvailable;
     }
 
+    /**
+     * Attaches the seats available summed over the SeatShards, for getSeatsAvailable.
+     *
+     * @param seatsAvailable The number of seats available.
+     */
+    public void attachSeatsAvailable(final int seatsAvailable) {
+        attachedSeatsAvailable = seatsAvailable;
+    }
+
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public int getSeatShards() {
+        return seatShards;
+    }
+
     /**
      * Updates the Conference with ConferenceForm.
      * This method is used upon object creation as well as updating existing Conferences.
@@ -218,6 +278,11 @@ public class Conference {
             // Calendar.MONTH is zero based, so adding 1.
             this.month = calendar.get(Calendar.MONTH) + 1;
         }
+        // The capacity is split across the shards, so it can't be changed afterwards.
+        if (seatShards > 0 && conferenceForm.getMaxAttendees() != maxAttendees) {
+            throw new IllegalArgumentException(
+                    "maxAttendees can't be changed once the seats are sharded.");
+        }
         // Check maxAttendees value against the number of already allocated seats.
         int seatsAllocated = maxAttendees - seatsAvailable;
         if (conferenceForm.getMaxAttendees() < seatsAllocated) {
@@ -230,18 +295,58 @@ public class Conference {
         this.seatsAvailable = this.maxAttendees - seatsAllocated;
     }
 
-    public void bookSeats(final int number) {
+    /**
+     * Splits the available seats of this conference into SeatShards.
+     * The returned shards have to be saved together with this conference.
+     *
+     * @param shards The number of shards to create.
+     * @return the shards just created.
+     */
+    public List<SeatShard> shardSeats(final int shards) {
+        Preconditions.checkState(seatShards == 0, "The seats are already sharded.");
+        Preconditions.checkArgument(shards > 0 && shards <= SeatShard.MAX_SHARDS,
+                "Invalid number of seat shards: %s", shards);
+        String websafeKey = getWebsafeKey();
+        List<SeatShard> result = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            // Spread the remainder over the first shards.
+            int capacity = maxAttendees / shards + (i < maxAttendees % shards ? 1 : 0);
+            int available = seatsAvailable / shards + (i < seatsAvailable % shards ? 1 : 0);
+            result.add(new SeatShard(websafeKey, i, capacity, available));
+        }
+        seatShards = shards;
+        return result;
+    }
+
+    /**
+     * Books seats of a conference whose seats are not sharded. This conference has to be
+     * saved afterwards. See SeatShardService.bookSeats.
+     *
+     * @param number The number of seats to book.
+     * @return the seats available afterwards.
+     */
+    public int bookSeats(final int number) {
+        Preconditions.checkState(seatShards == 0, "The seats are sharded.");
         if (seatsAvailable < number) {
             throw new IllegalArgumentException("There are no seats available.");
         }
         seatsAvailable = seatsAvailable - number;
+        return seatsAvailable;
     }
 
-    public void giveBackSeats(final int number) {
+    /**
+     * Gives back seats, see bookSeats.
+     *
+     * @param number The number of seats to give back.
+     * @return the seats available afterwards.
+     */
+    public int giveBackSeats(final int number) {
+        Preconditions.checkState(seatShards == 0, "The seats are sharded.");
         if (seatsAvailable + number > maxAttendees) {
             throw new IllegalArgumentException("The number of seats will exceeds the capacity.");
         }
         seatsAvailable = seatsAvailable + number;
+        return seatsAvailable;
     }
 
     @Override
@@ -0,0 +1,114 @@
+package com.google.devrel.training.conference.domain;
+
+import java.util.Date;
+
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
+
+/**
+ * DeadLetterEvent class keeps an OutboxEvent OutboxService gave up delivering, so the later
+ * events of its owner go on. It can be looked into and published again by hand.
+ */
+@Entity
+public class DeadLetterEvent {
+
+    @Id
+    private Long id;
+
+    /**
+     * String representation of the key of the owner of the event.
+     */
+    private String websafeOwnerKey;
+
+    /**
+     * The sequence number of the event among those of its owner.
+     */
+    private long sequence;
+
+    private OutboxEvent.Type type;
+
+    private String websafeSubjectKey;
+
+    private int before;
+
+    private int after;
+
+    /**
+     * The time the event was published, in milliseconds since the epoch.
+     */
+    private long created;
+
+    /**
+     * The number of attempts made.
+     */
+    private int attempts;
+
+    /**
+     * The error of the last attempt.
+     */
+    private String error;
+
+    @Index
+    private Date failed;
+
+    public DeadLetterEvent(final OutboxEvent event, final String error) {
+        this.websafeOwnerKey = event.getOwner().getString();
+        this.sequence = event.getSequence();
+        this.type = event.getType();
+        this.websafeSubjectKey = event.getWebsafeSubjectKey();
+        this.before = event.getBefore();
+        this.after = event.getAfter();
+        this.created = event.getCreated();
+        this.attempts = event.getAttempts();
+        this.error = error;
+        this.failed = new Date();
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public String getWebsafeOwnerKey() {
+        return websafeOwnerKey;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public OutboxEvent.Type getType() {
+        return type;
+    }
+
+    public String getWebsafeSubjectKey() {
+        return websafeSubjectKey;
+    }
+
+    public int getBefore() {
+        return before;
+    }
+
+    public int getAfter() {
+        return after;
+    }
+
+    public long getCreated() {
+        return created;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public Date getFailed() {
+        return failed == null ? null : new Date(failed.getTime());
+    }
+
+    @SuppressWarnings("unused")
+    private DeadLetterEvent() {}
+}
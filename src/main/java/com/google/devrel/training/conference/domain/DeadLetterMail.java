@@ -0,0 +1,78 @@
+package com.google.devrel.training.conference.domain;
+
+import java.util.Date;
+
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
+
+/**
+ * DeadLetterMail class keeps a mail MailService gave up sending, so it can be looked into
+ * and sent again by hand.
+ */
+@Entity
+public class DeadLetterMail {
+
+    @Id
+    private Long id;
+
+    private String to;
+
+    private String subject;
+
+    private String body;
+
+    /**
+     * The number of attempts made.
+     */
+    private int attempts;
+
+    /**
+     * The error of the last attempt.
+     */
+    private String error;
+
+    @Index
+    private Date failed;
+
+    public DeadLetterMail(final String to, final String subject, final String body,
+                          final int attempts, final String error) {
+        this.to = to;
+        this.subject = subject;
+        this.body = body;
+        this.attempts = attempts;
+        this.error = error;
+        this.failed = new Date();
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public String getTo() {
+        return to;
+    }
+
+    public String getSubject() {
+        return subject;
+    }
+
+    public String getBody() {
+        return body;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public Date getFailed() {
+        return failed == null ? null : new Date(failed.getTime());
+    }
+
+    @SuppressWarnings("unused")
+    private DeadLetterMail() {}
+}
@@ -0,0 +1,217 @@
+package com.google.devrel.training.conference.domain;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Time intervals sorted by start, each tagged with a key, for finding overlaps.
+ *
+ * The index works on three parallel lists owned by the caller, so an entity can store them
+ * as plain properties. Intervals are half-open: one ending when another starts doesn't
+ * overlap it.
+ *
+ * A binary search finds where an interval goes. The intervals before it start earlier, and
+ * the running maximum of their ends tells how far back one may still reach the new start,
+ * so only those are visited.
+ */
+public class IntervalIndex {
+
+    private final List<Long> starts;
+
+    private final List<Long> ends;
+
+    private final List<String> keys;
+
+    /**
+     * The running maximum of ends, rebuilt on demand after a change.
+     */
+    private long[] maxEnds;
+
+    /**
+     * Two overlapping intervals.
+     */
+    public static class Overlap {
+
+        private final String firstKey;
+
+        private final String secondKey;
+
+        private final long start;
+
+        private final long end;
+
+        Overlap(final String firstKey, final String secondKey, final long start,
+                final long end) {
+            this.firstKey = firstKey;
+            this.secondKey = secondKey;
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * Returns the key of the interval starting first.
+         * @return the key.
+         */
+        public String getFirstKey() {
+            return firstKey;
+        }
+
+        public String getSecondKey() {
+            return secondKey;
+        }
+
+        /**
+         * Returns the start of the time both intervals share.
+         * @return the start of the overlap.
+         */
+        public Date getStart() {
+            return new Date(start);
+        }
+
+        public Date getEnd() {
+            return new Date(end);
+        }
+    }
+
+    /**
+     * Wraps the parallel lists of an index, sorted by start.
+     *
+     * @param starts The starts of the intervals, in milliseconds.
+     * @param ends The ends of the intervals, in milliseconds.
+     * @param keys The keys of the intervals.
+     */
+    public IntervalIndex(final List<Long> starts, final List<Long> ends,
+                         final List<String> keys) {
+        this.starts = starts;
+        this.ends = ends;
+        this.keys = keys;
+    }
+
+    public int size() {
+        return keys.size();
+    }
+
+    /**
+     * Adds an interval.
+     *
+     * @param key The key of the interval.
+     * @param start The start, in milliseconds.
+     * @param end The end, in milliseconds, after start.
+     * @return the keys of the intervals overlapping the new one.
+     */
+    public List<String> add(final String key, final long start, final long end) {
+        List<String> overlapping = find(start, end);
+        int position = upperBound(start);
+        starts.add(position, start);
+        ends.add(position, end);
+        keys.add(position, key);
+        this.maxEnds = null;
+        return overlapping;
+    }
+
+    /**
+     * Finds the intervals overlapping an interval, without adding it.
+     *
+     * @param start The start, in milliseconds.
+     * @param end The end, in milliseconds, after start.
+     * @return the keys of the intervals overlapping it.
+     */
+    public List<String> find(final long start, final long end) {
+        int position = upperBound(start);
+        List<String> overlapping = new ArrayList<>();
+        // Intervals from the position on start after the new start.
+        for (int i = position; i < size() && starts.get(i) < end; i++) {
+            overlapping.add(keys.get(i));
+        }
+        // Earlier intervals overlap if they end after the new start.
+        long[] maxEnds = getMaxEnds();
+        for (int i = position - 1; i >= 0 && maxEnds[i] > start; i--) {
+            if (ends.get(i) > start) {
+                overlapping.add(keys.get(i));
+            }
+        }
+        return overlapping;
+    }
+
+    /**
+     * Removes the interval with a key, if any.
+     *
+     * @param key The key of the interval.
+     * @return true if the index had an interval with this key.
+     */
+    public boolean remove(final String key) {
+        int i = keys.indexOf(key);
+        if (i < 0) {
+            return false;
+        }
+        starts.remove(i);
+        ends.remove(i);
+        keys.remove(i);
+        maxEnds = null;
+        return true;
+    }
+
+    /**
+     * Returns every pair of overlapping intervals, sweeping the index once.
+     *
+     * @return the overlaps, sorted by the start of the interval starting second.
+     */
+    public List<Overlap> getOverlaps() {
+        List<Overlap> overlaps = new ArrayList<>();
+        // The intervals started so far which haven't ended, earliest end first.
+        PriorityQueue<Integer> open = new PriorityQueue<>(Math.max(1, size()),
+                new Comparator<Integer>() {
+                    @Override
+                    public int compare(Integer a, Integer b) {
+                        return ends.get(a).compareTo(ends.get(b));
+                    }
+                });
+        for (int i = 0; i < size(); i++) {
+            long start = starts.get(i);
+            while (!open.isEmpty() && ends.get(open.peek()) <= start) {
+                open.poll();
+            }
+            List<Integer> earlier = new ArrayList<>(open);
+            Collections.sort(earlier);
+            for (int j : earlier) {
+                overlaps.add(new Overlap(keys.get(j), keys.get(i), start,
+                        Math.min(ends.get(j), ends.get(i))));
+            }
+            open.add(i);
+        }
+        return overlaps;
+    }
+
+    /**
+     * Returns the position after the last interval starting at or before start.
+     */
+    private int upperBound(final long start) {
+        int low = 0;
+        int high = size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (starts.get(middle) <= start) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private long[] getMaxEnds() {
+        if (maxEnds == null) {
+            maxEnds = new long[size()];
+            long max = Long.MIN_VALUE;
+            for (int i = 0; i < size(); i++) {
+                max = Math.max(max, ends.get(i));
+                maxEnds[i] = max;
+            }
+        }
+        return maxEnds;
+    }
+}
@@ -0,0 +1,361 @@
+package com.google.devrel.training.conference.domain;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.googlecode.objectify.Key;
+
+/**
+ * A sorted set of datastore keys of one kind with numeric ids, encoded compactly in a blob.
+ *
+ * Keys are sorted by parent, then by id. Parents are ordered by when the set first saw them
+ * and held once each, decoded. The blob holds each parent once, followed by the number of
+ * its keys and their ids, as varints of the difference to the previous id. A key takes a few
+ * bytes instead of the 50 to 90 characters of its websafe string.
+ *
+ * Membership decodes the websafe key, through a cache shared by all sets, finds its parent
+ * in a hash map and binary searches integers; it never encodes a key. Keys are handed out as websafe strings through a
+ * read-only view, which builds each string on demand instead of copying the set.
+ */
+public class KeySet<T> {
+
+    private static final byte VERSION = 1;
+
+    /**
+     * The keys decoded lately, by websafe string. Clients ask about the same sessions and
+     * conferences over and over, and decoding costs more than the lookup.
+     */
+    private static final Cache<String, Key<?>> DECODED = CacheBuilder.newBuilder()
+            .maximumSize(10000)
+            .build();
+
+    private final Class<T> kind;
+
+    private final String kindName;
+
+    /**
+     * The rank of the parent of each key, its index in parents.
+     */
+    private int[] ranks;
+
+    private long[] ids;
+
+    private int size;
+
+    /**
+     * The parents the set has seen, null for root keys, and the rank of each.
+     */
+    private final List<Key<?>> parents = new ArrayList<>();
+
+    private final Map<Key<?>, Integer> parentRanks = new HashMap<>();
+
+    /**
+     * The websafe string of each parent, encoded once, "" for root keys.
+     */
+    private final List<String> websafeParents = new ArrayList<>();
+
+    private final List<String> view = new AbstractList<String>() {
+        @Override
+        public String get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+            }
+            return toWebsafeKey(parents.get(ranks[index]), ids[index]);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return o instanceof String && KeySet.this.contains((String) o);
+        }
+    };
+
+    /**
+     * Creates an empty set.
+     *
+     * @param kind The kind of the keys.
+     */
+    public KeySet(final Class<T> kind) {
+        this.kind = kind;
+        this.kindName = Key.getKind(kind);
+        this.ranks = new int[4];
+        this.ids = new long[4];
+    }
+
+    /**
+     * Decodes a set from its blob.
+     *
+     * @param kind The kind of the keys.
+     * @param blob The blob from encode, null for an empty set.
+     * @return the set.
+     * @throws IllegalArgumentException If the blob can't be decoded.
+     */
+    public static <T> KeySet<T> decode(final Class<T> kind, final byte[] blob) {
+        KeySet<T> set = new KeySet<>(kind);
+        if (blob == null || blob.length == 0) {
+            return set;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(blob));
+            if (in.readByte() != VERSION) {
+                throw new IllegalArgumentException("Unknown key set version.");
+            }
+            int parentCount = readVarint(in);
+            for (int p = 0; p < parentCount; p++) {
+                String websafeParent = in.readUTF();
+                int rank = set.rankOf(websafeParent.isEmpty() ? null
+                        : Key.create(websafeParent), websafeParent);
+                int count = readVarint(in);
+                long id = 0;
+                for (int i = 0; i < count; i++) {
+                    id += readVarlong(in);
+                    set.insert(set.size, rank, id);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid key set.", e);
+        }
+        return set;
+    }
+
+    /**
+     * Encodes the set.
+     *
+     * @return the blob, empty for an empty set.
+     */
+    public byte[] encode() {
+        if (size == 0) {
+            return new byte[0];
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(VERSION);
+            int parentCount = 0;
+            for (int i = 0; i < size; i++) {
+                if (i == 0 || ranks[i] != ranks[i - 1]) {
+                    parentCount++;
+                }
+            }
+            writeVarint(out, parentCount);
+            int start = 0;
+            while (start < size) {
+                int end = start;
+                while (end < size && ranks[end] == ranks[start]) {
+                    end++;
+                }
+                out.writeUTF(websafeParent(ranks[start]));
+                writeVarint(out, end - start);
+                long previous = 0;
+                for (int i = start; i < end; i++) {
+                    writeVarint(out, ids[i] - previous);
+                    previous = ids[i];
+                }
+                start = end;
+            }
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            // Writing to a byte array doesn't fail.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Checks if the set holds a key.
+     *
+     * @param websafeKey The websafe key.
+     * @return false if the set doesn't hold it or it isn't a valid key of this kind.
+     */
+    public boolean contains(final String websafeKey) {
+        Key<T> key = parse(websafeKey);
+        if (key == null) {
+            return false;
+        }
+        Integer rank = parentRanks.get(key.getParent());
+        return rank != null && indexOf(rank, key.getId()) >= 0;
+    }
+
+    /**
+     * Adds a key.
+     *
+     * @param websafeKey The websafe key.
+     * @return true if the set didn't hold it already.
+     * @throws IllegalArgumentException If it isn't a valid key of this kind.
+     */
+    public boolean add(final String websafeKey) {
+        Key<T> key = parse(websafeKey);
+        if (key == null) {
+            throw new IllegalArgumentException("Not a key of kind "
+                    + kindName + " with a numeric id: " + websafeKey);
+        }
+        int rank = rankOf(key.getParent(), null);
+        int index = indexOf(rank, key.getId());
+        if (index >= 0) {
+            return false;
+        }
+        insert(-index - 1, rank, key.getId());
+        return true;
+    }
+
+    /**
+     * Removes a key.
+     *
+     * @param websafeKey The websafe key.
+     * @return true if the set held it.
+     */
+    public boolean remove(final String websafeKey) {
+        Key<T> key = parse(websafeKey);
+        Integer rank = key == null ? null : parentRanks.get(key.getParent());
+        int index = rank == null ? -1 : indexOf(rank, key.getId());
+        if (index < 0) {
+            return false;
+        }
+        System.arraycopy(ranks, index + 1, ranks, index, size - index - 1);
+        System.arraycopy(ids, index + 1, ids, index, size - index - 1);
+        size--;
+        return true;
+    }
+
+    /**
+     * Returns a read-only view of the keys, sorted by parent and id, as websafe strings.
+     * The view follows later changes to the set, and its contains is a binary search.
+     *
+     * @return the view.
+     */
+    public List<String> asList() {
+        return view;
+    }
+
+    /**
+     * Binary search on parent rank, then id.
+     *
+     * @return the index of the key, or -(insertion point) - 1 if the set doesn't hold it.
+     */
+    private int indexOf(final int rank, final long id) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int c = Integer.compare(ranks[middle], rank);
+            if (c == 0) {
+                c = Long.compare(ids[middle], id);
+            }
+            if (c < 0) {
+                low = middle + 1;
+            } else if (c > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -(low + 1);
+    }
+
+    private void insert(final int index, final int rank, final long id) {
+        if (size == ids.length) {
+            ranks = Arrays.copyOf(ranks, size * 2);
+            ids = Arrays.copyOf(ids, size * 2);
+        }
+        System.arraycopy(ranks, index, ranks, index + 1, size - index);
+        System.arraycopy(ids, index, ids, index + 1, size - index);
+        ranks[index] = rank;
+        ids[index] = id;
+        size++;
+    }
+
+    /**
+     * Returns the rank of a parent, giving the next one to a parent the set hasn't seen.
+     *
+     * @param websafeParent Its websafe string if known, null to encode it when needed.
+     */
+    private int rankOf(final Key<?> parent, final String websafeParent) {
+        Integer rank = parentRanks.get(parent);
+        if (rank == null) {
+            rank = parents.size();
+            parents.add(parent);
+            parentRanks.put(parent, rank);
+            websafeParents.add(parent == null ? "" : websafeParent);
+        }
+        return rank;
+    }
+
+    private String websafeParent(final int rank) {
+        String websafeParent = websafeParents.get(rank);
+        if (websafeParent == null) {
+            websafeParent = parents.get(rank).getString();
+            websafeParents.set(rank, websafeParent);
+        }
+        return websafeParent;
+    }
+
+    /**
+     * Parses a websafe key of this kind with a numeric id.
+     *
+     * @return the key, or null if it isn't one.
+     */
+    @SuppressWarnings("unchecked")
+    private Key<T> parse(final String websafeKey) {
+        Key<T> key = (Key<T>) DECODED.getIfPresent(websafeKey);
+        if (key == null) {
+            try {
+                key = Key.create(websafeKey);
+            } catch (RuntimeException e) {
+                return null;
+            }
+            DECODED.put(websafeKey, key);
+        }
+        if (!key.getKind().equals(kindName) || key.getName() != null) {
+            return null;
+        }
+        return key;
+    }
+
+    private String toWebsafeKey(final Key<?> parent, final long id) {
+        return parent == null ? Key.create(kind, id).getString()
+                : Key.create(parent, kind, id).getString();
+    }
+
+    private static void writeVarint(final DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static int readVarint(final DataInputStream in) throws IOException {
+        return (int) readVarlong(in);
+    }
+
+    private static long readVarlong(final DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint.");
+    }
+}
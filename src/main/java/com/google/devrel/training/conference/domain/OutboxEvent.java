@@ -0,0 +1,140 @@
+package com.google.devrel.training.conference.domain;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Parent;
+
+/**
+ * OutboxEvent class stores a domain event until OutboxService delivers it to its handlers.
+ *
+ * An event is a child of the entity whose change it tells, its owner, and is written in the
+ * transaction of the change. Its id is the sequence number of the event among those of the
+ * owner, see OutboxHead, so the events of an owner are delivered in key order.
+ */
+@Entity
+public class OutboxEvent {
+
+    public enum Type {
+        /**
+         * A conference was created. The owner and the subject are the Conference.
+         */
+        CONFERENCE_CREATED,
+        /**
+         * A session was created. The owner is the parent of the sessions of the conference,
+         * the subject is the Session.
+         */
+        SESSION_CREATED,
+        /**
+         * The seats available of a conference left or reached the nearly sold out range. The
+         * owner is the Registration of the change, the subject is the Conference, before and
+         * after are the seats available, after possibly an estimate.
+         */
+        SEATS_CHANGED,
+        /**
+         * Sessions of an import were saved, and their speakers are still to be counted in
+         * all conferences. The owner is the parent of the sessions of the conference, the
+         * subject is the first Session of the import, before is the number of sessions of
+         * the import, whose ids follow the one of the subject, and the subject ids are the
+         * ids of the sessions to count.
+         */
+        SESSIONS_IMPORTED
+    }
+
+    @Parent
+    private Key<?> owner;
+
+    @Id
+    private Long sequence;
+
+    private Type type;
+
+    /**
+     * String representation of the key of the entity the event is about.
+     */
+    private String websafeSubjectKey;
+
+    private int before;
+
+    private int after;
+
+    /**
+     * The ids of the entities the event is about, for events about many, see Type.
+     */
+    private List<Long> subjectIds = new ArrayList<>();
+
+    /**
+     * The time the event was published, in milliseconds since the epoch.
+     */
+    private long created;
+
+    /**
+     * The number of failed deliveries.
+     */
+    private int attempts;
+
+    public OutboxEvent(final Key<?> owner, final long sequence, final Type type,
+                       final String websafeSubjectKey, final int before, final int after,
+                       final List<Long> subjectIds) {
+        this.owner = owner;
+        this.sequence = sequence;
+        this.type = type;
+        this.websafeSubjectKey = websafeSubjectKey;
+        this.before = before;
+        this.after = after;
+        this.subjectIds = new ArrayList<>(subjectIds);
+        this.created = System.currentTimeMillis();
+    }
+
+    public Key<?> getOwner() {
+        return owner;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getWebsafeSubjectKey() {
+        return websafeSubjectKey;
+    }
+
+    public int getBefore() {
+        return before;
+    }
+
+    public int getAfter() {
+        return after;
+    }
+
+    public List<Long> getSubjectIds() {
+        return subjectIds == null ? Collections.<Long>emptyList()
+                : Collections.unmodifiableList(subjectIds);
+    }
+
+    public long getCreated() {
+        return created;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * Counts a failed delivery.
+     * @return The number of failed deliveries.
+     */
+    public int fail() {
+        return ++attempts;
+    }
+
+    @SuppressWarnings("unused")
+    private OutboxEvent() {}
+}
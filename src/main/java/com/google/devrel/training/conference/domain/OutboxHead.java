@@ -0,0 +1,60 @@
+package com.google.devrel.training.conference.domain;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Parent;
+
+/**
+ * OutboxHead class numbers the OutboxEvents of an owner.
+ *
+ * It lives next to the events, in the entity group of the owner, so numbering an event
+ * doesn't add a group to the transaction of the change. It outlives the delivered events,
+ * so sequence numbers are never reused.
+ */
+@Entity
+public class OutboxHead {
+
+    private static final long ID = 1;
+
+    @Parent
+    private Key<?> owner;
+
+    @Id
+    private Long id = ID;
+
+    /**
+     * The sequence number of the latest event of the owner.
+     */
+    private long lastSequence;
+
+    public OutboxHead(final Key<?> owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * Returns the key of the head of an owner.
+     *
+     * @param owner The key of the owner.
+     * @return the key of its head.
+     */
+    public static Key<OutboxHead> createKey(final Key<?> owner) {
+        return Key.create(owner, OutboxHead.class, ID);
+    }
+
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * Takes the sequence number of the next event.
+     *
+     * @return the sequence number.
+     */
+    public long next() {
+        return ++lastSequence;
+    }
+
+    @SuppressWarnings("unused")
+    private OutboxHead() {}
+}
@@ -1,25 +1,61 @@
 package com.google.devrel.training.conference.domain;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.logging.Logger;
 
-import com.google.common.collect.ImmutableList;
+import com.google.api.server.spi.config.AnnotationBoolean;
+import com.google.api.server.spi.config.ApiResourceProperty;
 
 import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.googlecode.objectify.annotation.AlsoLoad;
 import com.googlecode.objectify.annotation.Cache;
 import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Ignore;
+import com.googlecode.objectify.annotation.OnSave;
 
 @Cache
 @Entity
 public class Profile {
+	private static final Logger LOG = Logger.getLogger(Profile.class.getName());
+
 	private String displayName;
 	private String mainEmail;
 	private TeeShirtSize teeShirtSize;
-	private List<String> conferencesKeysToAttend = new ArrayList<>(0);
-	private List<String> sessionsKeysWishlist = new ArrayList<>(0);
+
+	/**
+	 * The conferences to attend and the wishlist sessions, each a KeySet encoded in an
+	 * unindexed blob. Profiles saved before held them as lists of websafe keys, which
+	 * are read into the sets on load, see importConferencesKeysToAttend.
+	 */
+	private byte[] conferencesToAttend;
+	private byte[] sessionsWishlist;
+
+	/**
+	 * The decoded sets, built on first use. Volatile, as ProfileCache hands the same
+	 * Profile to concurrent requests.
+	 */
+	@Ignore private volatile KeySet<Conference> conferencesToAttendSet;
+	@Ignore private volatile KeySet<Session> sessionsWishlistSet;
+
+	/**
+	 * The interval index of the wishlist sessions with a start time and a duration,
+	 * see IntervalIndex. Profiles saved before it was built have wishlistIndexed false.
+	 */
+	private List<Long> wishlistStarts = new ArrayList<>(0);
+	private List<Long> wishlistEnds = new ArrayList<>(0);
+	private List<String> wishlistIndexKeys = new ArrayList<>(0);
+	private boolean wishlistIndexed;
 
 	@Id private String userId;
+
+	/**
+	 * Bumped on every save, so caches can tell an older copy of the profile, see
+	 * ProfileCache.
+	 */
+	private long version;
     
     /**
      * Public constructor for Profile.
@@ -34,6 +70,7 @@ public class Profile {
     	this.displayName = displayName;
     	this.mainEmail = mainEmail;
     	this.teeShirtSize = teeShirtSize;
+    	this.wishlistIndexed = true;
     }
     	
     public void update(String displayName, TeeShirtSize teeShirtSize) {
@@ -43,12 +80,18 @@ public class Profile {
 	        this.teeShirtSize = teeShirtSize;
 	}
     
+    /**
+     * Returns a read-only view of the conferences to attend, grouped by organizer and
+     * sorted by id. Its contains is a binary search.
+     * @return The websafe keys of the conferences.
+     */
     public List<String> getConferenceKeysToAttend() {
-        return ImmutableList.copyOf(conferencesKeysToAttend);
+        return conferencesToAttendSet().asList();
     }
 	
     public void addToConferenceKeysToAttend(String key) {
-        conferencesKeysToAttend.add(key);
+        conferencesToAttendSet().add(key);
+        conferencesToAttend = conferencesToAttendSet.encode();
     }
 	
     /**
@@ -56,28 +99,86 @@ public class Profile {
      * @param key Conference key
      */
     public void unregisterFromConference(String key) {
-        if (conferencesKeysToAttend.contains(key)) {
-            conferencesKeysToAttend.remove(key);
+        if (conferencesToAttendSet().remove(key)) {
+            conferencesToAttend = conferencesToAttendSet.encode();
         } else {
             throw new IllegalArgumentException("Conference key not found: " + key);
         }
     }
     
+    /**
+     * Returns a read-only view of the wishlist, grouped by conference and sorted by id.
+     * Its contains is a binary search.
+     * @return The websafe keys of the sessions.
+     */
     public List<String> getSessionKeysWishlist() {
-        return ImmutableList.copyOf(sessionsKeysWishlist);
+        return sessionsWishlistSet().asList();
     }
     
     public void addToSessionKeysWishlist(String key) {
-        sessionsKeysWishlist.add(key);
+        sessionsWishlistSet().add(key);
+        sessionsWishlist = sessionsWishlistSet.encode();
+    }
+    
+    /**
+     * Adds a session to the wishlist and to its interval index.
+     * @param session The session.
+     * @return The websafe keys of the wishlist sessions overlapping it.
+     */
+    public List<String> addToSessionKeysWishlist(Session session) {
+        addToSessionKeysWishlist(session.getWebsafeKey());
+        if (!wishlistIndexed || session.endTime() == null) {
+            return new ArrayList<>(0);
+        }
+        return getWishlistIndex().add(session.getWebsafeKey(),
+                session.startTime().getTime(), session.endTime().getTime());
     }
     
     public void deleteSessionInWishlist(String key) {
-        if (sessionsKeysWishlist.contains(key)) {
-            sessionsKeysWishlist.remove(key);
+        if (sessionsWishlistSet().remove(key)) {
+            sessionsWishlist = sessionsWishlistSet.encode();
+            getWishlistIndex().remove(key);
         } else {
             throw new IllegalArgumentException("Session key not found: " + key);
         }
     }
+    
+    /**
+     * Checks if the interval index covers the wishlist.
+     * @return false for profiles saved before the index existed.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public boolean isWishlistIndexed() {
+        return wishlistIndexed;
+    }
+    
+    /**
+     * Builds the interval index of the wishlist.
+     * @param sessions The sessions of the wishlist.
+     */
+    public void indexWishlist(Collection<Session> sessions) {
+        wishlistStarts.clear();
+        wishlistEnds.clear();
+        wishlistIndexKeys.clear();
+        wishlistIndexed = true;
+        IntervalIndex index = getWishlistIndex();
+        for (Session session : sessions) {
+            if (session.endTime() != null
+                    && sessionsWishlistSet().contains(session.getWebsafeKey())) {
+                index.add(session.getWebsafeKey(), session.startTime().getTime(),
+                        session.endTime().getTime());
+            }
+        }
+    }
+    
+    /**
+     * Returns the interval index of the wishlist. Changes to the index change the profile.
+     * @return The index, empty if not built.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public IntervalIndex getWishlistIndex() {
+        return new IntervalIndex(wishlistStarts, wishlistEnds, wishlistIndexKeys);
+    }
 	
     public String getDisplayName() {
         return displayName;
@@ -94,6 +195,75 @@ public class Profile {
     public String getUserId() {
         return userId;
     }
+    
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public long getVersion() {
+        return version;
+    }
+    
+    /**
+     * Returns a rough size of the profile in memory, in bytes.
+     * @return The size.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public int getApproximateSize() {
+        // The decoded sets hold a long and a shared parent per key; the index three values.
+        return 256 + 16 * (conferencesToAttendSet().size() + sessionsWishlistSet().size())
+                + 64 * wishlistIndexKeys.size();
+    }
+    
+    private KeySet<Conference> conferencesToAttendSet() {
+        KeySet<Conference> set = conferencesToAttendSet;
+        if (set == null) {
+            set = KeySet.decode(Conference.class, conferencesToAttend);
+            conferencesToAttendSet = set;
+        }
+        return set;
+    }
+    
+    private KeySet<Session> sessionsWishlistSet() {
+        KeySet<Session> set = sessionsWishlistSet;
+        if (set == null) {
+            set = KeySet.decode(Session.class, sessionsWishlist);
+            sessionsWishlistSet = set;
+        }
+        return set;
+    }
+    
+    /**
+     * Reads the list of conferences to attend of profiles saved before the KeySet.
+     */
+    @SuppressWarnings("unused")
+    private void importConferencesKeysToAttend(
+            @AlsoLoad("conferencesKeysToAttend") List<String> keys) {
+        for (String key : keys) {
+            try {
+                addToConferenceKeysToAttend(key);
+            } catch (IllegalArgumentException e) {
+                LOG.warning("Dropped invalid key from the conferences to attend of " + userId + ": " + key);
+            }
+        }
+    }
+    
+    /**
+     * Reads the wishlist of profiles saved before the KeySet.
+     */
+    @SuppressWarnings("unused")
+    private void importSessionsKeysWishlist(
+            @AlsoLoad("sessionsKeysWishlist") List<String> keys) {
+        for (String key : keys) {
+            try {
+                addToSessionKeysWishlist(key);
+            } catch (IllegalArgumentException e) {
+                LOG.warning("Dropped invalid key from the wishlist of " + userId + ": " + key);
+            }
+        }
+    }
+	
+    @OnSave
+    private void bumpVersion() {
+        version++;
+    }
 	
 	@SuppressWarnings("unused")
     private Profile() {}
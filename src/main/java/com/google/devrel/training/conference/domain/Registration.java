@@ -0,0 +1,118 @@
+package com.google.devrel.training.conference.domain;
+
+import java.util.Date;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Cache;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
+
+/**
+ * Registration class is the ledger entry of a user attending a Conference.
+ *
+ * A registration is a root entity keyed by the conference and the user, so registering
+ * writes neither the Profile of the user nor the entity group of the Conference.
+ *
+ * This only moves where registrations are stored. Registering is still a cross-group
+ * transaction: it writes the group of the Registration, books the seat on a SeatShard, or
+ * on the Conference if its seats are not sharded, and reads the Conference. The contention
+ * between registrations is taken off by the shards, not by the Registration; as a child of
+ * the Conference it would bring back the writes to the conference group the shards avoid.
+ * Cancelled registrations are kept with active set to false, so the Profile projection
+ * can tell a cancellation from a registration made before the ledger existed.
+ */
+@Cache
+@Entity
+public class Registration {
+
+    /**
+     * The name for the datastore key, built from the conference key and the user id.
+     */
+    @Id
+    private String id;
+
+    /**
+     * The userId of the attendee.
+     */
+    @Index
+    private String userId;
+
+    /**
+     * String representation of the Conference key.
+     */
+    @Index
+    private String websafeConferenceKey;
+
+    /**
+     * Whether the user currently holds a seat.
+     */
+    @Index
+    private boolean active;
+
+    /**
+     * The time of the last registration or cancellation.
+     */
+    private Date updated;
+
+    public Registration(final String websafeConferenceKey, final String userId) {
+        this.id = createId(websafeConferenceKey, userId);
+        this.websafeConferenceKey = websafeConferenceKey;
+        this.userId = userId;
+        activate();
+    }
+
+    /**
+     * Returns the key of the registration of a user for a conference.
+     *
+     * @param websafeConferenceKey String representation of Conference key.
+     * @param userId The userId of the attendee.
+     * @return the key of the registration.
+     */
+    public static Key<Registration> createKey(final String websafeConferenceKey,
+                                              final String userId) {
+        return Key.create(Registration.class, createId(websafeConferenceKey, userId));
+    }
+
+    private static String createId(final String websafeConferenceKey, final String userId) {
+        return websafeConferenceKey + ":" + userId;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public String getWebsafeConferenceKey() {
+        return websafeConferenceKey;
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
+    /**
+     * Returns a defensive copy of updated if not null.
+     * @return a defensive copy of updated if not null.
+     */
+    public Date getUpdated() {
+        return updated == null ? null : new Date(updated.getTime());
+    }
+
+    public void activate() {
+        active = true;
+        updated = new Date();
+    }
+
+    public void cancel() {
+        active = false;
+        updated = new Date();
+    }
+
+    @SuppressWarnings("unused")
+    private Registration() {}
+
+}
@@ -0,0 +1,88 @@
+package com.google.devrel.training.conference.domain;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Cache;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Parent;
+
+/**
+ * RoomTimeline class stores the bookings of a location of a conference: the start and end
+ * times of its sessions, sorted by start, see IntervalIndex.
+ *
+ * Timelines have the conference, without its organizer, as their parent, like the sessions,
+ * so createSession updates them in its transaction. Each location has its own timeline, so
+ * a booking reads the sessions of a single room.
+ */
+@Cache
+@Entity
+public class RoomTimeline {
+
+    @Parent
+    private Key<Conference> conferenceKey;
+
+    /**
+     * The location, normalized by normalizeLocation.
+     */
+    @Id
+    private String id;
+
+    /**
+     * The location as first given.
+     */
+    private String location;
+
+    private List<Long> starts = new ArrayList<>(0);
+
+    private List<Long> ends = new ArrayList<>(0);
+
+    private List<String> sessionKeys = new ArrayList<>(0);
+
+    public RoomTimeline(final long conferenceId, final String location) {
+        this.conferenceKey = Key.create(Conference.class, conferenceId);
+        this.id = normalizeLocation(location);
+        this.location = location;
+    }
+
+    /**
+     * Returns the key of the timeline of a location.
+     *
+     * @param conferenceId The id of the conference.
+     * @param location The location, as given in the sessions.
+     * @return the key of the timeline.
+     */
+    public static Key<RoomTimeline> createKey(final long conferenceId, final String location) {
+        return Key.create(Key.create(Conference.class, conferenceId), RoomTimeline.class,
+                normalizeLocation(location));
+    }
+
+    /**
+     * Normalizes a location, so "Room 1" and " room  1" share a timeline.
+     *
+     * @param location The location.
+     * @return the location trimmed, lower case, with single spaces.
+     */
+    public static String normalizeLocation(final String location) {
+        return location.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ENGLISH);
+    }
+
+    public String getLocation() {
+        return location;
+    }
+
+    /**
+     * Returns the bookings. Changes to the index change the timeline.
+     *
+     * @return the bookings, keyed by the websafe keys of the sessions.
+     */
+    public IntervalIndex getIndex() {
+        return new IntervalIndex(starts, ends, sessionKeys);
+    }
+
+    @SuppressWarnings("unused")
+    private RoomTimeline() {}
+}
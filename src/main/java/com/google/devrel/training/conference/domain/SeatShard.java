@@ -0,0 +1,105 @@
+package com.google.devrel.training.conference.domain;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Cache;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
+
+/**
+ * SeatShard class stores a part of the seats of a Conference.
+ *
+ * Each shard is a root entity, so bookings on different shards don't compete for the
+ * entity group of the Conference.
+ */
+@Cache
+@Entity
+public class SeatShard {
+
+    /**
+     * The upper bound of shards per conference. A conference is created in the same
+     * transaction as its shards, and a transaction can touch at most 25 entity groups.
+     */
+    public static final int MAX_SHARDS = 20;
+
+    /**
+     * The name for the datastore key, built from the conference key and the shard index.
+     */
+    @Id
+    private String id;
+
+    /**
+     * The number of seats this shard holds.
+     */
+    private int capacity;
+
+    /**
+     * Number of seats of this shard currently available. Indexed, so the repair of the nearly
+     * sold out conferences can find the shards running low, see NearlySoldOutService.
+     */
+    @Index
+    private int seatsAvailable;
+
+    public SeatShard(final String websafeConferenceKey, final int index,
+                     final int capacity, final int seatsAvailable) {
+        this.id = createId(websafeConferenceKey, index);
+        this.capacity = capacity;
+        this.seatsAvailable = seatsAvailable;
+    }
+
+    /**
+     * Returns the key of the shard with the given index.
+     *
+     * @param websafeConferenceKey String representation of Conference key.
+     * @param index The index of the shard.
+     * @return the key of the shard.
+     */
+    public static Key<SeatShard> createKey(final String websafeConferenceKey, final int index) {
+        return Key.create(SeatShard.class, createId(websafeConferenceKey, index));
+    }
+
+    private static String createId(final String websafeConferenceKey, final int index) {
+        return websafeConferenceKey + ":" + index;
+    }
+
+    /**
+     * Returns the conference of a shard from its key.
+     *
+     * @param key The key of the shard.
+     * @return String representation of the Conference key.
+     */
+    public static String getWebsafeConferenceKey(final Key<SeatShard> key) {
+        String id = key.getName();
+        return id.substring(0, id.lastIndexOf(':'));
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getSeatsAvailable() {
+        return seatsAvailable;
+    }
+
+    public void bookSeats(final int number) {
+        if (seatsAvailable < number) {
+            throw new IllegalArgumentException("There are no seats available.");
+        }
+        seatsAvailable = seatsAvailable - number;
+    }
+
+    public void giveBackSeats(final int number) {
+        if (seatsAvailable + number > capacity) {
+            throw new IllegalArgumentException("The number of seats will exceeds the capacity.");
+        }
+        seatsAvailable = seatsAvailable + number;
+    }
+
+    @SuppressWarnings("unused")
+    private SeatShard() {}
+
+}
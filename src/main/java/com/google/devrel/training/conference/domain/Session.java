@@ -1,13 +1,19 @@
 package com.google.devrel.training.conference.domain;
 
+import java.io.Serializable;
 import java.util.Date;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import com.google.api.server.spi.config.AnnotationBoolean;
 import com.google.api.server.spi.config.ApiResourceProperty;
 import com.google.appengine.repackaged.com.google.api.client.util.Preconditions;
 import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.AlsoLoad;
+import com.googlecode.objectify.annotation.Cache;
 import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Ignore;
 import com.googlecode.objectify.annotation.Index;
 import com.googlecode.objectify.annotation.Parent;
 import com.google.devrel.training.conference.form.SessionForm;
@@ -15,9 +21,25 @@ import com.google.devrel.training.conference.form.SessionForm;
 /**
  * A session class stores information about a single session.
  * Each session has a Conference as a parent in the datastore.
+ * Sessions are serializable, so the sessions of a conference can be cached together.
  */
+@Cache
 @Entity
-public class Session {
+public class Session implements Serializable {
+
+    private static final long serialVersionUID = 2L;
+
+    /**
+     * The location of sessions created without one.
+     */
+    public static final String DEFAULT_LOCATION = "DEFAULT LOC";
+
+    /**
+     * Durations like "1h30m", "2 hours", "45min" or "90", which counts minutes.
+     */
+    private static final Pattern DURATION = Pattern.compile(
+            "(?:(\\d+)\\s*h(?:ours?|rs?)?)?\\s*(?:(\\d+)\\s*(?:m(?:in(?:ute)?s?)?)?)?",
+            Pattern.CASE_INSENSITIVE);
     
     /**
      * The id for datastore key.
@@ -36,10 +58,26 @@ public class Session {
     private long conferenceId;
     
     @Index private String speaker;
-    private Date startTime;
-    private String duration;
+    @Index private Date startTime;
+
+    /**
+     * The duration in minutes, null if not given.
+     */
+    @Index private Integer durationMinutes;
+
     @Index private SessionType type;
     private String location;
+
+    /**
+     * Whether the session was loaded in the shape stored before durationMinutes, and must be
+     * saved again to be found by the indexed queries. See SessionMigrationService.
+     */
+    @Ignore private boolean legacy;
+
+    /**
+     * The duration string of a legacy session which couldn't be parsed, null otherwise.
+     */
+    @Ignore private String invalidLegacyDuration;
         
     public Session(final long id, final long conferenceId, final SessionForm form) {
         Preconditions.checkNotNull(form.getSpeaker(), "Speaker is required.");
@@ -61,14 +99,14 @@ public class Session {
      */
     public void updateWithSessionForm(SessionForm form) {
         speaker = form.getSpeaker();        
-        duration = form.getDuration();
+        durationMinutes = parseDurationMinutes(form.getDuration());
         
         Date startTime = form.getStartTime();
         this.startTime = startTime == null ? null : new Date(startTime.getTime());
         SessionType type = form.getType();
         this.type = type == null ? SessionType.NOT_SPECIFIED : type;
         String location = form.getLocation();
-        this.location = location == null || location.length() == 0 ? "DEFAULT LOC" : location;
+        this.location = location == null || location.length() == 0 ? DEFAULT_LOCATION : location;
     }
     
     @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
@@ -85,8 +123,88 @@ public class Session {
         return startTime == null ? null : new Date(startTime.getTime());
     }
     
+    /**
+     * Returns the end time, from the start time and the duration.
+     * @return the end time, null if the start time or the duration is not given.
+     */
+    public Date endTime() {
+        if (startTime == null || durationMinutes == null) {
+            return null;
+        }
+        return new Date(startTime.getTime() + durationMinutes * 60L * 1000L);
+    }
+    
+    /**
+     * Returns the duration like "2h", "1h30m" or "45m".
+     * @return the duration, null if not given.
+     */
     public String getDuration() {
-        return duration;
+        if (durationMinutes == null) {
+            return null;
+        }
+        int hours = durationMinutes / 60;
+        int minutes = durationMinutes % 60;
+        if (hours == 0) {
+            return minutes + "m";
+        }
+        return minutes == 0 ? hours + "h" : hours + "h" + minutes + "m";
+    }
+
+    public Integer getDurationMinutes() {
+        return durationMinutes;
+    }
+
+    /**
+     * Parses durations like "1h30m", "2 hours", "45min" or "90", which counts minutes.
+     *
+     * @param duration The duration, may be null or empty.
+     * @return the duration in minutes, null if duration is null or empty.
+     * @throws IllegalArgumentException If the duration can't be parsed.
+     */
+    public static Integer parseDurationMinutes(final String duration) {
+        if (duration == null || duration.trim().isEmpty()) {
+            return null;
+        }
+        Matcher matcher = DURATION.matcher(duration.trim());
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Invalid duration: " + duration);
+        }
+        int hours = matcher.group(1) == null ? 0 : Integer.parseInt(matcher.group(1));
+        int minutes = matcher.group(2) == null ? 0 : Integer.parseInt(matcher.group(2));
+        return hours * 60 + minutes;
+    }
+
+    /**
+     * Reads the free-form duration string of sessions stored before durationMinutes.
+     * A duration which can't be parsed loads as null, and is kept in invalidLegacyDuration
+     * until the next save removes the string from the datastore.
+     */
+    @SuppressWarnings("unused")
+    private void importDuration(@AlsoLoad("duration") final String duration) {
+        legacy = true;
+        try {
+            durationMinutes = parseDurationMinutes(duration);
+        } catch (IllegalArgumentException e) {
+            durationMinutes = null;
+            invalidLegacyDuration = duration;
+        }
+    }
+
+    /**
+     * Checks if the session was stored before durationMinutes. Its startTime and duration
+     * are missing from the indexes until it is saved again.
+     * @return true if the session must be saved again.
+     */
+    public boolean legacy() {
+        return legacy;
+    }
+
+    /**
+     * Returns the duration string of a legacy session which couldn't be parsed.
+     * @return the duration string, null if there was none or it was parsed.
+     */
+    public String invalidLegacyDuration() {
+        return invalidLegacyDuration;
     }
     
     public SessionType getType() {
@@ -101,6 +219,26 @@ public class Session {
         return Key.create(conferenceKey, Session.class, id).getString();
     }
     
+    /**
+     * Sessions are equal when they have the same key.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Session)) {
+            return false;
+        }
+        Session other = (Session) o;
+        return id == other.id && conferenceKey.equals(other.conferenceKey);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * conferenceKey.hashCode() + (int) (id ^ (id >>> 32));
+    }
+    
     /**
      * Possible types of a session
      */
@@ -0,0 +1,111 @@
+package com.google.devrel.training.conference.domain;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The progress and outcome of a bulk session import, published in memcache while it runs.
+ */
+public class SessionImport implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String importId;
+
+    private final int totalRows;
+
+    private int importedCount;
+
+    private final ArrayList<RowError> errors = new ArrayList<>();
+
+    /**
+     * The failures of the import past its rows.
+     */
+    private final ArrayList<String> failures = new ArrayList<>();
+
+    private boolean done;
+
+    /**
+     * A row which wasn't imported.
+     */
+    public static class RowError implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int row;
+
+        private final String message;
+
+        public RowError(final int row, final String message) {
+            this.row = row;
+            this.message = message;
+        }
+
+        /**
+         * Returns the number of the row, from 1, JSON rows first.
+         * @return the number of the row.
+         */
+        public int getRow() {
+            return row;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+    }
+
+    public SessionImport(final String importId, final int totalRows) {
+        this.importId = importId;
+        this.totalRows = totalRows;
+    }
+
+    public String getImportId() {
+        return importId;
+    }
+
+    public int getTotalRows() {
+        return totalRows;
+    }
+
+    public int getImportedCount() {
+        return importedCount;
+    }
+
+    public int getFailedCount() {
+        return errors.size();
+    }
+
+    /**
+     * Returns the rows which weren't imported, in row order within each stage of the import.
+     * @return the row errors.
+     */
+    public List<RowError> getErrors() {
+        return Collections.unmodifiableList(errors);
+    }
+
+    public List<String> getFailures() {
+        return Collections.unmodifiableList(failures);
+    }
+
+    public boolean isDone() {
+        return done;
+    }
+
+    public void addImported(final int count) {
+        importedCount += count;
+    }
+
+    public void addError(final int row, final String message) {
+        errors.add(new RowError(row, message));
+    }
+
+    public void addFailure(final String message) {
+        failures.add(message);
+    }
+
+    public void finish() {
+        done = true;
+    }
+}
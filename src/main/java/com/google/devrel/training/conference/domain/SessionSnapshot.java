@@ -0,0 +1,66 @@
+package com.google.devrel.training.conference.domain;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.api.server.spi.config.AnnotationBoolean;
+import com.google.api.server.spi.config.ApiResourceProperty;
+
+/**
+ * The sessions of a conference as cached in memcache, with the version they were read at.
+ *
+ * The version doubles as the ETag of the list: a client sending it back gets a snapshot
+ * marked notModified, without the sessions.
+ */
+public class SessionSnapshot implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long version;
+
+    private final ArrayList<Session> sessions;
+
+    private final boolean notModified;
+
+    public SessionSnapshot(final long version, final List<Session> sessions) {
+        this(version, sessions, false);
+    }
+
+    private SessionSnapshot(final long version, final List<Session> sessions,
+                            final boolean notModified) {
+        this.version = version;
+        this.sessions = new ArrayList<>(sessions);
+        this.notModified = notModified;
+    }
+
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public long getVersion() {
+        return version;
+    }
+
+    public String getEtag() {
+        return Long.toString(version);
+    }
+
+    /**
+     * Returns the sessions, sorted by speaker.
+     * @return the sessions, empty if notModified.
+     */
+    public List<Session> getSessions() {
+        return Collections.unmodifiableList(sessions);
+    }
+
+    public boolean isNotModified() {
+        return notModified;
+    }
+
+    /**
+     * Returns the answer to a client which already holds this snapshot.
+     * @return a snapshot with the same ETag and no sessions.
+     */
+    public SessionSnapshot notModified() {
+        return new SessionSnapshot(version, Collections.<Session>emptyList(), true);
+    }
+}
@@ -1,18 +1,120 @@
 package com.google.devrel.training.conference.domain;
 
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.api.server.spi.config.AnnotationBoolean;
+import com.google.api.server.spi.config.ApiResourceProperty;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Cache;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
+import com.googlecode.objectify.annotation.Parent;
+
 /**
- * A simple wrapper for speaker, used by endpoint function.
+ * Speaker class stores the session statistics of a speaker, kept up to date by
+ * createSession.
+ *
+ * A root Speaker counts the sessions of the speaker in all conferences. A Speaker with a
+ * Conference parent counts those in that conference, and lives in the entity group of its
+ * sessions.
  */
-public class Speaker {
-    
-    private String speakerName;
-    
-    public Speaker(String speakerName) {
-        this.speakerName = speakerName;
-    }
-    
-    @Override
-    public String toString() {
-        return speakerName;
+@Cache
+@Entity
+public class Speaker implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The parent of the sessions of the conference, null for the stats of all conferences.
+     */
+    @Parent
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    private Key<Conference> conferenceKey;
+
+    /**
+     * The name of the speaker, as given in the sessions.
+     */
+    @Id
+    private String name;
+
+    @Index
+    private int sessionCount;
+
+    /**
+     * The number of sessions of each SessionType, by the name of the type.
+     */
+    private HashMap<String, Integer> sessionTypeCounts = new HashMap<>();
+
+    /**
+     * Creates empty stats.
+     *
+     * @param conferenceKey The parent of the sessions of the conference, null for the stats
+     *                      of all conferences.
+     * @param name The name of the speaker.
+     */
+    public Speaker(final Key<Conference> conferenceKey, final String name) {
+        this.conferenceKey = conferenceKey;
+        this.name = name;
+    }
+
+    /**
+     * Returns the key of the stats of a speaker in all conferences.
+     *
+     * @param name The name of the speaker.
+     * @return the key of the stats.
+     */
+    public static Key<Speaker> createKey(final String name) {
+        return Key.create(Speaker.class, name);
+    }
+
+    /**
+     * Returns the key of the stats of a speaker in a conference.
+     *
+     * @param conferenceId The id of the conference.
+     * @param name The name of the speaker.
+     * @return the key of the stats.
+     */
+    public static Key<Speaker> createKey(final long conferenceId, final String name) {
+        return Key.create(Key.create(Conference.class, conferenceId), Speaker.class, name);
     }
+
+    public String getName() {
+        return name;
+    }
+
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public Key<Conference> getConferenceKey() {
+        return conferenceKey;
+    }
+
+    public int getSessionCount() {
+        return sessionCount;
+    }
+
+    /**
+     * Returns a defensive copy of sessionTypeCounts.
+     * @return the number of sessions of each SessionType, by the name of the type.
+     */
+    public Map<String, Integer> getSessionTypeCounts() {
+        return Collections.unmodifiableMap(new HashMap<>(sessionTypeCounts));
+    }
+
+    /**
+     * Counts a session of the speaker.
+     *
+     * @param session The session.
+     */
+    public void addSession(final Session session) {
+        sessionCount++;
+        String type = session.getType().name();
+        Integer count = sessionTypeCounts.get(type);
+        sessionTypeCounts.put(type, count == null ? 1 : count + 1);
+    }
+
+    @SuppressWarnings("unused")
+    private Speaker() {}
 }
@@ -1,25 +1,19 @@
 package com.google.devrel.training.conference.form;
 
-import static com.google.devrel.training.conference.service.OfyService.ofy;
-
 import com.google.api.server.spi.config.AnnotationBoolean;
 import com.google.api.server.spi.config.ApiResourceProperty;
 import com.google.common.collect.ImmutableList;
-import com.google.devrel.training.conference.domain.Conference;
-
-import com.googlecode.objectify.cmd.Query;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.logging.Logger;
+import java.util.SortedSet;
+import java.util.TreeSet;
 
 /**
  * A simple Java object (POJO) representing a query options for Conference.
  */
 public class ConferenceQueryForm {
 
-    private static final Logger LOG = Logger.getLogger(ConferenceQueryForm.class.getName());
-
     /**
      * Enum representing a field type.
      */
@@ -45,9 +39,13 @@ public class ConferenceQueryForm {
             this.fieldType = fieldType;
         }
 
-        private String getFieldName() {
+        String getFieldName() {
             return this.fieldName;
         }
+
+        FieldType getFieldType() {
+            return this.fieldType;
+        }
     }
 
     /**
@@ -59,7 +57,8 @@ public class ConferenceQueryForm {
         GT(">"),
         LTEQ("<="),
         GTEQ(">="),
-        NE("!=");
+        NE("!="),
+        IN("in");
 
         private String queryOperator;
 
@@ -67,11 +66,11 @@ public class ConferenceQueryForm {
             this.queryOperator = queryOperator;
         }
 
-        private String getQueryOperator() {
+        String getQueryOperator() {
             return this.queryOperator;
         }
 
-        private boolean isInequalityFilter() {
+        boolean isInequalityFilter() {
             return this.queryOperator.contains("<") 
                     || this.queryOperator.contains(">") 
                     || this.queryOperator.contains("!");
@@ -105,36 +104,49 @@ public class ConferenceQueryForm {
         public String getValue() {
             return value;
         }
+
+        /**
+         * Returns the values of an IN filter, which are separated by commas.
+         *
+         * @return the values, trimmed and in the given order.
+         */
+        List<String> inValues() {
+            List<String> values = new ArrayList<>();
+            for (String inValue : value.split(",")) {
+                if (!inValue.trim().isEmpty()) {
+                    values.add(inValue.trim());
+                }
+            }
+            return values;
+        }
     }
 
+    /**
+     * The number of conferences per page when no page size is given.
+     */
+    public static final int DEFAULT_PAGE_SIZE = 20;
+
+    /**
+     * The maximum number of conferences per page.
+     */
+    public static final int MAX_PAGE_SIZE = 100;
+
     /**
      * A list of query filters.
      */
     private List<Filter> filters = new ArrayList<>(0);
 
     /**
-     * Holds the first inequalityFilter for checking the feasibility of the whole query.
+     * The number of conferences per page.
      */
-    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
-    private Filter inequalityFilter;
-
-    public ConferenceQueryForm() {}
+    private Integer pageSize;
 
     /**
-     * Checks the feasibility of the whole query.
+     * The opaque cursor of the page to fetch, taken from nextPageToken of the previous page.
      */
-    private void checkFilters() {
-        for (Filter filter : this.filters) {
-            if (filter.operator.isInequalityFilter()) {
-                // Only one inequality filter is allowed.
-                if (inequalityFilter != null && !inequalityFilter.field.equals(filter.field)) {
-                    throw new IllegalArgumentException(
-                            "Inequality filter is allowed on only one field.");
-                }
-                inequalityFilter = filter;
-            }
-        }
-    }
+    private String cursor;
+
+    public ConferenceQueryForm() {}
 
     /**
      * Getter for filters.
@@ -152,47 +164,97 @@ public class ConferenceQueryForm {
      * @return this for method chaining.
      */
     public ConferenceQueryForm filter(Filter filter) {
-        if (filter.operator.isInequalityFilter()) {
-            // Only allows inequality filters on a single field.
-            if (inequalityFilter != null && !inequalityFilter.field.equals(filter.field)) {
-                throw new IllegalArgumentException(
-                        "Inequality filter is allowed on only one field.");
-            }
-            inequalityFilter = filter;
-        }
         filters.add(filter);
         return this;
     }
 
     /**
-     * Returns an Objectify Query object for the specified filters.
+     * Returns the number of conferences per page.
      *
-     * @return an Objectify Query.
+     * @return pageSize, or DEFAULT_PAGE_SIZE if not given, capped at MAX_PAGE_SIZE.
      */
-    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
-    public Query<Conference> getQuery() {
-        // First check the feasibility of inequality filters.
-        checkFilters();
-        
-        Query<Conference> query = ofy().load().type(Conference.class);
-        if (inequalityFilter == null) {
-            query = query.order("name");
-        } else {
-            // If we have any inequality filters, order by the field first.
-            query = query.order(inequalityFilter.field.getFieldName());
-            query = query.order("name");
+    public int getPageSize() {
+        if (pageSize == null || pageSize <= 0) {
+            return DEFAULT_PAGE_SIZE;
         }
+        return Math.min(pageSize, MAX_PAGE_SIZE);
+    }
+
+    /**
+     * Sets the number of conferences per page.
+     *
+     * @param pageSize The number of conferences per page.
+     * @return this for method chaining.
+     */
+    public ConferenceQueryForm pageSize(int pageSize) {
+        this.pageSize = pageSize;
+        return this;
+    }
+
+    public String getCursor() {
+        return cursor;
+    }
+
+    /**
+     * Sets the cursor of the page to fetch.
+     *
+     * @param cursor nextPageToken of the previous page.
+     * @return this for method chaining.
+     */
+    public ConferenceQueryForm cursor(String cursor) {
+        this.cursor = cursor;
+        return this;
+    }
+
+    /**
+     * Returns a canonical signature of the filters. The order of the filters doesn't
+     * matter, and neither do repeated filters, the order of IN values or leading zeros
+     * in numbers.
+     *
+     * @return the signature of the filters.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public String getSignature() {
+        SortedSet<String> canonicalFilters = new TreeSet<>();
         for (Filter filter : this.filters) {
-            // Applies filters in order.
-            if (filter.field.fieldType == FieldType.STRING) {
-                query = query.filter(String.format("%s %s", filter.field.getFieldName(),
-                        filter.operator.getQueryOperator()), filter.value);
-            } else if (filter.field.fieldType == FieldType.INTEGER) {
-                query = query.filter(String.format("%s %s", filter.field.getFieldName(),
-                        filter.operator.getQueryOperator()), Integer.parseInt(filter.value));
+            String value = canonicalValue(filter.field, filter.value);
+            if (filter.operator == Operator.IN && value != null) {
+                SortedSet<String> inValues = new TreeSet<>();
+                for (String inValue : filter.inValues()) {
+                    inValues.add(canonicalValue(filter.field, inValue));
+                }
+                value = inValues.toString();
             }
+            // The length keeps values holding separators apart.
+            canonicalFilters.add(String.format("%s %s %d:%s", filter.field.name(),
+                    filter.operator.name(), value == null ? -1 : value.length(), value));
         }
-        LOG.info(query.toString());
-        return query;
+        StringBuilder sb = new StringBuilder();
+        for (String canonicalFilter : canonicalFilters) {
+            sb.append(canonicalFilter).append(';');
+        }
+        return sb.toString();
+    }
+
+    private static String canonicalValue(final Field field, final String value) {
+        if (field.fieldType == FieldType.INTEGER) {
+            try {
+                return String.valueOf(Integer.parseInt(value));
+            } catch (NumberFormatException e) {
+                // Planning the query rejects it anyway.
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Plans the query for the specified filters and cursor. Inequality filters on several
+     * fields are allowed; the plan sends the most selective of them to the datastore.
+     *
+     * @return the plan of the query.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public ConferenceQueryPlan getPlan() {
+        return new ConferenceQueryPlan(filters, cursor, getSignature());
     }
 }
@@ -0,0 +1,255 @@
+package com.google.devrel.training.conference.form;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.common.base.Joiner;
+import com.google.common.collect.Ordering;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Filter;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.cmd.Query;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Iterates over the conferences of a ConferenceQueryPlan, merging its sub-queries.
+ *
+ * Every sub-query starts before any result is read, so their first batches load
+ * concurrently and the wait is about that of the slowest one. The sub-queries return
+ * conferences sorted by the plan, and a k-way merge keeps that order.
+ *
+ * A conference several sub-queries return is only returned where it sorts first. With a
+ * list property as inequality field it sorts by a different element in each sub-query, so
+ * the places can be pages apart; each sub-query re-checks the others instead of
+ * remembering what earlier pages returned.
+ *
+ * The cursor of a single sub-query is the datastore cursor. With several, it holds the
+ * position of each one, so a page resumes every sub-query where the previous page left it.
+ */
+public class ConferenceQueryIterator implements Iterator<Conference> {
+
+    private static final String MERGE_CURSOR_PREFIX = "merge:";
+
+    private static final String MERGE_CURSOR_SEPARATOR = ",";
+
+    @SuppressWarnings("rawtypes")
+    private static final Ordering<Comparable> SORT_VALUE_ORDER = Ordering.natural().nullsFirst();
+
+    /**
+     * Orders the heads of the sub-queries like the datastore orders each of them.
+     */
+    private static final Comparator<SubQuery> HEAD_ORDER = new Comparator<SubQuery>() {
+        @Override
+        public int compare(SubQuery a, SubQuery b) {
+            int c = SORT_VALUE_ORDER.compare(a.headSortValue, b.headSortValue);
+            if (c == 0) {
+                c = SORT_VALUE_ORDER.compare(a.head.getName(), b.head.getName());
+            }
+            if (c == 0) {
+                c = a.headKey.compareTo(b.headKey);
+            }
+            return c;
+        }
+    };
+
+    private final ConferenceQueryPlan plan;
+
+    private final List<SubQuery> subQueries = new ArrayList<>();
+
+    private final PriorityQueue<SubQuery> heads;
+
+    private Conference next;
+
+    ConferenceQueryIterator(final ConferenceQueryPlan plan,
+                            final List<List<Filter>> subQueryFilters,
+                            final String cursor, final Integer limit) {
+        this.plan = plan;
+        List<String> positions = parseCursor(cursor, subQueryFilters.size());
+        for (int i = 0; i < subQueryFilters.size(); i++) {
+            Query<Conference> query = plan.getQuery(subQueryFilters.get(i));
+            Cursor position = null;
+            if (positions.get(i) != null) {
+                position = Cursor.fromWebSafeString(positions.get(i));
+                query = query.startAt(position);
+            }
+            query = limit == null ? query.chunk(ConferenceQueryPlan.CHUNK_SIZE)
+                    : query.limit(limit);
+            // Starting the iterator sends the query, without waiting for its results.
+            subQueries.add(new SubQuery(subQueryFilters.get(i), query.iterator(), position));
+        }
+        heads = new PriorityQueue<>(Math.max(1, subQueries.size()), HEAD_ORDER);
+        for (SubQuery subQuery : subQueries) {
+            if (subQuery.advance()) {
+                heads.add(subQuery);
+            }
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (next == null && !heads.isEmpty()) {
+            SubQuery first = heads.poll();
+            Key<Conference> key = first.headKey;
+            @SuppressWarnings("rawtypes")
+            Comparable sortValue = first.headSortValue;
+            Conference conference = first.take();
+            // Sub-queries holding the conference at the same place give it up with it.
+            while (!heads.isEmpty() && heads.peek().headKey.equals(key)) {
+                heads.poll().take();
+            }
+            if (!sortsEarlier(conference, sortValue)) {
+                next = conference;
+            }
+        }
+        return next != null;
+    }
+
+    /**
+     * Checks if some sub-query returns a conference before the place it was just taken
+     * from, where it was returned already, on this page or an earlier one.
+     */
+    @SuppressWarnings("rawtypes")
+    private boolean sortsEarlier(final Conference conference, final Comparable sortValue) {
+        if (subQueries.size() == 1 || !plan.repeatsConferences()) {
+            return false;
+        }
+        for (SubQuery subQuery : subQueries) {
+            if (plan.matches(conference, subQuery.filters)
+                    && SORT_VALUE_ORDER.compare(plan.sortValue(conference, subQuery.filters),
+                            sortValue) < 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Conference next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Conference conference = next;
+        next = null;
+        return conference;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Returns the cursor right after the last conference returned by next.
+     *
+     * @return the cursor to resume from, or null before the first conference.
+     */
+    public String getCursor() {
+        if (subQueries.size() == 1) {
+            Cursor position = subQueries.get(0).position;
+            return position == null ? null : position.toWebSafeString();
+        }
+        List<String> positions = new ArrayList<>(subQueries.size());
+        boolean started = false;
+        for (SubQuery subQuery : subQueries) {
+            if (subQuery.position == null) {
+                positions.add("");
+            } else {
+                positions.add(subQuery.position.toWebSafeString());
+                started = true;
+            }
+        }
+        return started ? MERGE_CURSOR_PREFIX + Joiner.on(MERGE_CURSOR_SEPARATOR).join(positions)
+                : null;
+    }
+
+    /**
+     * Splits a cursor into the positions of the sub-queries, null for those not started.
+     */
+    private static List<String> parseCursor(final String cursor, final int size) {
+        List<String> positions = new ArrayList<>(size);
+        if (cursor == null) {
+            for (int i = 0; i < size; i++) {
+                positions.add(null);
+            }
+        } else if (size == 1) {
+            positions.add(cursor);
+        } else {
+            if (!cursor.startsWith(MERGE_CURSOR_PREFIX)) {
+                throw new IllegalArgumentException("Invalid cursor: " + cursor);
+            }
+            String[] parts = cursor.substring(MERGE_CURSOR_PREFIX.length())
+                    .split(MERGE_CURSOR_SEPARATOR, -1);
+            if (parts.length != size) {
+                throw new IllegalArgumentException("Invalid cursor: " + cursor);
+            }
+            for (String part : parts) {
+                positions.add(part.isEmpty() ? null : part);
+            }
+        }
+        return positions;
+    }
+
+    /**
+     * A running sub-query, with the conference at its head.
+     */
+    private class SubQuery {
+
+        private final List<Filter> filters;
+
+        private final QueryResultIterator<Conference> iterator;
+
+        /**
+         * The position right after the last conference taken from the sub-query.
+         */
+        private Cursor position;
+
+        private Conference head;
+
+        private Key<Conference> headKey;
+
+        @SuppressWarnings("rawtypes")
+        private Comparable headSortValue;
+
+        SubQuery(final List<Filter> filters, final QueryResultIterator<Conference> iterator,
+                 final Cursor position) {
+            this.filters = filters;
+            this.iterator = iterator;
+            this.position = position;
+        }
+
+        /**
+         * Moves to the next conference of the sub-query.
+         *
+         * @return false if the sub-query has no more conferences.
+         */
+        boolean advance() {
+            if (!iterator.hasNext()) {
+                head = null;
+                return false;
+            }
+            head = iterator.next();
+            headKey = Key.create(head);
+            headSortValue = plan.sortValue(head, filters);
+            return true;
+        }
+
+        /**
+         * Takes the head, and puts the sub-query back among the heads if it has more.
+         */
+        Conference take() {
+            Conference conference = head;
+            // The iterator stands right after the head until it advances.
+            position = iterator.getCursor();
+            if (advance()) {
+                heads.add(this);
+            }
+            return conference;
+        }
+    }
+}
@@ -0,0 +1,527 @@
+package com.google.devrel.training.conference.form;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.api.server.spi.config.AnnotationBoolean;
+import com.google.api.server.spi.config.ApiResourceProperty;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Field;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.FieldType;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Filter;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Operator;
+import com.google.devrel.training.conference.service.ConferenceQueryCache;
+
+import com.googlecode.objectify.cmd.Query;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * The plan for running the filters of a ConferenceQueryForm.
+ *
+ * The datastore allows inequality filters on a single field. When the filters hold
+ * inequalities on several fields, the planner counts the matches of each of them, with the
+ * equality filters, and sends the most selective one to the datastore. The other
+ * inequalities are checked in memory on each conference the datastore returns. The choice
+ * is kept in ConferenceQueryCache by the signature of the filters, so the counts run once
+ * per signature.
+ *
+ * Cursors of such queries start with the name of the chosen field, so the next pages run
+ * the same datastore query even if the estimates change meanwhile.
+ *
+ * NE and IN filters expand into several sub-queries, one for each combination of their
+ * alternatives. ConferenceQueryIterator runs them concurrently and merges their results.
+ */
+public class ConferenceQueryPlan {
+
+    private static final Logger LOG = Logger.getLogger(ConferenceQueryPlan.class.getName());
+
+    /**
+     * Counting matches stops here; any field above it is as bad as any other.
+     */
+    static final int ESTIMATE_LIMIT = 1000;
+
+    private static final String CURSOR_SEPARATOR = ":";
+
+    /**
+     * The number of sub-queries the datastore would run at most for NE and IN filters.
+     */
+    static final int MAX_SUB_QUERIES = 30;
+
+    /**
+     * The number of conferences each sub-query fetches at once when no limit is given.
+     */
+    static final int CHUNK_SIZE = 100;
+
+    /**
+     * The filters sent to the datastore.
+     */
+    private final List<Filter> datastoreFilters = new ArrayList<>();
+
+    /**
+     * The filters checked in memory.
+     */
+    private final List<Filter> inMemoryFilters = new ArrayList<>();
+
+    /**
+     * The filters of each datastore sub-query.
+     */
+    private final List<List<Filter>> subQueryFilters;
+
+    /**
+     * The field of the inequality filters sent to the datastore, null if there is none.
+     */
+    private Field inequalityField;
+
+    /**
+     * The estimated number of matches of each inequality field, when there were several.
+     */
+    private final Map<Field, Integer> estimates = new LinkedHashMap<>();
+
+    /**
+     * Whether cursors start with the name of the inequality field.
+     */
+    private boolean fieldInCursor;
+
+    /**
+     * The cursor of the datastore query, without the name of the inequality field.
+     */
+    private String cursor;
+
+    ConferenceQueryPlan(final List<Filter> filters, final String cursor,
+                        final String signature) {
+        this.cursor = cursor;
+        Map<Field, List<Filter>> inequalities = new LinkedHashMap<>();
+        for (Filter filter : filters) {
+            if (filter.getOperator().isInequalityFilter()) {
+                if (!inequalities.containsKey(filter.getField())) {
+                    inequalities.put(filter.getField(), new ArrayList<Filter>());
+                }
+                inequalities.get(filter.getField()).add(filter);
+            } else {
+                datastoreFilters.add(filter);
+            }
+        }
+
+        if (inequalities.size() == 1) {
+            inequalityField = inequalities.keySet().iterator().next();
+        } else if (inequalities.size() > 1) {
+            fieldInCursor = true;
+            inequalityField = cursor == null ? null : fieldInCursor(inequalities.keySet());
+            if (inequalityField == null) {
+                ConferenceQueryCache.Choice choice = ConferenceQueryCache.getChoice(signature);
+                if (choice == null) {
+                    inequalityField = pickMostSelective(inequalities);
+                    ConferenceQueryCache.putChoice(signature,
+                            new ConferenceQueryCache.Choice(inequalityField, estimates));
+                } else {
+                    inequalityField = choice.getField();
+                    estimates.putAll(choice.getEstimates());
+                }
+            }
+        }
+        for (Map.Entry<Field, List<Filter>> entry : inequalities.entrySet()) {
+            if (entry.getKey() == inequalityField) {
+                datastoreFilters.addAll(entry.getValue());
+            } else {
+                inMemoryFilters.addAll(entry.getValue());
+            }
+        }
+        subQueryFilters = expand();
+        LOG.info(getExplanation());
+    }
+
+    /**
+     * Returns the field the cursor starts with, and strips it from the cursor.
+     * A cursor not starting with any of the fields is left to the datastore to reject.
+     */
+    private Field fieldInCursor(final Iterable<Field> fields) {
+        for (Field field : fields) {
+            String prefix = field.getFieldName() + CURSOR_SEPARATOR;
+            if (cursor.startsWith(prefix)) {
+                cursor = cursor.substring(prefix.length());
+                return field;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Picks the field with the fewest matches. On a tie, fields without a NE filter win,
+     * since the datastore splits those into two queries.
+     */
+    private Field pickMostSelective(final Map<Field, List<Filter>> inequalities) {
+        Field best = null;
+        int bestCount = Integer.MAX_VALUE;
+        boolean bestHasNotEqual = true;
+        for (Map.Entry<Field, List<Filter>> entry : inequalities.entrySet()) {
+            Query<Conference> query = applyFilters(ofy().load().type(Conference.class),
+                    datastoreFilters);
+            query = applyFilters(query, entry.getValue());
+            int count = query.limit(ESTIMATE_LIMIT).count();
+            estimates.put(entry.getKey(), count);
+
+            boolean hasNotEqual = hasNotEqualFilter(entry.getValue());
+            if (count < bestCount || (count == bestCount && bestHasNotEqual && !hasNotEqual)) {
+                best = entry.getKey();
+                bestCount = count;
+                bestHasNotEqual = hasNotEqual;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Expands the NE and IN filters sent to the datastore into the filters of each
+     * sub-query: NE becomes LT or GT, and IN becomes EQ on one of its values.
+     *
+     * @return the filters of each sub-query.
+     */
+    private List<List<Filter>> expand() {
+        List<List<Filter>> subQueries = new ArrayList<>();
+        subQueries.add(new ArrayList<Filter>());
+        for (Filter filter : datastoreFilters) {
+            List<Filter> alternatives = new ArrayList<>();
+            if (filter.getOperator() == Operator.NE) {
+                alternatives.add(new Filter(filter.getField(), Operator.LT, filter.getValue()));
+                alternatives.add(new Filter(filter.getField(), Operator.GT, filter.getValue()));
+            } else if (filter.getOperator() == Operator.IN) {
+                for (String inValue : filter.inValues()) {
+                    alternatives.add(new Filter(filter.getField(), Operator.EQ, inValue));
+                }
+            } else {
+                alternatives.add(filter);
+            }
+
+            List<List<Filter>> expanded = new ArrayList<>();
+            for (List<Filter> subQuery : subQueries) {
+                for (Filter alternative : alternatives) {
+                    List<Filter> filters = new ArrayList<>(subQuery);
+                    filters.add(alternative);
+                    expanded.add(filters);
+                }
+            }
+            if (expanded.size() > MAX_SUB_QUERIES) {
+                throw new IllegalArgumentException("The NE and IN filters allow at most "
+                        + MAX_SUB_QUERIES + " combinations.");
+            }
+            subQueries = expanded;
+        }
+        return subQueries;
+    }
+
+    /**
+     * Returns an Objectify Query object for the filters of a sub-query.
+     */
+    Query<Conference> getQuery(final List<Filter> filters) {
+        Query<Conference> query = ofy().load().type(Conference.class);
+        if (inequalityField != null) {
+            // If we have any inequality filters, order by the field first.
+            query = query.order(inequalityField.getFieldName());
+        }
+        query = applyFilters(query.order("name"), filters);
+        LOG.info(query.toString());
+        return query;
+    }
+
+    /**
+     * Starts the datastore queries of the plan, from the cursor of the form.
+     *
+     * @param limit The number of conferences each sub-query returns at most, null to
+     *              stream them in chunks.
+     * @return an iterator over the merged results, in the order of the plan.
+     * @throws IllegalArgumentException If the cursor doesn't fit the plan.
+     */
+    public ConferenceQueryIterator iterator(final Integer limit) {
+        return new ConferenceQueryIterator(this, subQueryFilters, cursor, limit);
+    }
+
+    /**
+     * Returns the value a sub-query sorts a conference by, before its name: the smallest
+     * value of the inequality field matching the sub-query, like the datastore does for
+     * list properties. Null when the plan has no inequality field.
+     */
+    @SuppressWarnings("rawtypes")
+    Comparable sortValue(final Conference conference, final List<Filter> filters) {
+        if (inequalityField == null) {
+            return null;
+        }
+        Comparable min = null;
+        for (Comparable value : propertyValues(inequalityField, conference)) {
+            boolean matching = true;
+            for (Filter filter : filters) {
+                if (filter.getField() == inequalityField && !matches(filter, value)) {
+                    matching = false;
+                }
+            }
+            if (matching && (min == null || compareValues(value, min) < 0)) {
+                min = value;
+            }
+        }
+        return min;
+    }
+
+    /**
+     * Checks the filters of a sub-query the way the datastore would. The filters on the
+     * inequality field must all match the same element of a list, see sortValue.
+     *
+     * @param conference A Conference.
+     * @param filters The filters of a sub-query.
+     * @return true if the sub-query returns the conference.
+     */
+    boolean matches(final Conference conference, final List<Filter> filters) {
+        for (Filter filter : filters) {
+            if (filter.getField() != inequalityField && !matches(filter, conference)) {
+                return false;
+            }
+        }
+        return inequalityField == null || sortValue(conference, filters) != null;
+    }
+
+    /**
+     * Checks if a conference can come back from several sub-queries at different places.
+     * That takes several sub-queries sorting by a list property, whose elements put a
+     * conference at a different place in each of them.
+     *
+     * @return true if the merge has to skip conferences returned by an earlier place.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public boolean repeatsConferences() {
+        return subQueryFilters.size() > 1 && inequalityField == Field.TOPIC;
+    }
+
+    /**
+     * Returns the cursor to resume the datastore query from.
+     *
+     * @return the cursor of the form, without the name of the inequality field.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public String getCursor() {
+        return cursor;
+    }
+
+    /**
+     * Builds the cursor to hand out to the client for a position of the datastore query.
+     *
+     * @param position The cursor of the datastore query.
+     * @return the cursor for nextPageToken.
+     */
+    public String toCursor(final String position) {
+        if (position == null || !fieldInCursor) {
+            return position;
+        }
+        return inequalityField.getFieldName() + CURSOR_SEPARATOR + position;
+    }
+
+    /**
+     * Checks the filters left out of the datastore query.
+     *
+     * @param conference A Conference returned by the datastore query.
+     * @return true if the conference matches every in-memory filter.
+     */
+    public boolean matches(final Conference conference) {
+        for (Filter filter : inMemoryFilters) {
+            if (!matches(filter, conference)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks if some filters are left to check in memory.
+     *
+     * @return true if the datastore query returns conferences which may not match.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public boolean hasInMemoryFilters() {
+        return !inMemoryFilters.isEmpty();
+    }
+
+    public List<String> getDatastoreFilters() {
+        return describe(datastoreFilters);
+    }
+
+    /**
+     * Returns the filters of each datastore sub-query the NE and IN filters expand into.
+     *
+     * @return the filters of each sub-query.
+     */
+    public List<List<String>> getSubQueries() {
+        List<List<String>> result = new ArrayList<>();
+        for (List<Filter> filters : subQueryFilters) {
+            result.add(describe(filters));
+        }
+        return result;
+    }
+
+    public List<String> getInMemoryFilters() {
+        return describe(inMemoryFilters);
+    }
+
+    public List<String> getOrder() {
+        List<String> order = new ArrayList<>(2);
+        if (inequalityField != null) {
+            order.add(inequalityField.getFieldName());
+        }
+        order.add("name");
+        return order;
+    }
+
+    /**
+     * Returns the estimated number of matches of each inequality field, capped at
+     * ESTIMATE_LIMIT. Empty unless the filters hold inequalities on several fields. They may
+     * come from ConferenceQueryCache, counted by an earlier query with the same filters.
+     *
+     * @return the estimates as "field: count".
+     */
+    public List<String> getEstimates() {
+        List<String> result = new ArrayList<>(estimates.size());
+        for (Map.Entry<Field, Integer> entry : estimates.entrySet()) {
+            result.add(entry.getKey().getFieldName() + ": " + entry.getValue());
+        }
+        return result;
+    }
+
+    /**
+     * Returns the plan on a single line, for logs.
+     *
+     * @return a description of the plan.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public String getExplanation() {
+        return "datastore: " + getSubQueries() + " order by " + getOrder()
+                + ", in memory: " + getInMemoryFilters() + ", estimates: " + getEstimates();
+    }
+
+    private static Query<Conference> applyFilters(Query<Conference> query,
+                                                  final List<Filter> filters) {
+        for (Filter filter : filters) {
+            query = query.filter(String.format("%s %s", filter.getField().getFieldName(),
+                    filter.getOperator().getQueryOperator()), value(filter));
+        }
+        return query;
+    }
+
+    private static boolean hasNotEqualFilter(final List<Filter> filters) {
+        for (Filter filter : filters) {
+            if (filter.getOperator() == Operator.NE) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<String> describe(final List<Filter> filters) {
+        List<String> result = new ArrayList<>(filters.size());
+        for (Filter filter : filters) {
+            result.add(String.format("%s %s %s", filter.getField().getFieldName(),
+                    filter.getOperator().getQueryOperator(), filter.getValue()));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the value of a filter with the type of its field, a list of them for IN.
+     */
+    private static Object value(final Filter filter) {
+        if (filter.getOperator() == Operator.IN) {
+            List<Object> values = new ArrayList<>();
+            for (String inValue : filter.inValues()) {
+                values.add(value(filter.getField(), inValue));
+            }
+            return values;
+        }
+        return value(filter.getField(), filter.getValue());
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static Comparable value(final Field field, final String value) {
+        if (field.getFieldType() == FieldType.INTEGER) {
+            return Integer.parseInt(value);
+        }
+        return value;
+    }
+
+    /**
+     * Returns the values the datastore indexes for a field of a conference: none for a
+     * missing property, and one for each element of a list.
+     */
+    @SuppressWarnings("rawtypes")
+    private static List<Comparable> propertyValues(final Field field,
+                                                   final Conference conference) {
+        List<Comparable> values = new ArrayList<>();
+        switch (field) {
+            case CITY:
+                if (conference.getCity() != null) {
+                    values.add(conference.getCity());
+                }
+                break;
+            case TOPIC:
+                if (conference.getTopics() != null) {
+                    values.addAll(conference.getTopics());
+                }
+                break;
+            case MONTH:
+                values.add(conference.getMonth());
+                break;
+            case MAX_ATTENDEES:
+                values.add(conference.getMaxAttendees());
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown field " + field);
+        }
+        return values;
+    }
+
+    /**
+     * Checks a filter the way the datastore would: a missing property never matches, and
+     * a list property matches if any of its values does.
+     */
+    @SuppressWarnings("rawtypes")
+    private static boolean matches(final Filter filter, final Conference conference) {
+        for (Comparable value : propertyValues(filter.getField(), conference)) {
+            if (matches(filter, value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static boolean matches(final Filter filter, final Comparable actual) {
+        if (filter.getOperator() == Operator.IN) {
+            for (Object expected : (List) value(filter)) {
+                if (compareValues(actual, (Comparable) expected) == 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        int c = compareValues(actual, (Comparable) value(filter));
+        switch (filter.getOperator()) {
+            case EQ:
+                return c == 0;
+            case NE:
+                return c != 0;
+            case LT:
+                return c < 0;
+            case GT:
+                return c > 0;
+            case LTEQ:
+                return c <= 0;
+            case GTEQ:
+                return c >= 0;
+            default:
+                throw new IllegalArgumentException("Unknown operator " + filter.getOperator());
+        }
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    static int compareValues(final Comparable a, final Comparable b) {
+        return a.compareTo(b);
+    }
+}
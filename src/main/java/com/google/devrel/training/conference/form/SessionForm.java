@@ -37,7 +37,7 @@ public class SessionForm {
     }
 
     /**
-     * Used for testing purposes only.
+     * Used for testing purposes and for CSV rows of SessionImportForm.
      */
     public SessionForm(String speaker, Date startTime, 
             String duration, SessionType type, String location) {
@@ -0,0 +1,212 @@
+package com.google.devrel.training.conference.form;
+
+import com.google.api.server.spi.config.AnnotationBoolean;
+import com.google.api.server.spi.config.ApiResourceProperty;
+import com.google.devrel.training.conference.domain.Session.SessionType;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * A simple Java object (POJO) representing the sessions of a bulk import, sent as a JSON
+ * array of SessionForm objects, as CSV, or both. The JSON rows come first.
+ *
+ * CSV rows have the columns speaker, startTime, duration, type and location, all but the
+ * speaker optional. Start times look like "2014-03-25 09:30" or "2014-03-25". Fields holding
+ * commas or quotes are quoted, with quotes doubled. A first line starting with "speaker"
+ * is a header and is skipped.
+ */
+public class SessionImportForm {
+
+    private static final String[] DATE_FORMATS = {"yyyy-MM-dd HH:mm", "yyyy-MM-dd"};
+
+    /**
+     * The id under which the progress of the import is published, chosen by the client so
+     * it can follow an import still running. A random id is used if not given.
+     */
+    private String importId;
+
+    private List<SessionForm> sessions;
+
+    private String csv;
+
+    /**
+     * The non-empty lines of csv, without the header.
+     */
+    private transient List<String> csvLines;
+
+    public SessionImportForm() {}
+
+    public String getImportId() {
+        return importId;
+    }
+
+    public List<SessionForm> getSessions() {
+        return sessions == null ? Collections.<SessionForm>emptyList()
+                : Collections.unmodifiableList(sessions);
+    }
+
+    public String getCsv() {
+        return csv;
+    }
+
+    /**
+     * Sets the id of the import.
+     *
+     * @param importId The id under which the progress is published.
+     * @return this for method chaining.
+     */
+    public SessionImportForm importId(String importId) {
+        this.importId = importId;
+        return this;
+    }
+
+    /**
+     * Sets the JSON rows.
+     *
+     * @param sessions The sessions to import.
+     * @return this for method chaining.
+     */
+    public SessionImportForm sessions(List<SessionForm> sessions) {
+        this.sessions = new ArrayList<>(sessions);
+        return this;
+    }
+
+    /**
+     * Sets the CSV rows.
+     *
+     * @param csv The sessions to import, one per line.
+     * @return this for method chaining.
+     */
+    public SessionImportForm csv(String csv) {
+        this.csv = csv;
+        this.csvLines = null;
+        return this;
+    }
+
+    /**
+     * Returns the number of rows, JSON and CSV.
+     *
+     * @return the number of rows.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public int getRowCount() {
+        return getSessions().size() + getCsvLines().size();
+    }
+
+    /**
+     * Returns a row as a SessionForm, parsing it if it is a CSV row.
+     *
+     * @param index The index of the row, from 0.
+     * @return the row.
+     * @throws IllegalArgumentException If the CSV row can't be parsed.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public SessionForm getRow(int index) {
+        int jsonRows = getSessions().size();
+        if (index < jsonRows) {
+            return sessions.get(index);
+        }
+        return parseCsvLine(getCsvLines().get(index - jsonRows));
+    }
+
+    private List<String> getCsvLines() {
+        if (csvLines == null) {
+            csvLines = new ArrayList<>();
+            if (csv != null) {
+                for (String line : csv.split("\r?\n")) {
+                    if (line.trim().isEmpty()) {
+                        continue;
+                    }
+                    if (csvLines.isEmpty() && line.trim().toLowerCase().startsWith("speaker")) {
+                        continue;
+                    }
+                    csvLines.add(line);
+                }
+            }
+        }
+        return csvLines;
+    }
+
+    private static SessionForm parseCsvLine(final String line) {
+        List<String> fields = splitCsvLine(line);
+        if (fields.size() > 5) {
+            throw new IllegalArgumentException("Too many columns: " + fields.size());
+        }
+        while (fields.size() < 5) {
+            fields.add("");
+        }
+        return new SessionForm(emptyToNull(fields.get(0)), parseDate(fields.get(1)),
+                emptyToNull(fields.get(2)), parseType(fields.get(3)),
+                emptyToNull(fields.get(4)));
+    }
+
+    private static List<String> splitCsvLine(final String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c != '"') {
+                    field.append(c);
+                } else if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString().trim());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        if (quoted) {
+            throw new IllegalArgumentException("Unterminated quote: " + line);
+        }
+        fields.add(field.toString().trim());
+        return fields;
+    }
+
+    private static Date parseDate(final String value) {
+        if (value.isEmpty()) {
+            return null;
+        }
+        for (String pattern : DATE_FORMATS) {
+            SimpleDateFormat format = new SimpleDateFormat(pattern);
+            format.setLenient(false);
+            try {
+                Date date = format.parse(value);
+                if (format.format(date).equals(value)) {
+                    return date;
+                }
+            } catch (ParseException e) {
+                // Try the next format.
+            }
+        }
+        throw new IllegalArgumentException("Invalid start time: " + value);
+    }
+
+    private static SessionType parseType(final String value) {
+        if (value.isEmpty()) {
+            return null;
+        }
+        try {
+            return SessionType.valueOf(value.toUpperCase().replace(' ', '_'));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid type: " + value);
+        }
+    }
+
+    private static String emptyToNull(final String value) {
+        return value.isEmpty() ? null : value;
+    }
+}
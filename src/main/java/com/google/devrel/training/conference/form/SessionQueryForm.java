@@ -0,0 +1,186 @@
+package com.google.devrel.training.conference.form;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.api.server.spi.config.AnnotationBoolean;
+import com.google.api.server.spi.config.ApiResourceProperty;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Session;
+import com.google.devrel.training.conference.domain.Session.SessionType;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.cmd.Query;
+
+import java.util.Date;
+import java.util.logging.Logger;
+
+/**
+ * A simple Java object (POJO) representing the criteria of a session search within a
+ * conference. Every criterion is optional.
+ *
+ * The type and one range run in the datastore, which allows inequalities on a single
+ * property: the start time window if given, else the duration bounds. The duration bounds
+ * left over are checked in memory.
+ */
+public class SessionQueryForm {
+
+    private static final Logger LOG = Logger.getLogger(SessionQueryForm.class.getName());
+
+    private SessionType type;
+
+    /**
+     * The earliest start time, inclusive.
+     */
+    private Date startTimeFrom;
+
+    /**
+     * The latest start time, inclusive.
+     */
+    private Date startTimeTo;
+
+    /**
+     * The shortest duration in minutes, inclusive.
+     */
+    private Integer minDurationMinutes;
+
+    /**
+     * The longest duration in minutes, inclusive.
+     */
+    private Integer maxDurationMinutes;
+
+    public SessionQueryForm() {}
+
+    public SessionType getType() {
+        return type;
+    }
+
+    public Date getStartTimeFrom() {
+        return startTimeFrom == null ? null : new Date(startTimeFrom.getTime());
+    }
+
+    public Date getStartTimeTo() {
+        return startTimeTo == null ? null : new Date(startTimeTo.getTime());
+    }
+
+    public Integer getMinDurationMinutes() {
+        return minDurationMinutes;
+    }
+
+    public Integer getMaxDurationMinutes() {
+        return maxDurationMinutes;
+    }
+
+    /**
+     * Sets the type of the sessions.
+     *
+     * @param type The type of session to search for.
+     * @return this for method chaining.
+     */
+    public SessionQueryForm type(SessionType type) {
+        this.type = type;
+        return this;
+    }
+
+    /**
+     * Sets the start time window of the sessions.
+     *
+     * @param from The earliest start time, null for no bound.
+     * @param to The latest start time, null for no bound.
+     * @return this for method chaining.
+     */
+    public SessionQueryForm startTime(Date from, Date to) {
+        this.startTimeFrom = from == null ? null : new Date(from.getTime());
+        this.startTimeTo = to == null ? null : new Date(to.getTime());
+        return this;
+    }
+
+    /**
+     * Sets the duration bounds of the sessions.
+     *
+     * @param min The shortest duration in minutes, null for no bound.
+     * @param max The longest duration in minutes, null for no bound.
+     * @return this for method chaining.
+     */
+    public SessionQueryForm durationMinutes(Integer min, Integer max) {
+        this.minDurationMinutes = min;
+        this.maxDurationMinutes = max;
+        return this;
+    }
+
+    private boolean hasStartTimeRange() {
+        return startTimeFrom != null || startTimeTo != null;
+    }
+
+    private boolean hasDurationRange() {
+        return minDurationMinutes != null || maxDurationMinutes != null;
+    }
+
+    /**
+     * Checks if the datastore query leaves the duration bounds to check in memory.
+     *
+     * @return true if both a start time window and duration bounds are given.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public boolean hasInMemoryFilters() {
+        return hasStartTimeRange() && hasDurationRange();
+    }
+
+    /**
+     * Returns an Objectify Query object for the sessions of a conference matching the
+     * criteria the datastore can run.
+     *
+     * @param conferenceKey The key of the conference.
+     * @return an Objectify Query, ordered by the range property if any, else by speaker.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public Query<Session> getQuery(final Key<Conference> conferenceKey) {
+        // Sessions have the conference, without its organizer, as their parent.
+        Query<Session> query = ofy().load()
+                                    .type(Session.class)
+                                    .ancestor(Key.create(Conference.class,
+                                            conferenceKey.getId()));
+        if (type != null) {
+            query = query.filter("type =", type);
+        }
+        if (hasStartTimeRange()) {
+            if (startTimeFrom != null) {
+                query = query.filter("startTime >=", startTimeFrom);
+            }
+            if (startTimeTo != null) {
+                query = query.filter("startTime <=", startTimeTo);
+            }
+            query = query.order("startTime");
+        } else if (hasDurationRange()) {
+            if (minDurationMinutes != null) {
+                query = query.filter("durationMinutes >=", minDurationMinutes);
+            }
+            if (maxDurationMinutes != null) {
+                query = query.filter("durationMinutes <=", maxDurationMinutes);
+            }
+            query = query.order("durationMinutes");
+        } else {
+            query = query.order("speaker");
+        }
+        LOG.info(query.toString());
+        return query;
+    }
+
+    /**
+     * Checks the duration bounds the datastore query leaves out. Sessions without a
+     * duration never match, like in the datastore.
+     *
+     * @param session A Session returned by the datastore query.
+     * @return true if the session is within the duration bounds.
+     */
+    public boolean matches(final Session session) {
+        if (!hasInMemoryFilters()) {
+            return true;
+        }
+        Integer duration = session.getDurationMinutes();
+        if (duration == null) {
+            return false;
+        }
+        return (minDurationMinutes == null || duration >= minDurationMinutes)
+                && (maxDurationMinutes == null || duration <= maxDurationMinutes);
+    }
+}
@@ -0,0 +1,464 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.devrel.training.conference.Constants;
+import com.google.devrel.training.conference.domain.AdmissionTicket;
+import com.google.devrel.training.conference.domain.AdmissionTicket.Status;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.domain.Registration;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Work;
+
+/**
+ * Admission queue for conferences whose registration opens to a crowd.
+ *
+ * Instead of racing each other in registerForConference, users enqueue an AdmissionTicket
+ * and a single worker per conference books the seats in arrival order, a batch of tickets
+ * per transaction. The worker is started by a task named after the conference and a time
+ * bucket, so a burst of requests starts it once per bucket.
+ *
+ * Tickets finding no seats left are waitlisted, and promoted by the worker when seats are
+ * given back. Positions are served from memcache: in the queue from the number each ticket
+ * draws on arrival and the head the worker reached, in the waitlist from cached arrival times.
+ */
+public class AdmissionService {
+
+    public static final String ADMIT_REGISTRATIONS_URL = "/tasks/admit_registrations";
+
+    /**
+     * The most tickets admitted per transaction, see getBatchSize.
+     */
+    public static final int BATCH_SIZE = 10;
+
+    /**
+     * The number of entity groups a transaction can touch.
+     */
+    private static final int MAX_ENTITY_GROUPS_PER_TRANSACTION = 25;
+
+    private static final String REGISTERED = "Registration successful.";
+
+    private static final String ALREADY_REGISTERED = "Already registered.";
+
+    private static final String NO_SEATS_LEFT = "No seats left.";
+
+    private static final String CONFERENCE_NOT_FOUND = "Conference not found.";
+
+    private static final String WAITLISTED = "No seats left, waitlisted.";
+
+    /**
+     * The number of waitlisted tickets whose positions are served from memcache.
+     */
+    private static final int MAX_CACHED_WAITLIST = 1000;
+
+    /**
+     * Length of the time buckets naming the worker tasks.
+     */
+    private static final long BUCKET_MILLIS = 1000;
+
+    /**
+     * Tickets waiting longer than this restart the worker when polled, in case the ticket
+     * wasn't visible to the queries of the worker yet.
+     */
+    private static final long STALE_TICKET_MILLIS = 30 * 1000;
+
+    /**
+     * Puts the user into the admission queue of a conference.
+     * A user who is already waiting or waitlisted keeps their place.
+     *
+     * @param websafeConferenceKey String representation of Conference key.
+     * @param userId The userId of the user.
+     * @return the ticket of the user, with its position if it is waiting.
+     */
+    public static AdmissionTicket requestAdmission(final String websafeConferenceKey,
+                                                   final String userId) {
+        AdmissionTicket ticket = ofy().transact(new Work<AdmissionTicket>() {
+            public AdmissionTicket run() {
+                AdmissionTicket ticket = ofy().load()
+                        .key(AdmissionTicket.createKey(websafeConferenceKey, userId)).now();
+                if (ticket == null) {
+                    ticket = new AdmissionTicket(websafeConferenceKey, userId,
+                            nextSequence(websafeConferenceKey));
+                } else if (ticket.getStatus() == Status.WAITING
+                        || ticket.getStatus() == Status.WAITLISTED) {
+                    return ticket;
+                } else {
+                    ticket.requeue(nextSequence(websafeConferenceKey));
+                }
+                ofy().save().entity(ticket).now();
+                return ticket;
+            }
+        });
+        if (ticket.getStatus() == Status.WAITLISTED) {
+            ticket.setPosition(getWaitlistPosition(ticket));
+        } else {
+            startWorker(websafeConferenceKey);
+            ticket.setPosition(getPosition(ticket));
+        }
+        return ticket;
+    }
+
+    /**
+     * Returns the ticket of the user, with its position if it is waiting.
+     *
+     * @param websafeConferenceKey String representation of Conference key.
+     * @param userId The userId of the user.
+     * @return the ticket, or null if the user never requested admission.
+     */
+    public static AdmissionTicket getTicket(final String websafeConferenceKey,
+                                            final String userId) {
+        AdmissionTicket ticket = ofy().load()
+                .key(AdmissionTicket.createKey(websafeConferenceKey, userId)).now();
+        if (ticket != null && ticket.getStatus() == Status.WAITING) {
+            if (System.currentTimeMillis() - ticket.getRequested().getTime()
+                    > STALE_TICKET_MILLIS) {
+                startWorker(websafeConferenceKey);
+            }
+            ticket.setPosition(getPosition(ticket));
+        } else if (ticket != null && ticket.getStatus() == Status.WAITLISTED) {
+            ticket.setPosition(getWaitlistPosition(ticket));
+        }
+        return ticket;
+    }
+
+    /**
+     * Returns the position of a waiting ticket, from its sequence number and the head of the
+     * queue in memcache, so polling costs no query. Both are estimates: numbers drawn by
+     * retried transactions and tickets which left the queue still count.
+     */
+    private static int getPosition(final AdmissionTicket ticket) {
+        if (ticket.getSequence() == 0) {
+            return countPosition(ticket);
+        }
+        return (int) Math.max(1, ticket.getSequence() - getHead(ticket));
+    }
+
+    /**
+     * Counts the tickets with the same status which arrived before the given one.
+     * The count comes from a global query, so it is an estimate.
+     */
+    private static int countPosition(final AdmissionTicket ticket) {
+        return ofy().load().type(AdmissionTicket.class)
+                .filter("websafeConferenceKey", ticket.getWebsafeConferenceKey())
+                .filter("status", ticket.getStatus())
+                .filter("requested <", ticket.getRequested())
+                .count() + 1;
+    }
+
+    /**
+     * Draws the next sequence number of the queue of a conference from a counter in
+     * memcache. A missing counter restarts after the newest ticket of the conference.
+     *
+     * @return the number, or 0 if memcache is unavailable.
+     */
+    private static long nextSequence(final String websafeConferenceKey) {
+        MemcacheService memcacheService = MemcacheServiceFactory.getMemcacheService();
+        String key = Constants.MEMCACHE_ADMISSION_SEQUENCE_PREFIX + websafeConferenceKey;
+        Long sequence = memcacheService.increment(key, 1);
+        if (sequence == null) {
+            // Drawn in the transaction of the ticket, which can't run a global query.
+            AdmissionTicket newest = ofy().transactionless().load().type(AdmissionTicket.class)
+                    .filter("websafeConferenceKey", websafeConferenceKey)
+                    .order("-sequence")
+                    .first()
+                    .now();
+            sequence = memcacheService.increment(key, 1,
+                    newest == null ? 0L : newest.getSequence());
+        }
+        return sequence == null ? 0 : sequence;
+    }
+
+    /**
+     * Returns the sequence number of the latest ticket the worker took out of the waiting
+     * queue, seeding it from the oldest waiting ticket if memcache lost it.
+     */
+    private static long getHead(final AdmissionTicket ticket) {
+        MemcacheService memcacheService = MemcacheServiceFactory.getMemcacheService();
+        String key = Constants.MEMCACHE_ADMISSION_HEAD_PREFIX + ticket.getWebsafeConferenceKey();
+        Long head = (Long) memcacheService.get(key);
+        if (head == null) {
+            AdmissionTicket oldest = ofy().load().type(AdmissionTicket.class)
+                    .filter("websafeConferenceKey", ticket.getWebsafeConferenceKey())
+                    .filter("status", Status.WAITING)
+                    .order("requested")
+                    .first()
+                    .now();
+            head = (oldest == null ? ticket.getSequence() : oldest.getSequence()) - 1;
+            memcacheService.put(key, head, null, SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+        }
+        return head;
+    }
+
+    /**
+     * Starts the worker of the conference, once per time bucket.
+     *
+     * @param websafeConferenceKey String representation of Conference key.
+     */
+    public static void startWorker(final String websafeConferenceKey) {
+        long bucket = System.currentTimeMillis() / BUCKET_MILLIS;
+        try {
+            QueueFactory.getDefaultQueue().add(TaskOptions.Builder
+                    .withUrl(ADMIT_REGISTRATIONS_URL)
+                    .taskName("admit-" + websafeConferenceKey + "-" + bucket)
+                    .etaMillis((bucket + 1) * BUCKET_MILLIS)
+                    .param("websafeConferenceKey", websafeConferenceKey));
+        } catch (TaskAlreadyExistsException e) {
+            // Another request started the worker for this bucket already.
+        }
+    }
+
+    /**
+     * Adds a task starting the worker of the conference to the current transaction.
+     * Used when seats are given back, so the waitlist gets promoted.
+     *
+     * Transactional tasks can't be named, so this task only starts the worker through
+     * startWorker, which coalesces the seats freed within a time bucket into one run.
+     *
+     * @param websafeConferenceKey String representation of Conference key.
+     */
+    public static void enqueuePromotion(final String websafeConferenceKey) {
+        QueueFactory.getDefaultQueue().add(ofy().getTransaction(), TaskOptions.Builder
+                .withUrl(ADMIT_REGISTRATIONS_URL)
+                .param("websafeConferenceKey", websafeConferenceKey)
+                .param("coalesce", "true"));
+    }
+
+    /**
+     * Runs the worker of a conference once.
+     *
+     * Waitlisted tickets are promoted first, as many as there are seats available, since
+     * they arrived before the waiting ones. Then the next batch of waiting tickets is
+     * admitted, or waitlisted if there are no seats left.
+     *
+     * @param websafeConferenceKey String representation of Conference key.
+     * @return the number of tickets whose status changed, 0 when there is nothing left to do.
+     */
+    public static int admitNext(final String websafeConferenceKey) {
+        int processed = 0;
+        Conference conference = ofy().load()
+                .key(Key.<Conference>create(websafeConferenceKey)).now();
+        int seatsAvailable = conference == null ? 0
+                : SeatShardService.getSeatsAvailable(conference);
+        int batchSize = conference == null ? BATCH_SIZE : getBatchSize(conference);
+        if (seatsAvailable > 0) {
+            processed += admitBatch(websafeConferenceKey, Status.WAITLISTED,
+                    Math.min(batchSize, seatsAvailable));
+        }
+        processed += admitBatch(websafeConferenceKey, Status.WAITING, batchSize);
+        if (processed > 0) {
+            cacheWaitlist(websafeConferenceKey);
+        }
+        return processed;
+    }
+
+    /**
+     * Returns the number of tickets admitted per transaction for a conference.
+     *
+     * The transaction touches the entity group of the conference, one group per admitted
+     * Registration, and may have to read every SeatShard of the conference to find the
+     * seats, so the shards are taken off the 25 groups first.
+     *
+     * @param conference The conference.
+     * @return the batch size, at most BATCH_SIZE.
+     */
+    private static int getBatchSize(final Conference conference) {
+        return Math.max(1, Math.min(BATCH_SIZE,
+                MAX_ENTITY_GROUPS_PER_TRANSACTION - 1 - conference.getSeatShards()));
+    }
+
+    /**
+     * Admits the next tickets with the given status in arrival order.
+     *
+     * The seats and Registrations are booked in one transaction. The tickets are updated
+     * after the commit; if that fails, the next run finds the Registrations active and
+     * admits the tickets again, so running a batch twice is harmless.
+     *
+     * @return the number of tickets whose status changed.
+     */
+    private static int admitBatch(final String websafeConferenceKey, final Status status,
+                                  final int limit) {
+        List<Key<AdmissionTicket>> keys = ofy().load().type(AdmissionTicket.class)
+                .filter("websafeConferenceKey", websafeConferenceKey)
+                .filter("status", status)
+                .order("requested")
+                .limit(limit)
+                .keys()
+                .list();
+        // The query is eventually consistent, so skip tickets a previous run already handled.
+        List<AdmissionTicket> tickets = new ArrayList<>(keys.size());
+        for (AdmissionTicket ticket : ofy().load().keys(keys).values()) {
+            if (ticket.getStatus() == status) {
+                tickets.add(ticket);
+            }
+        }
+        if (tickets.isEmpty()) {
+            return 0;
+        }
+
+        // Registrations made before the Registration ledger existed are only in the Profile.
+        List<Key<Profile>> profileKeys = new ArrayList<>(tickets.size());
+        for (AdmissionTicket ticket : tickets) {
+            profileKeys.add(Key.create(Profile.class, ticket.getUserId()));
+        }
+        final Map<Key<Profile>, Profile> profiles = ofy().load().keys(profileKeys);
+        final List<String> userIds = new ArrayList<>(tickets.size());
+        final List<Boolean> legacyRegistered = new ArrayList<>(tickets.size());
+        for (AdmissionTicket ticket : tickets) {
+            Profile profile = profiles.get(Key.create(Profile.class, ticket.getUserId()));
+            userIds.add(ticket.getUserId());
+            legacyRegistered.add(profile != null
+                    && profile.getConferenceKeysToAttend().contains(websafeConferenceKey));
+        }
+
+        Map<String, String> outcomes = ofy().transact(new Work<Map<String, String>>() {
+            public Map<String, String> run() {
+                Map<String, String> outcomes = new LinkedHashMap<>();
+                Conference conference = ofy().load()
+                        .key(Key.<Conference>create(websafeConferenceKey)).now();
+                if (conference == null) {
+                    for (String userId : userIds) {
+                        outcomes.put(userId, CONFERENCE_NOT_FOUND);
+                    }
+                    return outcomes;
+                }
+
+                int seatsAvailable = SeatShardService.getSeatsAvailable(conference);
+                List<Registration> admitted = new ArrayList<>();
+                for (int i = 0; i < userIds.size(); i++) {
+                    String userId = userIds.get(i);
+                    Registration registration = ofy().load()
+                            .key(Registration.createKey(websafeConferenceKey, userId)).now();
+                    if (registration == null ? legacyRegistered.get(i) : registration.isActive()) {
+                        outcomes.put(userId, ALREADY_REGISTERED);
+                    } else if (admitted.size() < seatsAvailable) {
+                        if (registration == null) {
+                            registration = new Registration(websafeConferenceKey, userId);
+                        } else {
+                            registration.activate();
+                        }
+                        admitted.add(registration);
+                        outcomes.put(userId, REGISTERED);
+                    } else {
+                        outcomes.put(userId, NO_SEATS_LEFT);
+                    }
+                }
+
+                // Direct registrations may have taken seats since getSeatsAvailable was read,
+                // so give up the places of the latest tickets until the booking fits. A failed
+                // booking changes no shard, and the batch size leaves room for all of them.
+                while (!admitted.isEmpty()) {
+                    try {
+                        SeatShardService.bookSeats(conference, admitted.size(),
+                                Registration.createKey(websafeConferenceKey,
+                                        admitted.get(0).getUserId()));
+                        break;
+                    } catch (IllegalArgumentException e) {
+                        Registration last = admitted.remove(admitted.size() - 1);
+                        outcomes.put(last.getUserId(), NO_SEATS_LEFT);
+                    }
+                }
+                if (admitted.isEmpty()) {
+                    return outcomes;
+                }
+
+                List<String> admittedUserIds = new ArrayList<>(admitted.size());
+                for (Registration registration : admitted) {
+                    admittedUserIds.add(registration.getUserId());
+                }
+                ofy().save().entities(admitted).now();
+                RegistrationService.enqueueProfileSyncs(admittedUserIds, websafeConferenceKey);
+                return outcomes;
+            }
+        });
+
+        if (outcomes.containsValue(REGISTERED)) {
+            // Show the new seats available at once, on this instance at least.
+            ConferenceCache.invalidate(Key.<Conference>create(websafeConferenceKey));
+        }
+
+        List<AdmissionTicket> changed = new ArrayList<>(tickets.size());
+        for (AdmissionTicket ticket : tickets) {
+            String reason = outcomes.get(ticket.getUserId());
+            if (reason.equals(REGISTERED) || reason.equals(ALREADY_REGISTERED)) {
+                ticket.admit(reason);
+            } else if (reason.equals(CONFERENCE_NOT_FOUND)) {
+                ticket.reject(reason);
+            } else if (status == Status.WAITING) {
+                ticket.waitlist(WAITLISTED);
+            } else {
+                // Still waitlisted.
+                continue;
+            }
+            changed.add(ticket);
+        }
+        ofy().save().entities(changed).now();
+        if (status == Status.WAITING) {
+            // The tickets left the waiting queue, moving up the ones behind them.
+            long head = 0;
+            for (AdmissionTicket ticket : tickets) {
+                head = Math.max(head, ticket.getSequence());
+            }
+            if (head > 0) {
+                MemcacheServiceFactory.getMemcacheService().put(
+                        Constants.MEMCACHE_ADMISSION_HEAD_PREFIX + websafeConferenceKey, head);
+            }
+        }
+        return changed.size();
+    }
+
+    /**
+     * Returns the position of a waitlisted ticket from the cached arrival times of the
+     * waitlist, rebuilding the cache if it is missing.
+     */
+    private static int getWaitlistPosition(final AdmissionTicket ticket) {
+        MemcacheService memcacheService = MemcacheServiceFactory.getMemcacheService();
+        long[] requested = (long[]) memcacheService.get(
+                Constants.MEMCACHE_WAITLIST_PREFIX + ticket.getWebsafeConferenceKey());
+        if (requested == null) {
+            requested = cacheWaitlist(ticket.getWebsafeConferenceKey());
+        }
+        int index = Arrays.binarySearch(requested, ticket.getRequested().getTime());
+        if (index < 0) {
+            // Not cached yet; the ticket was waitlisted after the last run of the worker.
+            index = -index - 1;
+        }
+        if (index >= MAX_CACHED_WAITLIST) {
+            return countPosition(ticket);
+        }
+        return index + 1;
+    }
+
+    /**
+     * Caches the sorted arrival times of the first MAX_CACHED_WAITLIST waitlisted tickets.
+     *
+     * @return the arrival times just cached.
+     */
+    private static long[] cacheWaitlist(final String websafeConferenceKey) {
+        List<AdmissionTicket> waitlist = ofy().load().type(AdmissionTicket.class)
+                .filter("websafeConferenceKey", websafeConferenceKey)
+                .filter("status", Status.WAITLISTED)
+                .order("requested")
+                .limit(MAX_CACHED_WAITLIST)
+                .list();
+        long[] requested = new long[waitlist.size()];
+        for (int i = 0; i < requested.length; i++) {
+            requested[i] = waitlist.get(i).getRequested().getTime();
+        }
+        MemcacheService memcacheService = MemcacheServiceFactory.getMemcacheService();
+        memcacheService.put(Constants.MEMCACHE_WAITLIST_PREFIX + websafeConferenceKey, requested);
+        return requested;
+    }
+}
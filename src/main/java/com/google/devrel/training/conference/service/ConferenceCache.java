@@ -0,0 +1,108 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.devrel.training.conference.domain.Conference;
+import com.googlecode.objectify.Key;
+
+/**
+ * Keeps the conferences read by getConference in the memory of the instance for a few
+ * seconds, so a burst of reads of a popular conference costs one load.
+ *
+ * A miss loads through a SingleFlight: the requests missing the same conference at once
+ * share the load of the first one, instead of all going to memcache and the datastore.
+ * Missing conferences are cached too. Cached conferences are shared between requests and
+ * must not be changed: code which changes a conference loads it in a transaction, which
+ * always bypasses this cache. Changes show on other instances, and on this one if a load
+ * was in flight, after at most EXPIRATION_SECONDS.
+ */
+public class ConferenceCache {
+
+    /**
+     * How long a conference stays cached, and so how stale it may be served.
+     */
+    private static final int EXPIRATION_SECONDS = 5;
+
+    private static final int LOCAL_SIZE = 1000;
+
+    private static final Cache<Key<Conference>, Optional<Conference>> LOCAL = CacheBuilder
+            .newBuilder()
+            .maximumSize(LOCAL_SIZE)
+            .expireAfterWrite(EXPIRATION_SECONDS, TimeUnit.SECONDS)
+            .build();
+
+    private static final SingleFlight<Key<Conference>, Optional<Conference>> LOADS =
+            new SingleFlight<>();
+
+    private static final AtomicLong HITS = new AtomicLong();
+
+    /**
+     * Returns a conference. In a transaction it is always read from the datastore.
+     *
+     * @param key The key of the conference.
+     * @return the conference, or null if there is none. Don't change it outside a
+     *          transaction.
+     */
+    public static Conference get(final Key<Conference> key) {
+        if (ofy().getTransaction() != null) {
+            return ofy().load().key(key).now();
+        }
+        Optional<Conference> cached = LOCAL.getIfPresent(key);
+        if (cached != null) {
+            HITS.incrementAndGet();
+            return cached.orNull();
+        }
+        return LOADS.get(key, new Callable<Optional<Conference>>() {
+            public Optional<Conference> call() {
+                Conference conference = ofy().load().key(key).now();
+                if (conference != null) {
+                    // Attaches the organizer and the sharded seats before other threads can
+                    // read the conference.
+                    conference.getOrganizerDisplayName();
+                    SeatShardService.attachSeatsAvailable(Collections.singletonList(conference));
+                }
+                Optional<Conference> result = Optional.fromNullable(conference);
+                LOCAL.put(key, result);
+                return result;
+            }
+        }).orNull();
+    }
+
+    /**
+     * Drops the cached copy of a conference. Call it after changing the conference.
+     *
+     * @param key The key of the conference.
+     */
+    public static void invalidate(final Key<Conference> key) {
+        LOCAL.invalidate(key);
+    }
+
+    /**
+     * Returns the counts of this instance. Reads are served by the cache, by a load, or
+     * by sharing the load in flight; the share of coalesced reads among the misses tells
+     * how much the SingleFlight saves.
+     *
+     * @return the hits, the loads and the coalesced reads, in this order.
+     */
+    public static long[] getStats() {
+        long[] loads = LOADS.getStats();
+        return new long[] {HITS.get(), loads[0], loads[1]};
+    }
+
+    /**
+     * Empties the cache and resets the counts of this instance.
+     */
+    public static void clearLocal() {
+        LOCAL.invalidateAll();
+        HITS.set(0);
+        LOADS.resetStats();
+    }
+}
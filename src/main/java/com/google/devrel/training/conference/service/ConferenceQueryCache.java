@@ -0,0 +1,256 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.Constants.MEMCACHE_CONFERENCE_QUERY_GENERATION_KEY;
+import static com.google.devrel.training.conference.Constants.MEMCACHE_CONFERENCE_QUERY_PLAN_PREFIX;
+import static com.google.devrel.training.conference.Constants.MEMCACHE_CONFERENCE_QUERY_PREFIX;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.devrel.training.conference.form.ConferenceQueryForm;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Field;
+
+/**
+ * Caches the pages of queryConferences as lists of conference keys, keyed by the signature
+ * of the filters, the page size and the cursor.
+ *
+ * Pages live in memcache, with a small in-process tier in front. Both are keyed by a
+ * generation number kept in memcache, so bumping the generation drops every cached page
+ * at once. The generation is read before running a query, so a page computed while the
+ * generation moves on is stored under the old one and never served.
+ *
+ * It also keeps the inequality field ConferenceQueryPlan picked for a filter signature, so
+ * the counts deciding it run once per signature rather than on every uncached first page.
+ * Choices outlive the generations of the pages: selectivity changes slowly, and a stale
+ * choice only makes a query slower, never wrong.
+ */
+public class ConferenceQueryCache {
+
+    /**
+     * How long a page stays in memcache.
+     */
+    private static final int EXPIRATION_SECONDS = 600;
+
+    /**
+     * The number of pages in the in-process tier.
+     */
+    private static final int LOCAL_SIZE = 200;
+
+    private static final Cache<String, Page> LOCAL = CacheBuilder.newBuilder()
+            .maximumSize(LOCAL_SIZE)
+            .expireAfterWrite(EXPIRATION_SECONDS, TimeUnit.SECONDS)
+            .build();
+
+    /**
+     * How long the choice of an inequality field stays in memcache.
+     */
+    private static final int CHOICE_EXPIRATION_SECONDS = 3600;
+
+    private static final Cache<String, Choice> LOCAL_CHOICES = CacheBuilder.newBuilder()
+            .maximumSize(LOCAL_SIZE)
+            .expireAfterWrite(CHOICE_EXPIRATION_SECONDS, TimeUnit.SECONDS)
+            .build();
+
+    private static final Random RANDOM = new Random();
+
+    private static final AtomicLong LOCAL_HITS = new AtomicLong();
+
+    private static final AtomicLong MEMCACHE_HITS = new AtomicLong();
+
+    private static final AtomicLong MISSES = new AtomicLong();
+
+    /**
+     * A cached page: the websafe keys of its conferences and the token of the next page.
+     */
+    public static class Page implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ArrayList<String> websafeConferenceKeys;
+
+        private final String nextPageToken;
+
+        public Page(final List<String> websafeConferenceKeys, final String nextPageToken) {
+            this.websafeConferenceKeys = new ArrayList<>(websafeConferenceKeys);
+            this.nextPageToken = nextPageToken;
+        }
+
+        public List<String> getWebsafeConferenceKeys() {
+            return Collections.unmodifiableList(websafeConferenceKeys);
+        }
+
+        public String getNextPageToken() {
+            return nextPageToken;
+        }
+    }
+
+    /**
+     * A cached choice of ConferenceQueryPlan: the inequality field sent to the datastore and
+     * the estimates which decided it.
+     */
+    public static class Choice implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Field field;
+
+        private final LinkedHashMap<Field, Integer> estimates;
+
+        public Choice(final Field field, final Map<Field, Integer> estimates) {
+            this.field = field;
+            this.estimates = new LinkedHashMap<>(estimates);
+        }
+
+        public Field getField() {
+            return field;
+        }
+
+        public Map<Field, Integer> getEstimates() {
+            return Collections.unmodifiableMap(estimates);
+        }
+    }
+
+    /**
+     * Returns the cache key of the page asked for by queryForm, in the current generation.
+     *
+     * @param queryForm The filters, the page size and the cursor of the page.
+     * @return the cache key of the page.
+     */
+    public static String cacheKey(final ConferenceQueryForm queryForm) {
+        return MEMCACHE_CONFERENCE_QUERY_PREFIX + getGeneration()
+                + "_" + queryForm.getPageSize()
+                + "_" + queryForm.getCursor()
+                + "_" + queryForm.getSignature();
+    }
+
+    /**
+     * Returns the cached page, looking in the in-process tier first.
+     *
+     * @param cacheKey The cache key from cacheKey.
+     * @return the cached page, or null on a miss.
+     */
+    public static Page get(final String cacheKey) {
+        Page page = LOCAL.getIfPresent(cacheKey);
+        if (page != null) {
+            LOCAL_HITS.incrementAndGet();
+            return page;
+        }
+        page = (Page) getMemcacheService().get(cacheKey);
+        if (page != null) {
+            MEMCACHE_HITS.incrementAndGet();
+            LOCAL.put(cacheKey, page);
+            return page;
+        }
+        MISSES.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Stores a page in both tiers.
+     *
+     * @param cacheKey The cache key from cacheKey, taken before running the query.
+     * @param page The page.
+     */
+    public static void put(final String cacheKey, final Page page) {
+        LOCAL.put(cacheKey, page);
+        getMemcacheService().put(cacheKey, page,
+                Expiration.byDeltaSeconds(EXPIRATION_SECONDS));
+    }
+
+    /**
+     * Returns the cached choice of the inequality field for a filter signature, looking in
+     * the in-process tier first.
+     *
+     * @param signature The signature of the filters, see ConferenceQueryForm.getSignature.
+     * @return the cached choice, or null on a miss.
+     */
+    public static Choice getChoice(final String signature) {
+        Choice choice = LOCAL_CHOICES.getIfPresent(signature);
+        if (choice == null) {
+            choice = (Choice) getMemcacheService().get(
+                    MEMCACHE_CONFERENCE_QUERY_PLAN_PREFIX + signature);
+            if (choice != null) {
+                LOCAL_CHOICES.put(signature, choice);
+            }
+        }
+        return choice;
+    }
+
+    /**
+     * Stores the choice of the inequality field for a filter signature in both tiers.
+     *
+     * @param signature The signature of the filters, see ConferenceQueryForm.getSignature.
+     * @param choice The choice.
+     */
+    public static void putChoice(final String signature, final Choice choice) {
+        LOCAL_CHOICES.put(signature, choice);
+        getMemcacheService().put(MEMCACHE_CONFERENCE_QUERY_PLAN_PREFIX + signature, choice,
+                Expiration.byDeltaSeconds(CHOICE_EXPIRATION_SECONDS));
+    }
+
+    /**
+     * Drops every cached page. Call it whenever a field the query form filters on changes.
+     */
+    public static void invalidate() {
+        getMemcacheService().increment(MEMCACHE_CONFERENCE_QUERY_GENERATION_KEY, 1,
+                randomGeneration());
+    }
+
+    /**
+     * Returns the hit and miss counts of this instance.
+     *
+     * @return the local hits, the memcache hits and the misses, in this order.
+     */
+    public static long[] getStats() {
+        return new long[] {LOCAL_HITS.get(), MEMCACHE_HITS.get(), MISSES.get()};
+    }
+
+    /**
+     * Empties the in-process tiers and resets the counts of this instance.
+     */
+    public static void clearLocal() {
+        LOCAL.invalidateAll();
+        LOCAL_CHOICES.invalidateAll();
+        LOCAL_HITS.set(0);
+        MEMCACHE_HITS.set(0);
+        MISSES.set(0);
+    }
+
+    /**
+     * Returns the current generation. A missing generation starts at a random number, so
+     * pages of an evicted generation can't be picked up again.
+     */
+    private static long getGeneration() {
+        MemcacheService memcacheService = getMemcacheService();
+        Long generation = (Long) memcacheService.get(MEMCACHE_CONFERENCE_QUERY_GENERATION_KEY);
+        if (generation == null) {
+            memcacheService.put(MEMCACHE_CONFERENCE_QUERY_GENERATION_KEY, randomGeneration(),
+                    null, SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+            generation = (Long) memcacheService.get(MEMCACHE_CONFERENCE_QUERY_GENERATION_KEY);
+        }
+        // Without memcache, fall back to a generation nobody else uses.
+        return generation == null ? randomGeneration() : generation;
+    }
+
+    private static long randomGeneration() {
+        // Memcache increments treat values as unsigned, so keep them well below the wrap.
+        return RANDOM.nextInt(Integer.MAX_VALUE);
+    }
+
+    private static MemcacheService getMemcacheService() {
+        return MemcacheServiceFactory.getMemcacheService();
+    }
+}
@@ -0,0 +1,140 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.Constants.MEMCACHE_FEATURED_SPEAKER_KEY;
+import static com.google.devrel.training.conference.Constants.MEMCACHE_FEATURED_SPEAKERS_PREFIX;
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Speaker;
+import com.googlecode.objectify.Key;
+
+/**
+ * Keeps the featured speakers of each conference: the speakers with at least
+ * SESSIONS_THRESHOLD sessions in it, ranked by their number of sessions.
+ *
+ * The ranking is recomputed by a task, read from the Speaker stats. Tasks are named after
+ * the conference and a time window, and run at the end of the window, so a burst of new
+ * sessions in a conference collapses into a single recompute covering all of them.
+ *
+ * Rankings live in memcache, with a small in-process tier in front. The in-process tier
+ * isn't told about recomputes, so it may lag by up to LOCAL_EXPIRATION_SECONDS.
+ */
+public class FeaturedSpeakerService {
+
+    /**
+     * The number of sessions which makes a speaker featured.
+     */
+    public static final int SESSIONS_THRESHOLD = 2;
+
+    /**
+     * The number of featured speakers kept per conference.
+     */
+    public static final int TOP_K = 5;
+
+    /**
+     * The length of the window collapsing the recomputes of a conference.
+     */
+    private static final long WINDOW_MILLIS = 10 * 1000;
+
+    private static final int LOCAL_EXPIRATION_SECONDS = 30;
+
+    /**
+     * The number of conferences in the in-process tier.
+     */
+    private static final int LOCAL_SIZE = 500;
+
+    private static final Cache<Long, List<Speaker>> LOCAL = CacheBuilder.newBuilder()
+            .maximumSize(LOCAL_SIZE)
+            .expireAfterWrite(LOCAL_EXPIRATION_SECONDS, TimeUnit.SECONDS)
+            .build();
+
+    /**
+     * Schedules a recompute of the featured speakers of a conference at the end of the
+     * current window, unless one is scheduled already. Call it once a session commits.
+     *
+     * @param websafeConferenceKey String representation of Conference key.
+     */
+    public static void scheduleRecompute(final String websafeConferenceKey) {
+        long conferenceId = Key.<Conference>create(websafeConferenceKey).getId();
+        long now = System.currentTimeMillis();
+        long window = now / WINDOW_MILLIS;
+        try {
+            QueueFactory.getDefaultQueue().add(TaskOptions.Builder
+                    .withUrl("/tasks/set_featured_speaker")
+                    .taskName("featured-speakers-" + conferenceId + "-" + window)
+                    .countdownMillis((window + 1) * WINDOW_MILLIS - now)
+                    .param("websafeConferenceKey", websafeConferenceKey));
+        } catch (TaskAlreadyExistsException e) {
+            // The task of this window hasn't run yet, and will see the new session.
+        }
+    }
+
+    /**
+     * Ranks the featured speakers of a conference from their stats, and caches them.
+     *
+     * @param websafeConferenceKey String representation of Conference key.
+     * @return the featured speakers, most sessions first.
+     */
+    public static List<Speaker> recompute(final String websafeConferenceKey) {
+        long conferenceId = Key.<Conference>create(websafeConferenceKey).getId();
+        // The stats have the conference, without its organizer, as their parent.
+        List<Speaker> speakers = new ArrayList<>(ofy().load()
+                .type(Speaker.class)
+                .ancestor(Key.create(Conference.class, conferenceId))
+                .filter("sessionCount >=", SESSIONS_THRESHOLD)
+                .order("-sessionCount")
+                .limit(TOP_K)
+                .list());
+
+        MemcacheService memcacheService = MemcacheServiceFactory.getMemcacheService();
+        memcacheService.put(MEMCACHE_FEATURED_SPEAKERS_PREFIX + conferenceId, speakers);
+        if (!speakers.isEmpty()) {
+            // The global slot keeps the top speaker of the latest conference recomputed.
+            memcacheService.put(MEMCACHE_FEATURED_SPEAKER_KEY, speakers.get(0));
+            HomePageCache.invalidate(MEMCACHE_FEATURED_SPEAKER_KEY);
+        }
+        LOCAL.put(conferenceId, speakers);
+        return Collections.unmodifiableList(speakers);
+    }
+
+    /**
+     * Returns the featured speakers of a conference, looking in the in-process tier first,
+     * then in memcache, and recomputing them on a miss.
+     *
+     * @param websafeConferenceKey String representation of Conference key.
+     * @return the featured speakers, most sessions first.
+     */
+    @SuppressWarnings("unchecked")
+    public static List<Speaker> get(final String websafeConferenceKey) {
+        long conferenceId = Key.<Conference>create(websafeConferenceKey).getId();
+        List<Speaker> speakers = LOCAL.getIfPresent(conferenceId);
+        if (speakers == null) {
+            speakers = (List<Speaker>) MemcacheServiceFactory.getMemcacheService()
+                    .get(MEMCACHE_FEATURED_SPEAKERS_PREFIX + conferenceId);
+            if (speakers == null) {
+                return recompute(websafeConferenceKey);
+            }
+            LOCAL.put(conferenceId, speakers);
+        }
+        return Collections.unmodifiableList(speakers);
+    }
+
+    /**
+     * Empties the in-process tier.
+     */
+    public static void clearLocal() {
+        LOCAL.invalidateAll();
+    }
+}
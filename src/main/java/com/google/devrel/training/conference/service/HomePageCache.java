@@ -0,0 +1,111 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.Constants.MEMCACHE_ANNOUNCEMENTS_KEY;
+import static com.google.devrel.training.conference.Constants.MEMCACHE_FEATURED_SPEAKER_KEY;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.google.appengine.api.ThreadManager;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.common.base.Optional;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.devrel.training.conference.domain.Speaker;
+
+/**
+ * Keeps the values every visitor of the home page reads, the announcement and the featured
+ * speaker, in the memory of the instance in front of memcache.
+ *
+ * A value older than REFRESH_SECONDS is reloaded from memcache on a thread started by the
+ * next request which reads it, while that request and concurrent ones keep getting the
+ * older value. Guava 14 has no CacheLoader.asyncReloading, so reload starts the thread. A value not read for
+ * EXPIRATION_SECONDS is dropped. Writers on this instance invalidate the value at once;
+ * other instances see it after at most REFRESH_SECONDS.
+ */
+public class HomePageCache {
+
+    /**
+     * How long a value is served before it is reloaded from memcache.
+     */
+    public static final int REFRESH_SECONDS = 10;
+
+    /**
+     * How long a value may be served at all without reloading it.
+     */
+    private static final int EXPIRATION_SECONDS = 60;
+
+    private static final LoadingCache<String, Optional<Object>> LOCAL = CacheBuilder
+            .newBuilder()
+            .maximumSize(16)
+            .refreshAfterWrite(REFRESH_SECONDS, TimeUnit.SECONDS)
+            .expireAfterWrite(EXPIRATION_SECONDS, TimeUnit.SECONDS)
+            .build(new CacheLoader<String, Optional<Object>>() {
+                public Optional<Object> load(String key) {
+                    return Optional.fromNullable(
+                            MemcacheServiceFactory.getMemcacheService().get(key));
+                }
+
+                @Override
+                public ListenableFuture<Optional<Object>> reload(final String key,
+                                                                 Optional<Object> oldValue) {
+                    // Threads of the request can use the App Engine APIs, but not outlive
+                    // it. If it ends first, the reload fails and the next one tries again.
+                    ThreadFactory threadFactory = ThreadManager.currentRequestThreadFactory();
+                    if (threadFactory == null) {
+                        // Outside of a request.
+                        return Futures.immediateFuture(load(key));
+                    }
+                    ListenableFutureTask<Optional<Object>> task = ListenableFutureTask.create(
+                            new Callable<Optional<Object>>() {
+                                public Optional<Object> call() {
+                                    return load(key);
+                                }
+                            });
+                    threadFactory.newThread(task).start();
+                    return task;
+                }
+            });
+
+    /**
+     * Returns the announcement of nearly sold out conferences.
+     *
+     * @return the announcement, or null if there is none.
+     */
+    public static String getAnnouncement() {
+        Object announcement = LOCAL.getUnchecked(MEMCACHE_ANNOUNCEMENTS_KEY).orNull();
+        return announcement == null ? null : announcement.toString();
+    }
+
+    /**
+     * Returns the top speaker of the conference whose speakers were ranked last.
+     *
+     * @return the stats of the speaker, or null if there is none.
+     */
+    public static Speaker getFeaturedSpeaker() {
+        Object speaker = LOCAL.getUnchecked(MEMCACHE_FEATURED_SPEAKER_KEY).orNull();
+        // Values cached before the stats existed are plain messages.
+        return speaker instanceof Speaker ? (Speaker) speaker : null;
+    }
+
+    /**
+     * Drops the value of a memcache key. Call it after changing the value in memcache.
+     *
+     * @param memcacheKey The memcache key.
+     */
+    public static void invalidate(final String memcacheKey) {
+        LOCAL.invalidate(memcacheKey);
+    }
+
+    /**
+     * Empties the cache of this instance.
+     */
+    public static void clearLocal() {
+        LOCAL.invalidateAll();
+    }
+}
@@ -0,0 +1,44 @@
+package com.google.devrel.training.conference.service;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Properties;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import com.google.appengine.api.utils.SystemProperty;
+
+/**
+ * Sends mail through the App Engine Mail service, from noreply@APP_ID.appspotmail.com.
+ * A single mail Session is shared by all the mails.
+ */
+public class JavaMailTransport implements MailTransport {
+
+    private final Session session = Session.getInstance(new Properties(), null);
+
+    private final InternetAddress from;
+
+    public JavaMailTransport() {
+        try {
+            from = new InternetAddress(String.format("noreply@%s.appspotmail.com",
+                    SystemProperty.applicationId.get()), "Conference Central");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void send(final String to, final String subject, final String body)
+            throws MessagingException {
+        Message message = new MimeMessage(session);
+        message.setFrom(from);
+        message.addRecipient(Message.RecipientType.TO, new InternetAddress(to));
+        message.setSubject(subject);
+        message.setText(body);
+        Transport.send(message);
+    }
+}
@@ -0,0 +1,294 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskHandle;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.appengine.api.taskqueue.TaskOptions.Method;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.DeadLetterMail;
+import com.google.devrel.training.conference.domain.Profile;
+import com.googlecode.objectify.Key;
+
+/**
+ * Sends the mail of the application through the "mail" pull queue.
+ *
+ * Mails are enqueued as pull tasks, in the transaction which causes them if there is one.
+ * A worker leases them in batches and sends them through a single MailTransport, at most
+ * SENDS_PER_SECOND, see drain. A mail which fails is left on the queue with its lease
+ * extended by an exponential backoff, so it is leased again later. After MAX_ATTEMPTS it is
+ * moved to a DeadLetterMail instead of being retried forever.
+ *
+ * Mails about entities carry only the key of the entity, so the transaction enqueueing them
+ * stays small and the mail shows the entity as it is when sent. The worker loads the
+ * entities of a whole batch with a single get and renders the mails there.
+ */
+public class MailService {
+
+    private static final Logger LOG = Logger.getLogger(MailService.class.getName());
+
+    public static final String QUEUE_NAME = "mail";
+
+    /**
+     * The number of mails leased at once.
+     */
+    private static final int BATCH_SIZE = 100;
+
+    /**
+     * How long a leased batch is held. A batch takes BATCH_SIZE / SENDS_PER_SECOND seconds.
+     */
+    private static final int LEASE_SECONDS = 60;
+
+    /**
+     * The default sending rate, kept below the quota of the Mail service.
+     */
+    private static final double SENDS_PER_SECOND = 8;
+
+    public static final int MAX_ATTEMPTS = 5;
+
+    private static final int BASE_BACKOFF_SECONDS = 30;
+
+    private static final int MAX_BACKOFF_SECONDS = 3600;
+
+    private static final RateLimiter RATE_LIMITER = RateLimiter.create(SENDS_PER_SECOND);
+
+    private static volatile MailTransport transport;
+
+    private static final AtomicLong SENT = new AtomicLong();
+
+    private static final AtomicLong RETRIED = new AtomicLong();
+
+    private static final AtomicLong DEAD_LETTERED = new AtomicLong();
+
+    private static final String CONFIRMATION_SUBJECT = "You created a new conference";
+
+    /**
+     * Enqueues the mail confirming the creation of a conference to its organizer, at most
+     * once per conference. The task is named after the conference, so it is never part of
+     * a transaction; see OutboxService. The name holds the whole key, as conference ids are
+     * only unique under their organizer.
+     *
+     * @param conferenceKey The key of the conference.
+     */
+    public static void enqueueConfirmation(final Key<Conference> conferenceKey) {
+        try {
+            getQueue().add((Transaction) null, TaskOptions.Builder
+                    .withMethod(Method.PULL)
+                    .taskName("confirmation-" + conferenceKey.getString())
+                    .param("websafeConferenceKey", conferenceKey.getString()));
+        } catch (TaskAlreadyExistsException e) {
+            // The event was delivered again, and the mail is enqueued already.
+        }
+    }
+
+    /**
+     * Enqueues the mail confirming the creation of a conference, already described. Only
+     * for confirmation tasks enqueued before the mails carried keys.
+     *
+     * @param email The address of the organizer.
+     * @param conferenceInfo The description of the conference.
+     */
+    public static void enqueueConfirmation(final String email, final String conferenceInfo) {
+        enqueue(email, CONFIRMATION_SUBJECT, confirmationBody(conferenceInfo));
+    }
+
+    /**
+     * Enqueues a mail. Joins the current transaction if there is one.
+     *
+     * @param to The address of the recipient.
+     * @param subject The subject.
+     * @param body The plain text body.
+     */
+    public static void enqueue(final String to, final String subject, final String body) {
+        getQueue().add(ofy().getTransaction(), TaskOptions.Builder
+                .withMethod(Method.PULL)
+                .param("to", to)
+                .param("subject", subject)
+                .param("body", body));
+    }
+
+    /**
+     * Sends batches of mails until the queue has no mail ready or the deadline passes.
+     *
+     * @param deadlineMillis The time, in milliseconds since the epoch, after which no new
+     *                       batch is leased.
+     * @return the number of mails leased.
+     */
+    public static int drain(final long deadlineMillis) {
+        int leased = 0;
+        while (System.currentTimeMillis() < deadlineMillis) {
+            int batch = processBatch();
+            leased += batch;
+            if (batch < BATCH_SIZE) {
+                break;
+            }
+        }
+        return leased;
+    }
+
+    /**
+     * Leases a batch of mails and sends them.
+     *
+     * @return the number of mails leased.
+     */
+    public static int processBatch() {
+        Queue queue = getQueue();
+        List<TaskHandle> tasks = queue.leaseTasks(LEASE_SECONDS, TimeUnit.SECONDS, BATCH_SIZE);
+        List<TaskHandle> done = new ArrayList<>(tasks.size());
+        List<DeadLetterMail> deadLetters = new ArrayList<>();
+        MailTransport transport = getTransport();
+        Map<TaskHandle, Map<String, String>> batchParams = new HashMap<>();
+        Set<Key<?>> keys = new LinkedHashSet<>();
+        for (TaskHandle task : tasks) {
+            Map<String, String> params = new HashMap<>();
+            try {
+                for (Map.Entry<String, String> param : task.extractParams()) {
+                    params.put(param.getKey(), param.getValue());
+                }
+                if (params.containsKey("websafeConferenceKey")) {
+                    Key<Conference> conferenceKey = Key.create(params.get("websafeConferenceKey"));
+                    keys.add(conferenceKey);
+                    keys.add(conferenceKey.getParent());
+                }
+            } catch (Exception e) {
+                // A malformed task fails again when rendered, and is handled there.
+            }
+            batchParams.put(task, params);
+        }
+        Map<Key<Object>, Object> entities = keys.isEmpty()
+                ? new HashMap<Key<Object>, Object>()
+                : ofy().load().<Object>keys(keys.toArray(new Key<?>[keys.size()]));
+
+        for (TaskHandle task : tasks) {
+            Map<String, String> params = batchParams.get(task);
+            String error;
+            try {
+                if (params.containsKey("websafeConferenceKey")
+                        && !renderConfirmation(params, entities)) {
+                    LOG.info("Dropped the confirmation of the deleted conference "
+                            + params.get("websafeConferenceKey"));
+                    done.add(task);
+                    continue;
+                }
+                if (params.get("to") == null) {
+                    throw new IllegalArgumentException("The mail has no recipient.");
+                }
+                RATE_LIMITER.acquire();
+                transport.send(params.get("to"), params.get("subject"), params.get("body"));
+                SENT.incrementAndGet();
+                done.add(task);
+                continue;
+            } catch (Exception e) {
+                LOG.log(Level.WARNING, "Failed to send a mail to " + params.get("to"), e);
+                error = String.valueOf(e);
+            }
+
+            // The retry count of a pull task is the number of times it was leased before.
+            int attempts = task.getRetryCount() + 1;
+            // A mail without a recipient would fail the same way every time.
+            if (attempts >= MAX_ATTEMPTS || params.get("to") == null) {
+                deadLetters.add(new DeadLetterMail(params.get("to"), params.get("subject"),
+                        params.get("body"), attempts, error));
+                done.add(task);
+            } else {
+                queue.modifyTaskLease(task, backoffSeconds(attempts), TimeUnit.SECONDS);
+                RETRIED.incrementAndGet();
+            }
+        }
+        if (!deadLetters.isEmpty()) {
+            ofy().save().entities(deadLetters).now();
+            DEAD_LETTERED.addAndGet(deadLetters.size());
+        }
+        if (!done.isEmpty()) {
+            queue.deleteTask(done);
+        }
+        return tasks.size();
+    }
+
+    /**
+     * Renders the confirmation of a conference into the params of its task.
+     *
+     * @param params The params of the task.
+     * @param entities The entities loaded for the batch.
+     * @return false if the conference no longer exists.
+     */
+    private static boolean renderConfirmation(final Map<String, String> params,
+                                              final Map<Key<Object>, Object> entities) {
+        Key<Conference> conferenceKey = Key.create(params.get("websafeConferenceKey"));
+        Conference conference = (Conference) entities.get(conferenceKey);
+        if (conference == null) {
+            return false;
+        }
+        Profile organizer = (Profile) entities.get(conferenceKey.getParent());
+        params.put("to", organizer == null ? null : organizer.getMainEmail());
+        params.put("subject", CONFIRMATION_SUBJECT);
+        params.put("body", confirmationBody(conference.toString()));
+        return true;
+    }
+
+    private static String confirmationBody(final String conferenceInfo) {
+        return "You have created the following conference:\n" + conferenceInfo;
+    }
+
+    /**
+     * Returns the counts of this instance.
+     *
+     * @return the mails sent, retried and dead lettered, in this order.
+     */
+    public static long[] getStats() {
+        return new long[] {SENT.get(), RETRIED.get(), DEAD_LETTERED.get()};
+    }
+
+    /**
+     * Replaces the transport, and the sending rate, for tests and benchmarks.
+     *
+     * @param mailTransport The transport, or null for the Mail service.
+     * @param sendsPerSecond The sending rate.
+     */
+    public static void setTransport(final MailTransport mailTransport,
+                                    final double sendsPerSecond) {
+        transport = mailTransport;
+        RATE_LIMITER.setRate(sendsPerSecond);
+        SENT.set(0);
+        RETRIED.set(0);
+        DEAD_LETTERED.set(0);
+    }
+
+    /**
+     * Returns the delay before the next attempt: BASE_BACKOFF_SECONDS, doubled for each
+     * attempt made, up to MAX_BACKOFF_SECONDS.
+     */
+    static int backoffSeconds(final int attempts) {
+        int shift = Math.min(Math.max(attempts - 1, 0), 16);
+        return Math.min(MAX_BACKOFF_SECONDS, BASE_BACKOFF_SECONDS << shift);
+    }
+
+    private static MailTransport getTransport() {
+        MailTransport result = transport;
+        if (result == null) {
+            result = new JavaMailTransport();
+            transport = result;
+        }
+        return result;
+    }
+
+    private static Queue getQueue() {
+        return QueueFactory.getQueue(QUEUE_NAME);
+    }
+}
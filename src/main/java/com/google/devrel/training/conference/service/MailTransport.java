@@ -0,0 +1,19 @@
+package com.google.devrel.training.conference.service;
+
+import javax.mail.MessagingException;
+
+/**
+ * Sends a single mail. See MailService.
+ */
+public interface MailTransport {
+
+    /**
+     * Sends a mail from the application.
+     *
+     * @param to The address of the recipient.
+     * @param subject The subject.
+     * @param body The plain text body.
+     * @throws MessagingException If the mail can't be sent.
+     */
+    void send(String to, String subject, String body) throws MessagingException;
+}
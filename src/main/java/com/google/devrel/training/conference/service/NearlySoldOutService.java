@@ -0,0 +1,233 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.Constants.MEMCACHE_ANNOUNCEMENTS_KEY;
+import static com.google.devrel.training.conference.Constants.MEMCACHE_NEARLY_SOLD_OUT_KEY;
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.IdentifiableValue;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.OutboxEvent;
+import com.google.devrel.training.conference.domain.Registration;
+import com.google.devrel.training.conference.domain.SeatShard;
+import com.googlecode.objectify.Key;
+
+/**
+ * Maintains the set of nearly sold out conferences in memcache, and the announcement built
+ * from it.
+ *
+ * SeatShardService publishes the changes of the seats available which leave or reach the
+ * nearly sold out range as OutboxEvents, see publishSeatsChanged. Their delivery reads the
+ * exact number of seats and updates the set. Other changes cost nothing. The set is updated
+ * with compare-and-set, so concurrent deliveries don't drop each other's conferences.
+ *
+ * Moves within the range only reorder the announcement, which the next crossing or the
+ * cron job refreshes. The cron job also repairs the set for the changes whose estimate of
+ * the seats missed the range, see repair.
+ */
+public class NearlySoldOutService {
+
+    private static final Logger LOG = Logger.getLogger(NearlySoldOutService.class.getName());
+
+    /**
+     * Conferences with fewer seats available than this, but at least one, are nearly sold
+     * out.
+     */
+    public static final int NEARLY_SOLD_OUT_SEATS = 5;
+
+    private static final int MAX_CAS_ATTEMPTS = 10;
+
+    /**
+     * A conference of the set.
+     */
+    public static class Entry implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String name;
+
+        private final int seatsAvailable;
+
+        public Entry(final String name, final int seatsAvailable) {
+            this.name = name;
+            this.seatsAvailable = seatsAvailable;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getSeatsAvailable() {
+            return seatsAvailable;
+        }
+    }
+
+    /**
+     * Checks if a number of seats available is in the nearly sold out range.
+     *
+     * @param seatsAvailable The number of seats available.
+     * @return true if the conference is nearly sold out.
+     */
+    public static boolean isNearlySoldOut(final int seatsAvailable) {
+        return seatsAvailable > 0 && seatsAvailable < NEARLY_SOLD_OUT_SEATS;
+    }
+
+    /**
+     * Publishes a change of the seats of a conference if it leaves or reaches the nearly sold
+     * out range. Moves within the range, or far from it, publish nothing. Joins the current
+     * transaction, which must include the entity group of the owner. Called by the bookings
+     * of SeatShardService.
+     *
+     * The owner is the Registration the change was made for, not the Conference, so the
+     * event adds no write to the entity group of the conference, and registrations near the
+     * sell-out don't queue up behind each other. Their events are not ordered, which update
+     * doesn't need, as it reads the exact number of seats.
+     *
+     * @param owner The key of the Registration written with the change.
+     * @param websafeConferenceKey String representation of Conference key.
+     * @param before The seats available before the change.
+     * @param after The seats available after the change, possibly an estimate.
+     */
+    public static void publishSeatsChanged(final Key<Registration> owner,
+                                           final String websafeConferenceKey,
+                                           final int before, final int after) {
+        if (isNearlySoldOut(before) != isNearlySoldOut(after)) {
+            OutboxService.publish(owner, OutboxEvent.Type.SEATS_CHANGED, websafeConferenceKey,
+                    before, after);
+        }
+    }
+
+    /**
+     * Adds a conference to the set or removes it, according to its seats available, and
+     * updates the announcement.
+     *
+     * @param websafeConferenceKey String representation of Conference key.
+     */
+    public static void update(final String websafeConferenceKey) {
+        Conference conference = ofy().load()
+                .key(Key.<Conference>create(websafeConferenceKey)).now();
+        int seatsAvailable = conference == null ? 0
+                : SeatShardService.getSeatsAvailable(conference);
+        Entry entry = isNearlySoldOut(seatsAvailable)
+                ? new Entry(conference.getName(), seatsAvailable) : null;
+        if (!put(websafeConferenceKey, entry)) {
+            LOG.warning("Gave up updating the nearly sold out conferences with "
+                    + websafeConferenceKey + ", leaving it to the repair.");
+        }
+        publish();
+    }
+
+    /**
+     * Updates the conferences of the set and those the datastore reports as nearly sold
+     * out, in case a change missed the range.
+     *
+     * A conference with sharded seats is nearly sold out only if one of its shards has a few
+     * seats left, so the shards in the range are scanned and their conferences summed by
+     * update. Conferences without shards are found by their own seatsAvailable.
+     */
+    public static void repair() {
+        Set<String> websafeConferenceKeys = new LinkedHashSet<>(getSet().keySet());
+        List<Key<SeatShard>> shardKeys = ofy().load().type(SeatShard.class)
+                .filter("seatsAvailable <", NEARLY_SOLD_OUT_SEATS)
+                .filter("seatsAvailable >", 0)
+                .keys().list();
+        for (Key<SeatShard> key : shardKeys) {
+            websafeConferenceKeys.add(SeatShard.getWebsafeConferenceKey(key));
+        }
+        List<Key<Conference>> keys = ofy().load().type(Conference.class)
+                .filter("seatsAvailable <", NEARLY_SOLD_OUT_SEATS)
+                .filter("seatsAvailable >", 0)
+                .keys().list();
+        for (Key<Conference> key : keys) {
+            websafeConferenceKeys.add(key.getString());
+        }
+        for (String websafeConferenceKey : websafeConferenceKeys) {
+            update(websafeConferenceKey);
+        }
+        publish();
+    }
+
+    /**
+     * Returns the set.
+     *
+     * @return the conferences of the set, by their websafe keys.
+     */
+    @SuppressWarnings("unchecked")
+    public static Map<String, Entry> getSet() {
+        Map<String, Entry> set = (Map<String, Entry>) getMemcacheService()
+                .get(MEMCACHE_NEARLY_SOLD_OUT_KEY);
+        return set == null ? Collections.<String, Entry>emptyMap() : set;
+    }
+
+    /**
+     * Sets or removes the entry of a conference with compare-and-set.
+     *
+     * @return false if it kept losing races with other updates.
+     */
+    @SuppressWarnings("unchecked")
+    private static boolean put(final String websafeConferenceKey, final Entry entry) {
+        MemcacheService memcacheService = getMemcacheService();
+        for (int i = 0; i < MAX_CAS_ATTEMPTS; i++) {
+            IdentifiableValue current = memcacheService.getIdentifiable(
+                    MEMCACHE_NEARLY_SOLD_OUT_KEY);
+            HashMap<String, Entry> set = current == null ? new HashMap<String, Entry>()
+                    : new HashMap<>((Map<String, Entry>) current.getValue());
+            if (entry == null) {
+                if (set.remove(websafeConferenceKey) == null) {
+                    return true;
+                }
+            } else {
+                set.put(websafeConferenceKey, entry);
+            }
+            boolean stored = current == null
+                    ? memcacheService.put(MEMCACHE_NEARLY_SOLD_OUT_KEY, set, null,
+                            SetPolicy.ADD_ONLY_IF_NOT_PRESENT)
+                    : memcacheService.putIfUntouched(MEMCACHE_NEARLY_SOLD_OUT_KEY, current, set);
+            if (stored) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Builds the announcement from the latest set, fewest seats first.
+     */
+    private static void publish() {
+        List<Entry> entries = new ArrayList<>(getSet().values());
+        MemcacheService memcacheService = getMemcacheService();
+        if (entries.isEmpty()) {
+            memcacheService.delete(MEMCACHE_ANNOUNCEMENTS_KEY);
+        } else {
+            Collections.sort(entries, new Comparator<Entry>() {
+                public int compare(Entry a, Entry b) {
+                    return Integer.compare(a.getSeatsAvailable(), b.getSeatsAvailable());
+                }
+            });
+            StringBuilder sb = new StringBuilder();
+            sb.append("The following conferences are nearly sold out: ");
+            for (Entry entry : entries) {
+                sb.append(entry.getName() + " ");
+            }
+            memcacheService.put(MEMCACHE_ANNOUNCEMENTS_KEY, sb.toString());
+        }
+        HomePageCache.invalidate(MEMCACHE_ANNOUNCEMENTS_KEY);
+    }
+
+    private static MemcacheService getMemcacheService() {
+        return MemcacheServiceFactory.getMemcacheService();
+    }
+}
@@ -1,8 +1,17 @@
 package com.google.devrel.training.conference.service;
 
 import com.google.devrel.training.conference.domain.Session;
+import com.google.devrel.training.conference.domain.AdmissionTicket;
 import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.DeadLetterEvent;
+import com.google.devrel.training.conference.domain.DeadLetterMail;
+import com.google.devrel.training.conference.domain.OutboxEvent;
+import com.google.devrel.training.conference.domain.OutboxHead;
 import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.domain.Registration;
+import com.google.devrel.training.conference.domain.RoomTimeline;
+import com.google.devrel.training.conference.domain.SeatShard;
+import com.google.devrel.training.conference.domain.Speaker;
 import com.googlecode.objectify.Objectify;
 import com.googlecode.objectify.ObjectifyFactory;
 import com.googlecode.objectify.ObjectifyService;
@@ -18,6 +27,15 @@ public class OfyService {
         factory().register(Profile.class);
         factory().register(Conference.class);
         factory().register(Session.class);
+        factory().register(SeatShard.class);
+        factory().register(Registration.class);
+        factory().register(AdmissionTicket.class);
+        factory().register(Speaker.class);
+        factory().register(RoomTimeline.class);
+        factory().register(DeadLetterMail.class);
+        factory().register(DeadLetterEvent.class);
+        factory().register(OutboxEvent.class);
+        factory().register(OutboxHead.class);
     }
 
     /**
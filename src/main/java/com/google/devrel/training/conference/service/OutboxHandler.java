@@ -0,0 +1,19 @@
+package com.google.devrel.training.conference.service;
+
+import com.google.devrel.training.conference.domain.OutboxEvent;
+
+/**
+ * Handles the OutboxEvents of a type. See OutboxService.register.
+ */
+public interface OutboxHandler {
+
+    /**
+     * Applies an event. Events are delivered at least once, so applying one again must be
+     * harmless.
+     *
+     * @param event The event.
+     * @throws RuntimeException If the event can't be applied now. It is delivered again
+     *                          later, before the later events of its owner.
+     */
+    void handle(OutboxEvent event);
+}
@@ -0,0 +1,357 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.Constants.MEMCACHE_OUTBOX_LEASE_PREFIX;
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.DeadLetterEvent;
+import com.google.devrel.training.conference.domain.OutboxEvent;
+import com.google.devrel.training.conference.domain.OutboxHead;
+import com.google.devrel.training.conference.domain.Session;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.VoidWork;
+
+/**
+ * Publishes domain events in the transaction of the change they tell, and delivers them to
+ * the registered OutboxHandlers afterwards.
+ *
+ * publish writes an OutboxEvent into the entity group of its owner, so the event commits or
+ * rolls back with the change. It also schedules a dispatch of the owner a moment later,
+ * with a task named after the owner and a time window, so a burst of events shares one
+ * dispatch. The cron job sweeps the events whose dispatch was lost.
+ *
+ * dispatch delivers the events of an owner in order and deletes them. Only one dispatcher
+ * works on an owner at a time, by a lease in memcache. A failing event stops the dispatch
+ * of its owner, so later events never overtake it. After MAX_ATTEMPTS it is moved to a
+ * DeadLetterEvent instead, and the later events go on. Delivery is at least once: an event
+ * is delivered again if its dispatcher dies or loses its lease before deleting it.
+ */
+public class OutboxService {
+
+    private static final Logger LOG = Logger.getLogger(OutboxService.class.getName());
+
+    public static final String DISPATCH_URL = "/tasks/dispatch_outbox";
+
+    /**
+     * The number of events of an owner delivered per dispatch.
+     */
+    private static final int BATCH_SIZE = 100;
+
+    /**
+     * The number of failed deliveries after which an event is given up.
+     */
+    public static final int MAX_ATTEMPTS = 5;
+
+    /**
+     * The number of pending events a sweep looks at.
+     */
+    private static final int SWEEP_SIZE = 1000;
+
+    /**
+     * How long a dispatcher holds an owner. A batch must be delivered well within it.
+     */
+    private static final int LEASE_SECONDS = 60;
+
+    /**
+     * Events of an owner published within this window share a dispatch.
+     */
+    private static final long WINDOW_MILLIS = 1000;
+
+    /**
+     * How long after the end of its window a dispatch runs, so the transaction publishing
+     * the events has committed.
+     */
+    private static final long DISPATCH_DELAY_MILLIS = 1000;
+
+    private static final Map<OutboxEvent.Type, List<OutboxHandler>> HANDLERS =
+            new EnumMap<>(OutboxEvent.Type.class);
+
+    /**
+     * The dispatches this instance scheduled lately, to skip adding them again.
+     */
+    private static final Cache<String, Boolean> SCHEDULED = CacheBuilder.newBuilder()
+            .maximumSize(10000)
+            .expireAfterWrite(1, TimeUnit.MINUTES)
+            .build();
+
+    private static final AtomicLong DELIVERED = new AtomicLong();
+
+    private static final AtomicLong FAILED = new AtomicLong();
+
+    private static final AtomicLong DEAD_LETTERED = new AtomicLong();
+
+    private static final AtomicLong TOTAL_LAG_MILLIS = new AtomicLong();
+
+    private static final AtomicLong MAX_LAG_MILLIS = new AtomicLong();
+
+    private static final AtomicLong PENDING = new AtomicLong();
+
+    static {
+        for (OutboxEvent.Type type : OutboxEvent.Type.values()) {
+            HANDLERS.put(type, new CopyOnWriteArrayList<OutboxHandler>());
+        }
+        register(OutboxEvent.Type.CONFERENCE_CREATED, new OutboxHandler() {
+            public void handle(OutboxEvent event) {
+                MailService.enqueueConfirmation(
+                        Key.<Conference>create(event.getWebsafeSubjectKey()));
+            }
+        });
+        register(OutboxEvent.Type.SESSION_CREATED, new OutboxHandler() {
+            public void handle(OutboxEvent event) {
+                Key<Session> sessionKey = Key.create(event.getWebsafeSubjectKey());
+                FeaturedSpeakerService.scheduleRecompute(sessionKey.getParent().getString());
+            }
+        });
+        register(OutboxEvent.Type.SEATS_CHANGED, new OutboxHandler() {
+            public void handle(OutboxEvent event) {
+                NearlySoldOutService.update(event.getWebsafeSubjectKey());
+            }
+        });
+        register(OutboxEvent.Type.SESSIONS_IMPORTED, new OutboxHandler() {
+            public void handle(OutboxEvent event) {
+                SpeakerStatsService.addGlobalSessions(event);
+            }
+        });
+    }
+
+    /**
+     * Adds a handler for the events of a type. Handlers run in the order they were added.
+     *
+     * @param type The type of the events.
+     * @param handler The handler.
+     */
+    public static void register(final OutboxEvent.Type type, final OutboxHandler handler) {
+        HANDLERS.get(type).add(handler);
+    }
+
+    /**
+     * Removes a handler added by register.
+     *
+     * @param type The type of the events.
+     * @param handler The handler.
+     */
+    public static void unregister(final OutboxEvent.Type type, final OutboxHandler handler) {
+        HANDLERS.get(type).remove(handler);
+    }
+
+    /**
+     * Publishes an event without seat counts. See publish.
+     */
+    public static void publish(final Key<?> owner, final OutboxEvent.Type type,
+                               final String websafeSubjectKey) {
+        publish(owner, type, websafeSubjectKey, 0, 0);
+    }
+
+    /**
+     * Publishes an event without subject ids. See publish.
+     */
+    public static void publish(final Key<?> owner, final OutboxEvent.Type type,
+                               final String websafeSubjectKey, final int before,
+                               final int after) {
+        publish(owner, type, websafeSubjectKey, before, after, Collections.<Long>emptyList());
+    }
+
+    /**
+     * Publishes an event. Joins the current transaction if there is one, which must then
+     * include the entity group of the owner.
+     *
+     * @param owner The key of the entity whose change the event tells.
+     * @param type The type of the event.
+     * @param websafeSubjectKey String representation of the key the event is about.
+     * @param before The count before the change, see OutboxEvent.Type.
+     * @param after The count after the change, see OutboxEvent.Type.
+     * @param subjectIds The ids of the entities the event is about, see OutboxEvent.Type.
+     */
+    public static void publish(final Key<?> owner, final OutboxEvent.Type type,
+                               final String websafeSubjectKey, final int before,
+                               final int after, final List<Long> subjectIds) {
+        ofy().transact(new VoidWork() {
+            public void vrun() {
+                OutboxHead head = ofy().load().key(OutboxHead.createKey(owner)).now();
+                if (head == null) {
+                    head = new OutboxHead(owner);
+                }
+                OutboxEvent event = new OutboxEvent(owner, head.next(), type,
+                        websafeSubjectKey, before, after, subjectIds);
+                ofy().save().entities(head, event).now();
+            }
+        });
+        scheduleDispatch(owner);
+    }
+
+    /**
+     * Schedules a dispatch of an owner after the current window, unless one is scheduled
+     * already. The task is added outside the transaction, since named tasks can't be
+     * transactional. If the transaction rolls back, the dispatch finds nothing to do.
+     */
+    private static void scheduleDispatch(final Key<?> owner) {
+        long now = System.currentTimeMillis();
+        long window = now / WINDOW_MILLIS;
+        String taskName = "outbox-" + owner.getString() + "-" + window;
+        if (SCHEDULED.getIfPresent(taskName) != null) {
+            return;
+        }
+        try {
+            QueueFactory.getDefaultQueue().add((Transaction) null, TaskOptions.Builder
+                    .withUrl(DISPATCH_URL)
+                    .taskName(taskName)
+                    .countdownMillis((window + 1) * WINDOW_MILLIS - now + DISPATCH_DELAY_MILLIS)
+                    .param("websafeOwnerKey", owner.getString()));
+        } catch (TaskAlreadyExistsException e) {
+            // Another instance scheduled the dispatch of this window.
+        } catch (RuntimeException e) {
+            // The change must not fail for it. The sweep delivers the events later.
+            LOG.log(Level.WARNING, "Failed to schedule the dispatch of " + owner, e);
+            return;
+        }
+        SCHEDULED.put(taskName, Boolean.TRUE);
+    }
+
+    /**
+     * Delivers a batch of the pending events of an owner in order, and deletes them.
+     * Does nothing if another dispatcher holds the owner.
+     *
+     * @param owner The key of the owner.
+     * @return the number of events delivered.
+     * @throws RuntimeException The failure of a handler, after the events delivered before
+     *                          it are deleted. The failure of an event at its last attempt
+     *                          doesn't propagate, the event is dead-lettered.
+     */
+    public static int dispatch(final Key<?> owner) {
+        MemcacheService memcacheService = MemcacheServiceFactory.getMemcacheService();
+        String lease = MEMCACHE_OUTBOX_LEASE_PREFIX + owner.getString();
+        if (!memcacheService.put(lease, Boolean.TRUE, Expiration.byDeltaSeconds(LEASE_SECONDS),
+                SetPolicy.ADD_ONLY_IF_NOT_PRESENT)) {
+            return 0;
+        }
+        List<Key<OutboxEvent>> delivered = new ArrayList<>();
+        List<Key<OutboxEvent>> deadLettered = new ArrayList<>();
+        try {
+            // The key range keeps out the events of the entities below the owner.
+            List<OutboxEvent> events = ofy().load().type(OutboxEvent.class)
+                    .ancestor(owner)
+                    .filterKey(">=", Key.create(owner, OutboxEvent.class, 1))
+                    .filterKey("<=", Key.create(owner, OutboxEvent.class, Long.MAX_VALUE))
+                    .limit(BATCH_SIZE)
+                    .list();
+            for (OutboxEvent event : events) {
+                try {
+                    for (OutboxHandler handler : HANDLERS.get(event.getType())) {
+                        handler.handle(event);
+                    }
+                } catch (RuntimeException e) {
+                    FAILED.incrementAndGet();
+                    if (event.fail() < MAX_ATTEMPTS) {
+                        LOG.log(Level.WARNING, "Failed to deliver event " + event.getSequence()
+                                + " of " + owner + ", holding back the later ones.", e);
+                        ofy().save().entity(event).now();
+                        throw e;
+                    }
+                    LOG.log(Level.SEVERE, "Gave up delivering event " + event.getSequence()
+                            + " of " + owner + " after " + event.getAttempts() + " attempts.", e);
+                    ofy().save().entity(new DeadLetterEvent(event, String.valueOf(e))).now();
+                    deadLettered.add(Key.create(event));
+                    DEAD_LETTERED.incrementAndGet();
+                    continue;
+                }
+                delivered.add(Key.create(event));
+                long lag = System.currentTimeMillis() - event.getCreated();
+                DELIVERED.incrementAndGet();
+                TOTAL_LAG_MILLIS.addAndGet(lag);
+                long max = MAX_LAG_MILLIS.get();
+                while (lag > max && !MAX_LAG_MILLIS.compareAndSet(max, lag)) {
+                    max = MAX_LAG_MILLIS.get();
+                }
+            }
+        } finally {
+            if (!delivered.isEmpty() || !deadLettered.isEmpty()) {
+                List<Key<OutboxEvent>> done = new ArrayList<>(delivered);
+                done.addAll(deadLettered);
+                ofy().delete().keys(done).now();
+            }
+            memcacheService.delete(lease);
+        }
+        return delivered.size();
+    }
+
+    /**
+     * Dispatches the owners of pending events, in case their scheduled dispatch was lost.
+     * The pending events are found with a global query, so the latest ones may be missed.
+     *
+     * @param deadlineMillis The time, in milliseconds since the epoch, after which no
+     *                       further owner is dispatched.
+     * @return the number of events delivered.
+     */
+    public static int sweep(final long deadlineMillis) {
+        List<Key<OutboxEvent>> pending = ofy().load().type(OutboxEvent.class)
+                .limit(SWEEP_SIZE)
+                .keys()
+                .list();
+        PENDING.set(pending.size());
+        Set<Key<?>> owners = new LinkedHashSet<>();
+        for (Key<OutboxEvent> key : pending) {
+            owners.add(key.getParent());
+        }
+        int delivered = 0;
+        for (Key<?> owner : owners) {
+            if (System.currentTimeMillis() >= deadlineMillis) {
+                break;
+            }
+            try {
+                delivered += dispatch(owner);
+            } catch (RuntimeException e) {
+                // Logged by dispatch. The other owners go on.
+            }
+        }
+        return delivered;
+    }
+
+    /**
+     * Returns the counts of this instance. The lag of an event is the time from its
+     * publication to its delivery.
+     *
+     * @return the events delivered, the failed deliveries, the total and the maximum lag in
+     *          milliseconds, the pending events seen by the latest sweep and the events
+     *          dead-lettered, in this order.
+     */
+    public static long[] getStats() {
+        return new long[] {DELIVERED.get(), FAILED.get(), TOTAL_LAG_MILLIS.get(),
+                MAX_LAG_MILLIS.get(), PENDING.get(), DEAD_LETTERED.get()};
+    }
+
+    /**
+     * Resets the counts and the scheduled dispatches of this instance.
+     */
+    public static void clearLocal() {
+        SCHEDULED.invalidateAll();
+        DELIVERED.set(0);
+        FAILED.set(0);
+        TOTAL_LAG_MILLIS.set(0);
+        MAX_LAG_MILLIS.set(0);
+        PENDING.set(0);
+        DEAD_LETTERED.set(0);
+    }
+}
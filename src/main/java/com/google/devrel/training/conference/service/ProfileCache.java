@@ -0,0 +1,131 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.devrel.training.conference.domain.Profile;
+import com.googlecode.objectify.Key;
+
+/**
+ * Keeps recently read Profiles in the memory of the instance, keyed by user id, so the
+ * endpoints reading the profile of the caller skip the memcache round trip of @Cache.
+ *
+ * Cached profiles are shared between requests and must not be changed: code which changes
+ * a profile reads it in a transaction, which always bypasses this cache, and calls
+ * invalidate after saving it. Every save bumps the version of the profile, and invalidate
+ * remembers the version it saw, so a read which started before the save can't put the
+ * older copy back. Other instances see the change once their copy expires.
+ */
+public class ProfileCache {
+
+    /**
+     * How long a profile stays cached, and so how stale another instance may serve it.
+     */
+    private static final int EXPIRATION_SECONDS = 30;
+
+    /**
+     * The rough size of all the cached profiles, in bytes, see Profile.getApproximateSize.
+     */
+    private static final long MAX_WEIGHT = 8 * 1024 * 1024;
+
+    private static final Cache<String, Profile> LOCAL = CacheBuilder.newBuilder()
+            .maximumWeight(MAX_WEIGHT)
+            .weigher(new Weigher<String, Profile>() {
+                public int weigh(String userId, Profile profile) {
+                    return profile.getApproximateSize();
+                }
+            })
+            .expireAfterWrite(EXPIRATION_SECONDS, TimeUnit.SECONDS)
+            .build();
+
+    /**
+     * The version of the latest save of each recently changed profile. Older copies aren't
+     * cached.
+     */
+    private static final Cache<String, Long> SAVED_VERSIONS = CacheBuilder.newBuilder()
+            .maximumSize(10000)
+            .expireAfterWrite(EXPIRATION_SECONDS, TimeUnit.SECONDS)
+            .build();
+
+    private static final AtomicLong HITS = new AtomicLong();
+
+    private static final AtomicLong MISSES = new AtomicLong();
+
+    /**
+     * Returns the profile of a user. In a transaction it is always read from the datastore.
+     *
+     * @param userId The user id.
+     * @return the profile, or null if the user has none. Don't change it outside a
+     *          transaction.
+     */
+    public static Profile get(final String userId) {
+        Key<Profile> key = Key.create(Profile.class, userId);
+        if (ofy().getTransaction() != null) {
+            return ofy().load().key(key).now();
+        }
+        Profile profile = LOCAL.getIfPresent(userId);
+        if (profile != null) {
+            HITS.incrementAndGet();
+            return profile;
+        }
+        MISSES.incrementAndGet();
+        profile = ofy().load().key(key).now();
+        if (profile != null) {
+            put(profile);
+        }
+        return profile;
+    }
+
+    /**
+     * Drops the cached copy of a profile just saved. Call it right after the save, in the
+     * transaction if there is one: a rolled back save only costs a few misses.
+     *
+     * @param profile The profile, as saved.
+     */
+    public static void invalidate(final Profile profile) {
+        String userId = profile.getUserId();
+        synchronized (SAVED_VERSIONS) {
+            Long saved = SAVED_VERSIONS.getIfPresent(userId);
+            if (saved == null || saved < profile.getVersion()) {
+                SAVED_VERSIONS.put(userId, profile.getVersion());
+            }
+            LOCAL.invalidate(userId);
+        }
+    }
+
+    /**
+     * Returns the hit and miss counts of this instance.
+     *
+     * @return the hits and the misses, in this order.
+     */
+    public static long[] getStats() {
+        return new long[] {HITS.get(), MISSES.get()};
+    }
+
+    /**
+     * Empties the cache and resets the counts of this instance.
+     */
+    public static void clearLocal() {
+        LOCAL.invalidateAll();
+        SAVED_VERSIONS.invalidateAll();
+        HITS.set(0);
+        MISSES.set(0);
+    }
+
+    private static void put(final Profile profile) {
+        // Weighing decodes the lazy fields of the profile before other threads can read it.
+        profile.getApproximateSize();
+        String userId = profile.getUserId();
+        synchronized (SAVED_VERSIONS) {
+            Long saved = SAVED_VERSIONS.getIfPresent(userId);
+            if (saved == null || saved <= profile.getVersion()) {
+                LOCAL.put(userId, profile);
+            }
+        }
+    }
+}
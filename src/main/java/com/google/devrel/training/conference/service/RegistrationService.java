@@ -0,0 +1,129 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.domain.Registration;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.VoidWork;
+
+/**
+ * Keeps the conferencesKeysToAttend projection of Profiles in line with the Registrations.
+ *
+ * Registrations are written without touching the Profile. Each registration transaction
+ * enqueues a sync task, and the API applies the same sync right after the commit so the
+ * user sees the change at once. The sync is idempotent, so running it twice is harmless.
+ */
+public class RegistrationService {
+
+    private static final Logger LOG = Logger.getLogger(RegistrationService.class.getName());
+
+    public static final String SYNC_PROFILE_URL = "/tasks/sync_profile_registration";
+
+    /**
+     * Adds a task syncing the Profile of the user to the current transaction.
+     *
+     * @param userId The userId of the attendee.
+     * @param websafeConferenceKey String representation of Conference key.
+     */
+    public static void enqueueProfileSync(final String userId,
+                                          final String websafeConferenceKey) {
+        enqueueProfileSyncs(Collections.singletonList(userId), websafeConferenceKey);
+    }
+
+    /**
+     * Adds a single task syncing the Profiles of several users to the current transaction,
+     * since a transaction can enqueue only a few tasks.
+     *
+     * @param userIds The userIds of the attendees.
+     * @param websafeConferenceKey String representation of Conference key.
+     */
+    public static void enqueueProfileSyncs(final Collection<String> userIds,
+                                           final String websafeConferenceKey) {
+        enqueueProfileSyncs(userIds, Collections.singletonList(websafeConferenceKey));
+    }
+
+    /**
+     * Adds a single task syncing the Profile of a user for several conferences to the
+     * current transaction, since a transaction can enqueue only a few tasks.
+     *
+     * @param userId The userId of the attendee.
+     * @param websafeConferenceKeys String representations of Conference keys.
+     */
+    public static void enqueueProfileSyncs(final String userId,
+                                           final Collection<String> websafeConferenceKeys) {
+        enqueueProfileSyncs(Collections.singletonList(userId), websafeConferenceKeys);
+    }
+
+    /**
+     * Adds a task syncing each of the users for each of the conferences.
+     */
+    private static void enqueueProfileSyncs(final Collection<String> userIds,
+                                            final Collection<String> websafeConferenceKeys) {
+        TaskOptions task = TaskOptions.Builder.withUrl(SYNC_PROFILE_URL);
+        for (String websafeConferenceKey : websafeConferenceKeys) {
+            task.param("websafeConferenceKey", websafeConferenceKey);
+        }
+        for (String userId : userIds) {
+            task.param("userId", userId);
+        }
+        QueueFactory.getDefaultQueue().add(ofy().getTransaction(), task);
+    }
+
+    /**
+     * Syncs the Profile of the user, logging failures instead of throwing them.
+     * Used right after a registration commits; the enqueued task retries on failure.
+     *
+     * @param userId The userId of the attendee.
+     * @param websafeConferenceKey String representation of Conference key.
+     */
+    public static void trySyncProfile(final String userId, final String websafeConferenceKey) {
+        try {
+            syncProfile(userId, websafeConferenceKey);
+        } catch (RuntimeException e) {
+            LOG.log(Level.WARNING, "Profile sync failed for " + userId
+                    + ", leaving it to the task queue.", e);
+        }
+    }
+
+    /**
+     * Adds the conference to or removes it from conferencesKeysToAttend of the Profile,
+     * according to the Registration of the user.
+     *
+     * Nothing changes when there is no Registration: the conference was either never
+     * registered for, or registered for before the Registration ledger existed.
+     *
+     * @param userId The userId of the attendee.
+     * @param websafeConferenceKey String representation of Conference key.
+     */
+    public static void syncProfile(final String userId, final String websafeConferenceKey) {
+        ofy().transact(new VoidWork() {
+            public void vrun() {
+                Registration registration = ofy().load()
+                        .key(Registration.createKey(websafeConferenceKey, userId)).now();
+                Profile profile = ofy().load().key(Key.create(Profile.class, userId)).now();
+                if (registration == null || profile == null) {
+                    return;
+                }
+
+                boolean listed = profile.getConferenceKeysToAttend().contains(websafeConferenceKey);
+                if (registration.isActive() && !listed) {
+                    profile.addToConferenceKeysToAttend(websafeConferenceKey);
+                } else if (!registration.isActive() && listed) {
+                    profile.unregisterFromConference(websafeConferenceKey);
+                } else {
+                    return;
+                }
+                ofy().save().entity(profile).now();
+                ProfileCache.invalidate(profile);
+            }
+        });
+    }
+}
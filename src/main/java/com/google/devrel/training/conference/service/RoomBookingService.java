@@ -0,0 +1,118 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.IntervalIndex;
+import com.google.devrel.training.conference.domain.RoomTimeline;
+import com.google.devrel.training.conference.domain.Session;
+import com.googlecode.objectify.Key;
+
+/**
+ * Books the locations of new sessions on the RoomTimeline of each location, refusing a
+ * session which overlaps one already booked in the same location.
+ *
+ * Only sessions with a location, a start time and a duration are booked. Timelines missing
+ * for a location which already has sessions, saved before the timelines existed, are built
+ * from those sessions once.
+ */
+public class RoomBookingService {
+
+    /**
+     * Books the locations of new sessions of a conference, in order, so sessions of the
+     * batch are checked against each other too. Call it in the transaction which saves the
+     * sessions, and save only those without conflicts. It writes one entity per location.
+     *
+     * @param sessions New sessions of a single conference.
+     * @param excluded The keys of sessions left out when building a missing timeline from
+     *                 the older sessions of a location.
+     * @return the websafe keys of the sessions each conflicting session overlaps. Sessions
+     *          missing from it are booked.
+     */
+    public static Map<Session, List<String>> book(final List<Session> sessions,
+                                                  final Set<Key<Session>> excluded) {
+        Map<Session, List<String>> conflicts = new LinkedHashMap<>();
+        List<Session> bookable = new ArrayList<>();
+        // The keys of the timelines, with the location as first given in the batch.
+        Map<Key<RoomTimeline>, String> keys = new LinkedHashMap<>();
+        for (Session session : sessions) {
+            if (!isBookable(session)) {
+                continue;
+            }
+            bookable.add(session);
+            Key<RoomTimeline> key = RoomTimeline.createKey(session.getConferenceId(),
+                    session.getLocation());
+            if (!keys.containsKey(key)) {
+                keys.put(key, session.getLocation());
+            }
+        }
+        if (bookable.isEmpty()) {
+            return conflicts;
+        }
+
+        long conferenceId = bookable.get(0).getConferenceId();
+        Map<Key<RoomTimeline>, RoomTimeline> timelines = new LinkedHashMap<>(
+                ofy().load().keys(keys.keySet()));
+        List<Session> older = null;
+        for (Key<RoomTimeline> key : keys.keySet()) {
+            if (timelines.get(key) == null) {
+                if (older == null) {
+                    // Sessions have the conference, without its organizer, as their parent,
+                    // so an ancestor query can run in the transaction.
+                    older = ofy().load().type(Session.class)
+                            .ancestor(Key.create(Conference.class, conferenceId)).list();
+                }
+                timelines.put(key, build(conferenceId, keys.get(key), older, excluded));
+            }
+        }
+
+        for (Session session : bookable) {
+            RoomTimeline timeline = timelines.get(
+                    RoomTimeline.createKey(conferenceId, session.getLocation()));
+            IntervalIndex index = timeline.getIndex();
+            long start = session.startTime().getTime();
+            long end = session.endTime().getTime();
+            List<String> overlapping = index.find(start, end);
+            if (overlapping.isEmpty()) {
+                index.add(session.getWebsafeKey(), start, end);
+            } else {
+                conflicts.put(session, overlapping);
+            }
+        }
+        ofy().save().entities(timelines.values());
+        return conflicts;
+    }
+
+    private static boolean isBookable(final Session session) {
+        return session.getLocation() != null
+                && !Session.DEFAULT_LOCATION.equals(session.getLocation())
+                && !session.getLocation().trim().isEmpty()
+                && session.endTime() != null;
+    }
+
+    /**
+     * Builds the timeline of a location from the older sessions of the conference.
+     */
+    private static RoomTimeline build(final long conferenceId, final String location,
+                                      final List<Session> older,
+                                      final Set<Key<Session>> excluded) {
+        RoomTimeline timeline = new RoomTimeline(conferenceId, location);
+        String id = RoomTimeline.normalizeLocation(location);
+        IntervalIndex index = timeline.getIndex();
+        for (Session session : older) {
+            if (isBookable(session) && !excluded.contains(Key.create(session))
+                    && id.equals(RoomTimeline.normalizeLocation(session.getLocation()))) {
+                // Older sessions are booked as they are, even if they overlap.
+                index.add(session.getWebsafeKey(), session.startTime().getTime(),
+                        session.endTime().getTime());
+            }
+        }
+        return timeline;
+    }
+}
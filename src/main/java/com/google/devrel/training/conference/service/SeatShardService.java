@@ -0,0 +1,315 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.factory;
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Registration;
+import com.google.devrel.training.conference.domain.SeatShard;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Work;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counts, books and gives back the seats of conferences, on the Conference itself or on
+ * the SeatShards its seats are split across.
+ */
+public class SeatShardService {
+
+    /**
+     * Conferences get one more shard for each this many seats.
+     */
+    private static final int SEATS_PER_SHARD = 100;
+
+    /**
+     * Returns the number of shards a new conference with the given capacity should use.
+     *
+     * @param maxAttendees The capacity of the conference.
+     * @return the number of shards, between 1 and SeatShard.MAX_SHARDS.
+     */
+    public static int getShardCount(final int maxAttendees) {
+        return Math.max(1, Math.min(SeatShard.MAX_SHARDS, maxAttendees / SEATS_PER_SHARD));
+    }
+
+    /**
+     * Returns the exact number of seats available of a conference.
+     *
+     * @param conference The conference.
+     * @return the number of seats available, summed over the SeatShards if seats are sharded.
+     */
+    public static int getSeatsAvailable(final Conference conference) {
+        if (conference.getSeatShards() == 0) {
+            return conference.getSeatsAvailable();
+        }
+        return getSeatsAvailable(conference.getWebsafeKey(), conference.getSeatShards());
+    }
+
+    /**
+     * Returns the number of seats available summed over all the shards of a conference.
+     *
+     * The shards are loaded outside of any current transaction, so this is served from
+     * the Objectify cache and doesn't enlist the shards into the transaction.
+     * See loadShards.
+     *
+     * @param websafeConferenceKey String representation of Conference key.
+     * @param shards The number of shards of the conference.
+     * @return the number of seats available.
+     */
+    private static int getSeatsAvailable(final String websafeConferenceKey, final int shards) {
+        int seatsAvailable = 0;
+        for (SeatShard shard : loadShards(websafeConferenceKey, shards).values()) {
+            seatsAvailable += shard.getSeatsAvailable();
+        }
+        return seatsAvailable;
+    }
+
+    /**
+     * Attaches the seats available to conferences with sharded seats, loading the shards of
+     * all of them with a single batch get. See getSeatsAvailable.
+     *
+     * @param conferences The conferences.
+     */
+    public static void attachSeatsAvailable(final Collection<Conference> conferences) {
+        List<Key<SeatShard>> keys = new ArrayList<>();
+        for (Conference conference : conferences) {
+            for (int i = 0; i < conference.getSeatShards(); i++) {
+                keys.add(SeatShard.createKey(conference.getWebsafeKey(), i));
+            }
+        }
+        if (keys.isEmpty()) {
+            return;
+        }
+        Map<Key<SeatShard>, SeatShard> shards = factory().begin().load().keys(keys);
+        for (Conference conference : conferences) {
+            if (conference.getSeatShards() == 0) {
+                continue;
+            }
+            int seatsAvailable = 0;
+            for (int i = 0; i < conference.getSeatShards(); i++) {
+                SeatShard shard = shards.get(SeatShard.createKey(conference.getWebsafeKey(), i));
+                if (shard != null) {
+                    seatsAvailable += shard.getSeatsAvailable();
+                }
+            }
+            conference.attachSeatsAvailable(seatsAvailable);
+        }
+    }
+
+    /**
+     * Books seats of a conference and saves them, on the conference itself or on its shards.
+     * Publishes the change if it reaches the nearly sold out range, see
+     * NearlySoldOutService.publishSeatsChanged. Joins the current transaction if there is
+     * one, which must then include the entity group of the owner.
+     *
+     * @param conference The conference, loaded in the current transaction if there is one.
+     * @param number The number of seats to book.
+     * @param owner The key of the Registration written with the change.
+     * @return the seats available afterwards, an estimate if the seats are sharded.
+     * @throws IllegalArgumentException when there are not enough seats available.
+     */
+    public static int bookSeats(final Conference conference, final int number,
+                                final Key<Registration> owner) {
+        int seatsAvailable;
+        if (conference.getSeatShards() > 0) {
+            seatsAvailable = bookSeats(conference.getWebsafeKey(), conference.getSeatShards(),
+                    number);
+        } else {
+            seatsAvailable = conference.bookSeats(number);
+            ofy().save().entity(conference).now();
+        }
+        NearlySoldOutService.publishSeatsChanged(owner, conference.getWebsafeKey(),
+                seatsAvailable + number, seatsAvailable);
+        return seatsAvailable;
+    }
+
+    /**
+     * Gives back seats of a conference and saves them, see bookSeats.
+     *
+     * @param conference The conference, loaded in the current transaction if there is one.
+     * @param number The number of seats to give back.
+     * @param owner The key of the Registration written with the change.
+     * @return the seats available afterwards, an estimate if the seats are sharded.
+     * @throws IllegalArgumentException when the seats would exceed the capacity.
+     */
+    public static int giveBackSeats(final Conference conference, final int number,
+                                    final Key<Registration> owner) {
+        int seatsAvailable;
+        if (conference.getSeatShards() > 0) {
+            seatsAvailable = giveBackSeats(conference.getWebsafeKey(),
+                    conference.getSeatShards(), number);
+        } else {
+            seatsAvailable = conference.giveBackSeats(number);
+            ofy().save().entity(conference).now();
+        }
+        NearlySoldOutService.publishSeatsChanged(owner, conference.getWebsafeKey(),
+                seatsAvailable - number, seatsAvailable);
+        return seatsAvailable;
+    }
+
+    /**
+     * Books seats on randomly picked shards which still have seats available.
+     * Joins the current transaction if there is one.
+     *
+     * The shards are picked by their cached state, and the other shards are only tried when
+     * the picked ones turn out to be exhausted inside the transaction. The shards are changed
+     * only once enough seats are found, so a caller may retry fewer seats in the same
+     * transaction. Every shard read joins the transaction, up to all of them.
+     *
+     * @param websafeConferenceKey String representation of Conference key.
+     * @param shards The number of shards of the conference.
+     * @param number The number of seats to book.
+     * @return an estimate of the seats available afterwards, see estimateSeatsAvailable.
+     * @throws IllegalArgumentException when there are not enough seats available.
+     */
+    private static int bookSeats(final String websafeConferenceKey, final int shards,
+                                 final int number) {
+        final Map<Key<SeatShard>, SeatShard> cached = loadShards(websafeConferenceKey, shards);
+        List<Key<SeatShard>> free = new ArrayList<>();
+        List<Key<SeatShard>> full = new ArrayList<>();
+        for (SeatShard shard : cached.values()) {
+            if (shard.getSeatsAvailable() > 0) {
+                free.add(Key.create(shard));
+            } else {
+                full.add(Key.create(shard));
+            }
+        }
+        final List<Key<SeatShard>> candidates = shuffleAndConcat(free, full);
+
+        return ofy().transact(new Work<Integer>() {
+            public Integer run() {
+                List<SeatShard> changed = new ArrayList<>();
+                List<Integer> booked = new ArrayList<>();
+                int remaining = number;
+                for (Key<SeatShard> key : candidates) {
+                    SeatShard shard = ofy().load().key(key).now();
+                    int seats = Math.min(remaining, shard.getSeatsAvailable());
+                    if (seats > 0) {
+                        changed.add(shard);
+                        booked.add(seats);
+                        remaining = remaining - seats;
+                    }
+                    if (remaining == 0) {
+                        break;
+                    }
+                }
+                if (remaining > 0) {
+                    // The shards are left as loaded, so a retry in this transaction sees them.
+                    throw new IllegalArgumentException("There are no seats available.");
+                }
+                for (int i = 0; i < changed.size(); i++) {
+                    changed.get(i).bookSeats(booked.get(i));
+                }
+                ofy().save().entities(changed).now();
+                return estimateSeatsAvailable(cached, changed);
+            }
+        });
+    }
+
+    /**
+     * Gives back seats to randomly picked shards which are not full.
+     * Joins the current transaction if there is one.
+     *
+     * @param websafeConferenceKey String representation of Conference key.
+     * @param shards The number of shards of the conference.
+     * @param number The number of seats to give back.
+     * @return an estimate of the seats available afterwards, see estimateSeatsAvailable.
+     * @throws IllegalArgumentException when the seats would exceed the capacity.
+     */
+    private static int giveBackSeats(final String websafeConferenceKey, final int shards,
+                                     final int number) {
+        final Map<Key<SeatShard>, SeatShard> cached = loadShards(websafeConferenceKey, shards);
+        List<Key<SeatShard>> notFull = new ArrayList<>();
+        List<Key<SeatShard>> full = new ArrayList<>();
+        for (SeatShard shard : cached.values()) {
+            if (shard.getSeatsAvailable() < shard.getCapacity()) {
+                notFull.add(Key.create(shard));
+            } else {
+                full.add(Key.create(shard));
+            }
+        }
+        final List<Key<SeatShard>> candidates = shuffleAndConcat(notFull, full);
+
+        return ofy().transact(new Work<Integer>() {
+            public Integer run() {
+                List<SeatShard> changed = new ArrayList<>();
+                List<Integer> returned = new ArrayList<>();
+                int remaining = number;
+                for (Key<SeatShard> key : candidates) {
+                    SeatShard shard = ofy().load().key(key).now();
+                    int seats = Math.min(remaining,
+                            shard.getCapacity() - shard.getSeatsAvailable());
+                    if (seats > 0) {
+                        changed.add(shard);
+                        returned.add(seats);
+                        remaining = remaining - seats;
+                    }
+                    if (remaining == 0) {
+                        break;
+                    }
+                }
+                if (remaining > 0) {
+                    throw new IllegalArgumentException(
+                            "The number of seats will exceeds the capacity.");
+                }
+                for (int i = 0; i < changed.size(); i++) {
+                    changed.get(i).giveBackSeats(returned.get(i));
+                }
+                ofy().save().entities(changed).now();
+                return estimateSeatsAvailable(cached, changed);
+            }
+        });
+    }
+
+    /**
+     * Sums the seats available of the shards just changed in the transaction and of the
+     * other shards as read before it. Bookings on the other shards since then are missed,
+     * so the estimate is only off by the bookings running at the same time.
+     */
+    private static int estimateSeatsAvailable(final Map<Key<SeatShard>, SeatShard> cached,
+                                              final List<SeatShard> changed) {
+        Map<Key<SeatShard>, SeatShard> shards = new HashMap<>(cached);
+        for (SeatShard shard : changed) {
+            shards.put(Key.create(shard), shard);
+        }
+        int seatsAvailable = 0;
+        for (SeatShard shard : shards.values()) {
+            seatsAvailable += shard.getSeatsAvailable();
+        }
+        return seatsAvailable;
+    }
+
+    /**
+     * Returns the likely candidates in random order, followed by the others in random order.
+     */
+    private static List<Key<SeatShard>> shuffleAndConcat(final List<Key<SeatShard>> likely,
+                                                         final List<Key<SeatShard>> others) {
+        Collections.shuffle(likely);
+        Collections.shuffle(others);
+        List<Key<SeatShard>> result = new ArrayList<>(likely.size() + others.size());
+        result.addAll(likely);
+        result.addAll(others);
+        return result;
+    }
+
+    /**
+     * Loads the shards of a conference with a new Objectify session.
+     *
+     * Neither ofy() nor ofy().transactionless() can be used here: they share the session
+     * of the current transaction, and a shard put into that session by a non-transactional
+     * read would be booked later without the transaction ever reading it.
+     */
+    private static Map<Key<SeatShard>, SeatShard> loadShards(final String websafeConferenceKey,
+                                                             final int shards) {
+        List<Key<SeatShard>> keys = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            keys.add(SeatShard.createKey(websafeConferenceKey, i));
+        }
+        return factory().begin().load().keys(keys);
+    }
+}
@@ -0,0 +1,215 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.Constants.MEMCACHE_SESSION_IMPORT_PREFIX;
+import static com.google.devrel.training.conference.service.OfyService.factory;
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.common.base.Joiner;
+import com.google.common.math.IntMath;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.RoomTimeline;
+import com.google.devrel.training.conference.domain.Session;
+import com.google.devrel.training.conference.domain.SessionImport;
+import com.google.devrel.training.conference.form.SessionForm;
+import com.google.devrel.training.conference.form.SessionImportForm;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.VoidWork;
+
+/**
+ * Imports the sessions of a conference in bulk.
+ *
+ * The ids of all the sessions come from a single allocation. The sessions are then saved in
+ * batches, each in one transaction with the stats of their speakers in the conference, the
+ * timelines of their locations and the OutboxEvents counting their speakers in all
+ * conferences, see SpeakerStatsService. Sessions overlapping a booking of their location
+ * are left out, see RoomBookingService. All of these share the entity group of the
+ * conference, and a batch stays within the limit of MAX_ENTITIES_PER_WRITE entities. The
+ * snapshot of the sessions and the featured speakers are updated once, after the last batch.
+ *
+ * The progress is published in memcache after each batch, see getProgress. A failure after
+ * the last batch leaves the sessions saved and is reported in the progress.
+ */
+public class SessionImportService {
+
+    private static final Logger LOG = Logger.getLogger(SessionImportService.class.getName());
+
+    /**
+     * The most entities a single datastore write can hold.
+     */
+    static final int MAX_ENTITIES_PER_WRITE = 500;
+
+    private static final int PROGRESS_EXPIRATION_SECONDS = 3600;
+
+    /**
+     * Imports the rows of importForm into a conference. Rows which can't be parsed or
+     * validated, rows overlapping a booking of their location, and rows of a batch which
+     * can't be saved, are reported as row errors.
+     *
+     * @param conference The conference.
+     * @param importForm The rows to import.
+     * @return the outcome of the import.
+     */
+    public static SessionImport importSessions(final Conference conference,
+                                               final SessionImportForm importForm) {
+        String importId = importForm.getImportId() == null
+                ? UUID.randomUUID().toString() : importForm.getImportId();
+        SessionImport progress = new SessionImport(importId, importForm.getRowCount());
+
+        List<SessionForm> forms = new ArrayList<>();
+        List<Integer> rows = new ArrayList<>();
+        for (int i = 0; i < importForm.getRowCount(); i++) {
+            try {
+                SessionForm form = importForm.getRow(i);
+                if (form.getSpeaker() == null || form.getSpeaker().trim().isEmpty()) {
+                    throw new IllegalArgumentException("Speaker is required.");
+                }
+                Session.parseDurationMinutes(form.getDuration());
+                forms.add(form);
+                rows.add(i + 1);
+            } catch (IllegalArgumentException e) {
+                progress.addError(i + 1, e.getMessage());
+            }
+        }
+        publish(progress);
+        if (forms.isEmpty()) {
+            progress.finish();
+            publish(progress);
+            return progress;
+        }
+
+        // Sessions have the conference, without its organizer, as their parent.
+        Key<Conference> sessionsParent = Key.create(Conference.class, conference.getId());
+        Iterator<Key<Session>> keys = factory()
+                .allocateIds(sessionsParent, Session.class, forms.size()).iterator();
+        List<Session> sessions = new ArrayList<>(forms.size());
+        final Set<Key<Session>> imported = new HashSet<>();
+        for (SessionForm form : forms) {
+            Session session = new Session(keys.next().getId(), conference.getId(), form);
+            sessions.add(session);
+            imported.add(Key.create(session));
+        }
+        final Key<Session> firstImported = Key.create(sessions.get(0));
+        final int importedCount = sessions.size();
+
+        List<Session> saved = new ArrayList<>(sessions.size());
+        int start = 0;
+        while (start < sessions.size()) {
+            int end = batchEnd(sessions, start);
+            final List<Session> batch = sessions.subList(start, end);
+            final List<Session> accepted = new ArrayList<>();
+            final Map<Session, List<String>> conflicts = new LinkedHashMap<>();
+            try {
+                ofy().transact(new VoidWork() {
+                    public void vrun() {
+                        accepted.clear();
+                        conflicts.clear();
+                        conflicts.putAll(RoomBookingService.book(batch, imported));
+                        for (Session session : batch) {
+                            if (!conflicts.containsKey(session)) {
+                                accepted.add(session);
+                            }
+                        }
+                        if (!accepted.isEmpty()) {
+                            ofy().save().entities(accepted);
+                            SpeakerStatsService.addConferenceSessions(accepted, imported);
+                            SpeakerStatsService.publishGlobalSessions(accepted, firstImported,
+                                    importedCount);
+                        }
+                    }
+                });
+                saved.addAll(accepted);
+                progress.addImported(accepted.size());
+                for (int i = start; i < end; i++) {
+                    List<String> overlapping = conflicts.get(sessions.get(i));
+                    if (overlapping != null) {
+                        progress.addError(rows.get(i), sessions.get(i).getLocation()
+                                + " is already booked at this time by: "
+                                + Joiner.on(", ").join(overlapping));
+                    }
+                }
+            } catch (RuntimeException e) {
+                LOG.log(Level.WARNING, "Failed to save sessions of import " + importId, e);
+                for (int i = start; i < end; i++) {
+                    progress.addError(rows.get(i), "Not saved: " + e.getMessage());
+                }
+            }
+            publish(progress);
+            start = end;
+        }
+
+        if (!saved.isEmpty()) {
+            String websafeConferenceKey = conference.getWebsafeKey();
+            try {
+                SessionSnapshotService.rebuild(websafeConferenceKey);
+                FeaturedSpeakerService.scheduleRecompute(websafeConferenceKey);
+            } catch (RuntimeException e) {
+                LOG.log(Level.WARNING, "Failed to finish import " + importId, e);
+                progress.addFailure("Sessions saved, but the session list and featured "
+                        + "speakers were not updated: " + e.getMessage());
+            }
+        }
+        progress.finish();
+        publish(progress);
+        return progress;
+    }
+
+    /**
+     * Returns the progress of an import.
+     *
+     * @param importId The id of the import.
+     * @return the progress, or null if unknown or expired.
+     */
+    public static SessionImport getProgress(final String importId) {
+        return (SessionImport) MemcacheServiceFactory.getMemcacheService()
+                .get(MEMCACHE_SESSION_IMPORT_PREFIX + importId);
+    }
+
+    /**
+     * Returns the end of the batch starting at start: as many sessions as fit in a single
+     * write along with one stats entity per speaker and one timeline per location of the
+     * batch, and the OutboxHead and OutboxEvents publishing the speakers.
+     */
+    private static int batchEnd(final List<Session> sessions, final int start) {
+        Set<String> speakers = new HashSet<>();
+        Set<String> locations = new HashSet<>();
+        int end = start;
+        while (end < sessions.size()) {
+            Session session = sessions.get(end);
+            String location = RoomTimeline.normalizeLocation(session.getLocation());
+            int speakerCount = speakers.size()
+                    + (speakers.contains(session.getSpeaker()) ? 0 : 1);
+            int entities = end - start + 1 + speakerCount + locations.size()
+                    + (locations.contains(location) ? 0 : 1)
+                    + 1 + IntMath.divide(speakerCount,
+                            SpeakerStatsService.GLOBAL_STATS_PER_TRANSACTION,
+                            RoundingMode.CEILING);
+            if (entities > MAX_ENTITIES_PER_WRITE) {
+                break;
+            }
+            speakers.add(session.getSpeaker());
+            locations.add(location);
+            end++;
+        }
+        return end;
+    }
+
+    private static void publish(final SessionImport progress) {
+        MemcacheServiceFactory.getMemcacheService().put(
+                MEMCACHE_SESSION_IMPORT_PREFIX + progress.getImportId(), progress,
+                Expiration.byDeltaSeconds(PROGRESS_EXPIRATION_SECONDS));
+    }
+}
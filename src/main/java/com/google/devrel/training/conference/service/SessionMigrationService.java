@@ -0,0 +1,82 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.devrel.training.conference.domain.Session;
+import com.googlecode.objectify.cmd.Query;
+
+/**
+ * Saves again the Sessions stored before durationMinutes, which kept the duration as a
+ * free-form string and didn't index startTime. Until then they are missing from
+ * searchSessions and every query filtering or sorting on these properties.
+ *
+ * The migration walks all sessions in batches, each task enqueuing the next one with the
+ * cursor where it stopped. Start it with a POST to RESAVE_URL; running it again is harmless.
+ * Sessions are never changed after their creation, so they are saved without a transaction.
+ * A legacy duration which can't be parsed is logged before the save drops it for good.
+ */
+public class SessionMigrationService {
+
+    private static final Logger LOG = Logger.getLogger(SessionMigrationService.class.getName());
+
+    public static final String RESAVE_URL = "/tasks/resave_sessions";
+
+    /**
+     * The number of sessions a task looks at.
+     */
+    private static final int BATCH_SIZE = 200;
+
+    /**
+     * Enqueues the task saving the next batch of legacy sessions.
+     *
+     * @param cursor The websafe cursor where the previous batch stopped, null to start over.
+     */
+    public static void enqueueResave(final String cursor) {
+        TaskOptions task = TaskOptions.Builder.withUrl(RESAVE_URL);
+        if (cursor != null) {
+            task.param("cursor", cursor);
+        }
+        QueueFactory.getDefaultQueue().add(task);
+    }
+
+    /**
+     * Saves again the legacy sessions of a batch.
+     *
+     * @param cursor The websafe cursor where the previous batch stopped, null to start over.
+     * @return the websafe cursor where this batch stopped, null if it reached the end.
+     */
+    public static String resave(final String cursor) {
+        Query<Session> query = ofy().load().type(Session.class).limit(BATCH_SIZE);
+        if (cursor != null) {
+            query = query.startAt(Cursor.fromWebSafeString(cursor));
+        }
+        QueryResultIterator<Session> iterator = query.iterator();
+        List<Session> legacy = new ArrayList<>();
+        int count = 0;
+        while (iterator.hasNext()) {
+            Session session = iterator.next();
+            count++;
+            if (session.legacy()) {
+                legacy.add(session);
+                if (session.invalidLegacyDuration() != null) {
+                    LOG.warning("Dropping the invalid duration \""
+                            + session.invalidLegacyDuration() + "\" of session "
+                            + session.getWebsafeKey());
+                }
+            }
+        }
+        if (!legacy.isEmpty()) {
+            ofy().save().entities(legacy).now();
+        }
+        LOG.info("Saved " + legacy.size() + " legacy sessions of " + count + ".");
+        return count < BATCH_SIZE ? null : iterator.getCursor().toWebSafeString();
+    }
+}
@@ -0,0 +1,103 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.Constants.MEMCACHE_SESSIONS_PREFIX;
+import static com.google.devrel.training.conference.Constants.MEMCACHE_SESSIONS_VERSION_PREFIX;
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Session;
+import com.google.devrel.training.conference.domain.SessionSnapshot;
+import com.googlecode.objectify.Key;
+
+/**
+ * Keeps a snapshot of the sessions of each conference in memcache.
+ *
+ * Each conference has a version number in memcache, which createSession bumps once the
+ * session commits. A snapshot is served only if it was read at the current version, and
+ * both are fetched with a single memcache call. A snapshot read before a bump but stored
+ * after it carries the old version, so it is rebuilt instead of served.
+ */
+public class SessionSnapshotService {
+
+    private static final Random RANDOM = new Random();
+
+    /**
+     * Returns the snapshot of the sessions of a conference, reading them from the datastore
+     * when the cached one is missing or outdated.
+     *
+     * @param websafeConferenceKey String representation of Conference key.
+     * @return the snapshot, or null if there is no conference with this key.
+     */
+    public static SessionSnapshot getSnapshot(final String websafeConferenceKey) {
+        Key<Conference> conferenceKey = Key.create(websafeConferenceKey);
+        String versionKey = MEMCACHE_SESSIONS_VERSION_PREFIX + conferenceKey.getString();
+        String snapshotKey = MEMCACHE_SESSIONS_PREFIX + conferenceKey.getString();
+        MemcacheService memcacheService = MemcacheServiceFactory.getMemcacheService();
+
+        Map<String, Object> cached = memcacheService.getAll(Arrays.asList(versionKey, snapshotKey));
+        Long version = (Long) cached.get(versionKey);
+        SessionSnapshot snapshot = (SessionSnapshot) cached.get(snapshotKey);
+        if (version != null && snapshot != null && snapshot.getVersion() == version) {
+            return snapshot;
+        }
+        if (version == null) {
+            // A missing version starts at a random number, so old snapshots can't match it.
+            memcacheService.put(versionKey, randomVersion(), null,
+                    SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+            version = (Long) memcacheService.get(versionKey);
+        }
+
+        if (ofy().load().key(conferenceKey).now() == null) {
+            return null;
+        }
+        return build(conferenceKey, version);
+    }
+
+    /**
+     * Bumps the version of a conference and caches a fresh snapshot of its sessions.
+     * Call it once a change to the sessions has committed.
+     *
+     * @param websafeConferenceKey String representation of Conference key.
+     * @return the fresh snapshot.
+     */
+    public static SessionSnapshot rebuild(final String websafeConferenceKey) {
+        Key<Conference> conferenceKey = Key.create(websafeConferenceKey);
+        Long version = MemcacheServiceFactory.getMemcacheService().increment(
+                MEMCACHE_SESSIONS_VERSION_PREFIX + conferenceKey.getString(), 1, randomVersion());
+        return build(conferenceKey, version);
+    }
+
+    /**
+     * Reads the sessions of a conference and caches them at the given version.
+     * Without a version, memcache is unavailable and the snapshot isn't cached.
+     */
+    private static SessionSnapshot build(final Key<Conference> conferenceKey, final Long version) {
+        // Sessions have the conference, without its organizer, as their parent.
+        Key<Conference> sessionsParent = Key.create(Conference.class, conferenceKey.getId());
+        List<Session> sessions = ofy().load()
+                                      .type(Session.class)
+                                      .ancestor(sessionsParent)
+                                      .order("speaker")
+                                      .list();
+        if (version == null) {
+            return new SessionSnapshot(randomVersion(), sessions);
+        }
+        SessionSnapshot snapshot = new SessionSnapshot(version, sessions);
+        MemcacheServiceFactory.getMemcacheService().put(
+                MEMCACHE_SESSIONS_PREFIX + conferenceKey.getString(), snapshot);
+        return snapshot;
+    }
+
+    private static long randomVersion() {
+        // Memcache increments treat values as unsigned, so keep them well below the wrap.
+        return RANDOM.nextInt(Integer.MAX_VALUE);
+    }
+}
@@ -0,0 +1,74 @@
+package com.google.devrel.training.conference.service;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * Coalesces concurrent loads of the same key on this instance: the first caller runs the
+ * load on its own thread, and callers arriving while it runs wait for its result instead of
+ * loading again. Nothing is kept once the load is done; put a cache in front for that.
+ *
+ * @param <K> The type of the keys.
+ * @param <V> The type of the loaded values.
+ */
+public class SingleFlight<K, V> {
+
+    private final ConcurrentMap<K, FutureTask<V>> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong loads = new AtomicLong();
+
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * Returns the value of a key, from the load in flight if there is one.
+     *
+     * @param key The key.
+     * @param loader Loads the value, if no load of the key is in flight.
+     * @return the loaded value.
+     * @throws RuntimeException The failure of the load, to every caller sharing it.
+     */
+    public V get(final K key, final Callable<V> loader) {
+        FutureTask<V> task = new FutureTask<>(loader);
+        FutureTask<V> running = inFlight.putIfAbsent(key, task);
+        if (running == null) {
+            loads.incrementAndGet();
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(key, task);
+            }
+            running = task;
+        } else {
+            coalesced.incrementAndGet();
+        }
+        try {
+            return Uninterruptibles.getUninterruptibly(running);
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    /**
+     * Returns the counts since the creation or the latest reset.
+     *
+     * @return the loads run and the calls which shared another call's load, in this order.
+     */
+    public long[] getStats() {
+        return new long[] {loads.get(), coalesced.get()};
+    }
+
+    /**
+     * Resets the counts.
+     */
+    public void resetStats() {
+        loads.set(0);
+        coalesced.set(0);
+    }
+}
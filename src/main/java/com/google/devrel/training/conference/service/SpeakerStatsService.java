@@ -0,0 +1,206 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.Lists;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.OutboxEvent;
+import com.google.devrel.training.conference.domain.Session;
+import com.google.devrel.training.conference.domain.Speaker;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.VoidWork;
+import com.googlecode.objectify.cmd.Query;
+
+/**
+ * Keeps the Speaker stats up to date as sessions are created.
+ *
+ * The stats are updated in the transaction which saves the session, so they never drift
+ * from the sessions. Imports span too many speakers for that: they publish OutboxEvents in
+ * the transactions saving the sessions, and the stats in all conferences are updated when
+ * the events are delivered, exactly once per event. Stats missing for a speaker who already
+ * has sessions, saved before the stats existed, are counted from those sessions once.
+ */
+public class SpeakerStatsService {
+
+    /**
+     * The number of global stats updated per transaction, within the limit of 25 entity
+     * groups of a cross-group transaction.
+     */
+    static final int GLOBAL_STATS_PER_TRANSACTION = 20;
+
+    /**
+     * Counts a new session in the stats of its speaker, in its conference and in all
+     * conferences. Call it in the transaction which saves the session, before saving it.
+     *
+     * @param session The new session.
+     * @return the stats of the speaker in the conference of the session.
+     */
+    public static Speaker addSession(final Session session) {
+        List<Session> sessions = Collections.singletonList(session);
+        Set<Key<Session>> none = Collections.emptySet();
+        addSessions(sessions, none, true);
+        return addSessions(sessions, none, false).get(session.getSpeaker());
+    }
+
+    /**
+     * Counts new sessions of a conference in the stats of their speakers in the conference.
+     * Call it in the transaction which saves the sessions. It writes one entity per speaker.
+     *
+     * @param sessions New sessions of a single conference.
+     * @param imported The keys of all the sessions of the import, which are left out when
+     *                 counting the older sessions of a speaker without stats.
+     */
+    public static void addConferenceSessions(final List<Session> sessions,
+                                             final Set<Key<Session>> imported) {
+        addSessions(sessions, imported, false);
+    }
+
+    /**
+     * Publishes the new sessions of an import, to be counted in the stats of their speakers
+     * in all conferences, see addGlobalSessions. Call it in the transaction which saves the
+     * sessions. It writes one OutboxEvent per GLOBAL_STATS_PER_TRANSACTION speakers.
+     *
+     * @param sessions New sessions of the import.
+     * @param firstImported The key of the first session of the import.
+     * @param importedCount The number of sessions of the import, whose ids follow the one
+     *                      of the first.
+     */
+    public static void publishGlobalSessions(final List<Session> sessions,
+                                             final Key<Session> firstImported,
+                                             final int importedCount) {
+        Map<String, List<Session>> bySpeaker = bySpeaker(sessions);
+        for (List<String> speakers : Lists.partition(
+                new ArrayList<>(bySpeaker.keySet()), GLOBAL_STATS_PER_TRANSACTION)) {
+            List<Long> ids = new ArrayList<>();
+            for (String speaker : speakers) {
+                for (Session session : bySpeaker.get(speaker)) {
+                    ids.add(Key.create(session).getId());
+                }
+            }
+            OutboxService.publish(firstImported.getParent(),
+                    OutboxEvent.Type.SESSIONS_IMPORTED, firstImported.getString(),
+                    importedCount, 0, ids);
+        }
+    }
+
+    /**
+     * Counts the sessions of a SESSIONS_IMPORTED event in the stats of their speakers in
+     * all conferences. The transaction deletes the event, and does nothing if it is gone,
+     * so an event delivered again isn't counted twice.
+     *
+     * @param event The event.
+     */
+    public static void addGlobalSessions(final OutboxEvent event) {
+        final Key<OutboxEvent> eventKey = Key.create(event);
+        Key<Session> firstImported = Key.create(event.getWebsafeSubjectKey());
+        final Key<Conference> sessionsParent = firstImported.getParent();
+        final Set<Key<Session>> imported = new HashSet<>();
+        for (int i = 0; i < event.getBefore(); i++) {
+            imported.add(Key.create(sessionsParent, Session.class, firstImported.getId() + i));
+        }
+        final List<Key<Session>> sessionKeys = new ArrayList<>();
+        for (long id : event.getSubjectIds()) {
+            sessionKeys.add(Key.create(sessionsParent, Session.class, id));
+        }
+        // The event and the sessions share an entity group, besides the stats.
+        ofy().transact(new VoidWork() {
+            public void vrun() {
+                if (ofy().load().key(eventKey).now() == null) {
+                    return;
+                }
+                List<Session> sessions =
+                        new ArrayList<>(ofy().load().keys(sessionKeys).values());
+                if (!sessions.isEmpty()) {
+                    addSessions(sessions, imported, true);
+                }
+                ofy().delete().key(eventKey);
+            }
+        });
+    }
+
+    /**
+     * Returns the stats of a speaker.
+     *
+     * @param name The name of the speaker.
+     * @param conferenceId The id of the conference, null for the stats of all conferences.
+     * @return the stats, or null if the speaker has no session.
+     */
+    public static Speaker getStats(final String name, final Long conferenceId) {
+        Key<Speaker> key = conferenceId == null ? Speaker.createKey(name)
+                : Speaker.createKey(conferenceId, name);
+        return ofy().load().key(key).now();
+    }
+
+    /**
+     * Loads the stats of the speakers of the sessions, in their conference or in all
+     * conferences, adds the sessions and saves the stats with the current transaction.
+     */
+    private static Map<String, Speaker> addSessions(final List<Session> sessions,
+                                                    final Set<Key<Session>> excluded,
+                                                    final boolean global) {
+        Map<String, List<Session>> bySpeaker = bySpeaker(sessions);
+        Key<Conference> sessionsParent = sessions.get(0).getConferenceKey();
+        List<Key<Speaker>> keys = new ArrayList<>(bySpeaker.size());
+        for (String name : bySpeaker.keySet()) {
+            keys.add(global ? Speaker.createKey(name)
+                    : Speaker.createKey(sessionsParent.getId(), name));
+        }
+        Map<Key<Speaker>, Speaker> loaded = ofy().load().keys(keys);
+
+        Map<String, Speaker> stats = new LinkedHashMap<>();
+        for (Key<Speaker> key : keys) {
+            String name = key.getName();
+            Speaker speaker = loaded.get(key);
+            if (speaker == null && global) {
+                // Global queries can't run in a transaction, and are eventually consistent.
+                speaker = count(new Speaker(null, name), ofy().transactionless().load()
+                        .type(Session.class)
+                        .filter("speaker =", name), excluded);
+            } else if (speaker == null) {
+                // Sessions have the conference, without its organizer, as their parent, so
+                // an ancestor query can run in the transaction.
+                speaker = count(new Speaker(sessionsParent, name), ofy().load()
+                        .type(Session.class)
+                        .ancestor(sessionsParent)
+                        .filter("speaker =", name), excluded);
+            }
+            for (Session session : bySpeaker.get(name)) {
+                speaker.addSession(session);
+            }
+            stats.put(name, speaker);
+        }
+        ofy().save().entities(stats.values());
+        return stats;
+    }
+
+    private static Map<String, List<Session>> bySpeaker(final List<Session> sessions) {
+        Map<String, List<Session>> bySpeaker = new LinkedHashMap<>();
+        for (Session session : sessions) {
+            List<Session> list = bySpeaker.get(session.getSpeaker());
+            if (list == null) {
+                list = new ArrayList<>();
+                bySpeaker.put(session.getSpeaker(), list);
+            }
+            list.add(session);
+        }
+        return bySpeaker;
+    }
+
+    private static Speaker count(final Speaker stats, final Query<Session> sessions,
+                                 final Set<Key<Session>> excluded) {
+        for (Session session : sessions) {
+            if (!excluded.contains(Key.create(session))) {
+                stats.addSession(session);
+            }
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,32 @@
+package com.google.devrel.training.conference.servlet;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.devrel.training.conference.service.AdmissionService;
+
+/**
+ * A servlet admitting the next batch of the admission queue of a conference.
+ * Restarts itself as long as there are tickets to admit or waitlist.
+ */
+@SuppressWarnings("serial")
+public class AdmitRegistrationsServlet extends HttpServlet {
+
+    @Override
+    public void doPost(HttpServletRequest request, HttpServletResponse response)
+        throws ServletException, IOException {
+        String websafeConferenceKey = request.getParameter("websafeConferenceKey");
+        if ("true".equals(request.getParameter("coalesce"))) {
+            // Enqueued when a seat was given back; one run serves all seats of the bucket.
+            AdmissionService.startWorker(websafeConferenceKey);
+        } else if (AdmissionService.admitNext(websafeConferenceKey) > 0) {
+            // The task of the current time bucket picks up the next batch.
+            AdmissionService.startWorker(websafeConferenceKey);
+        }
+        response.setStatus(204);
+    }
+}
@@ -0,0 +1,37 @@
+package com.google.devrel.training.conference.servlet;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.devrel.training.conference.service.ConferenceCache;
+
+/**
+ * A servlet reporting the hit, load and coalesced read counts of the conference cache.
+ * The counts are per instance, since the last start.
+ */
+@SuppressWarnings("serial")
+public class ConferenceCacheStatsServlet extends HttpServlet {
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+        throws ServletException, IOException {
+        long[] stats = ConferenceCache.getStats();
+        long hits = stats[0];
+        long loads = stats[1];
+        long coalesced = stats[2];
+        long misses = loads + coalesced;
+
+        response.setContentType("text/plain");
+        PrintWriter writer = response.getWriter();
+        writer.println("hits=" + hits);
+        writer.println("loads=" + loads);
+        writer.println("coalesced=" + coalesced);
+        writer.println("hitRate=" + (hits + misses == 0 ? 0.0 : (double) hits / (hits + misses)));
+        writer.println("coalescingRate=" + (misses == 0 ? 0.0 : (double) coalesced / misses));
+    }
+}
@@ -0,0 +1,27 @@
+package com.google.devrel.training.conference.servlet;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.devrel.training.conference.service.OutboxService;
+import com.googlecode.objectify.Key;
+
+/**
+ * A servlet delivering the pending events of an owner, see OutboxService.
+ * Scheduled by the publication of the events.
+ */
+@SuppressWarnings("serial")
+public class DispatchOutboxServlet extends HttpServlet {
+
+    @Override
+    public void doPost(HttpServletRequest request, HttpServletResponse response)
+        throws ServletException, IOException {
+        // Failures propagate, so the task queue retries. Events are delivered in order.
+        OutboxService.dispatch(Key.create(request.getParameter("websafeOwnerKey")));
+        response.setStatus(204);
+    }
+}
@@ -0,0 +1,74 @@
+package com.google.devrel.training.conference.servlet;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.devrel.training.conference.domain.Speaker;
+import com.google.devrel.training.conference.service.HomePageCache;
+
+/**
+ * A servlet serving the announcement and the featured speaker as JSON, with HTTP cache
+ * headers, so browsers and proxies can keep them and revalidate them by ETag.
+ * Endpoints methods can't set response headers.
+ *
+ * GET /home/announcement gives {"message": ...}, GET /home/featuredSpeaker gives
+ * {"name": ..., "sessionCount": ...}, both 204 when there is nothing to show.
+ */
+@SuppressWarnings("serial")
+public class HomePageServlet extends HttpServlet {
+
+    /**
+     * How long clients may keep a response without revalidating it.
+     */
+    private static final int MAX_AGE_SECONDS = 60;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+        throws ServletException, IOException {
+        String body;
+        if ("/announcement".equals(request.getPathInfo())) {
+            String announcement = HomePageCache.getAnnouncement();
+            body = announcement == null ? null
+                    : "{\"message\": " + quote(announcement) + "}";
+        } else if ("/featuredSpeaker".equals(request.getPathInfo())) {
+            Speaker speaker = HomePageCache.getFeaturedSpeaker();
+            body = speaker == null ? null
+                    : "{\"name\": " + quote(speaker.getName())
+                            + ", \"sessionCount\": " + speaker.getSessionCount() + "}";
+        } else {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        response.setHeader("Cache-Control", "public, max-age=" + MAX_AGE_SECONDS);
+        String etag = "\"" + Integer.toHexString(body == null ? 0 : body.hashCode()) + "\"";
+        response.setHeader("ETag", etag);
+        if (etag.equals(request.getHeader("If-None-Match"))) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        } else if (body == null) {
+            response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+        } else {
+            response.setContentType("application/json");
+            response.setCharacterEncoding("UTF-8");
+            response.getWriter().print(body);
+        }
+    }
+
+    private static String quote(final String value) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
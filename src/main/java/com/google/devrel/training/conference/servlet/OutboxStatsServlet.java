@@ -0,0 +1,38 @@
+package com.google.devrel.training.conference.servlet;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.devrel.training.conference.service.OutboxService;
+
+/**
+ * A servlet reporting the delivery counts and the lag of the outbox events.
+ * The counts are per instance, since the last start.
+ */
+@SuppressWarnings("serial")
+public class OutboxStatsServlet extends HttpServlet {
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+        throws ServletException, IOException {
+        long[] stats = OutboxService.getStats();
+        long delivered = stats[0];
+        long failed = stats[1];
+        long totalLagMillis = stats[2];
+
+        response.setContentType("text/plain");
+        PrintWriter writer = response.getWriter();
+        writer.println("delivered=" + delivered);
+        writer.println("failed=" + failed);
+        writer.println("meanLagMillis="
+                + (delivered == 0 ? 0.0 : (double) totalLagMillis / delivered));
+        writer.println("maxLagMillis=" + stats[3]);
+        writer.println("pendingAtLastSweep=" + stats[4]);
+        writer.println("deadLettered=" + stats[5]);
+    }
+}
@@ -0,0 +1,37 @@
+package com.google.devrel.training.conference.servlet;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.devrel.training.conference.service.ConferenceQueryCache;
+
+/**
+ * A servlet reporting the hit and miss counts of the conference query cache.
+ * The counts are per instance, since the last start.
+ */
+@SuppressWarnings("serial")
+public class QueryCacheStatsServlet extends HttpServlet {
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+        throws ServletException, IOException {
+        long[] stats = ConferenceQueryCache.getStats();
+        long localHits = stats[0];
+        long memcacheHits = stats[1];
+        long misses = stats[2];
+        long lookups = localHits + memcacheHits + misses;
+
+        response.setContentType("text/plain");
+        PrintWriter writer = response.getWriter();
+        writer.println("localHits=" + localHits);
+        writer.println("memcacheHits=" + memcacheHits);
+        writer.println("misses=" + misses);
+        writer.println("hitRate="
+                + (lookups == 0 ? 0.0 : (double) (localHits + memcacheHits) / lookups));
+    }
+}
@@ -0,0 +1,29 @@
+package com.google.devrel.training.conference.servlet;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.devrel.training.conference.service.SessionMigrationService;
+
+/**
+ * A servlet saving again the next batch of Sessions stored before durationMinutes, see
+ * SessionMigrationService. Restarts itself with its cursor until it reaches the end.
+ */
+@SuppressWarnings("serial")
+public class ResaveSessionsServlet extends HttpServlet {
+
+    @Override
+    public void doPost(HttpServletRequest request, HttpServletResponse response)
+        throws ServletException, IOException {
+        // Failures propagate, so the task queue retries. Saving a batch again is harmless.
+        String cursor = SessionMigrationService.resave(request.getParameter("cursor"));
+        if (cursor != null) {
+            SessionMigrationService.enqueueResave(cursor);
+        }
+        response.setStatus(204);
+    }
+}
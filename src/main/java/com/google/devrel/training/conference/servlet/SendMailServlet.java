@@ -0,0 +1,27 @@
+package com.google.devrel.training.conference.servlet;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.devrel.training.conference.service.MailService;
+
+/**
+ * A servlet for sending the mails waiting on the mail pull queue, see MailService.
+ * Run by cron, it stops leasing new batches well before the request deadline.
+ */
+@SuppressWarnings("serial")
+public class SendMailServlet extends HttpServlet {
+
+    private static final long BUDGET_MILLIS = 45 * 1000;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+        throws ServletException, IOException {
+        MailService.drain(System.currentTimeMillis() + BUDGET_MILLIS);
+        response.setStatus(204);
+    }
+}
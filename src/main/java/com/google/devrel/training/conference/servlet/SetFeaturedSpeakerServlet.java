@@ -1,48 +1,43 @@
 package com.google.devrel.training.conference.servlet;
 
-import static com.google.devrel.training.conference.service.OfyService.ofy;
 import static com.google.devrel.training.conference.Constants.MEMCACHE_FEATURED_SPEAKER_KEY;
 
 import java.io.IOException;
-import java.util.List;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import com.google.appengine.api.memcache.MemcacheService;
 import com.google.appengine.api.memcache.MemcacheServiceFactory;
-import com.google.devrel.training.conference.domain.Session;
+import com.google.devrel.training.conference.domain.Speaker;
+import com.google.devrel.training.conference.service.FeaturedSpeakerService;
+import com.google.devrel.training.conference.service.HomePageCache;
+import com.google.devrel.training.conference.service.SpeakerStatsService;
 
 /**
- * A servlet for setting featured speaker in memcache.
- * Featured speaker is a speaker who has a number of sessions >= SESSIONS_THRESHOLD.
+ * A servlet for setting featured speakers in memcache.
+ * Featured speakers of a conference are the speakers who have a number of sessions
+ * >= SESSIONS_THRESHOLD in it, see FeaturedSpeakerService.
  */
 @SuppressWarnings("serial")
 public class SetFeaturedSpeakerServlet extends HttpServlet {
-    
-    private static final int SESSIONS_THRESHOLD_FEATURED_SPEAKER = 2;
-    
+
     @Override
-    public void doPost(HttpServletRequest request, HttpServletResponse response) 
+    public void doPost(HttpServletRequest request, HttpServletResponse response)
         throws ServletException, IOException {
-        String speaker = request.getParameter("speaker");
-        List<Session> sessions = ofy().load()
-                                      .type(Session.class)
-                                      .filter("speaker =", speaker)
-                                      .list();
-        
-        if (sessions.size() >= SESSIONS_THRESHOLD_FEATURED_SPEAKER) {
-            StringBuilder sb = new StringBuilder();
-            sb.append("Featured speaker " + speaker + " has the following sessions:\n");
-            for (Session s : sessions) {
-                sb.append(s.getType().toString() + " ");
+        String websafeConferenceKey = request.getParameter("websafeConferenceKey");
+        if (websafeConferenceKey != null) {
+            FeaturedSpeakerService.recompute(websafeConferenceKey);
+        } else {
+            // Tasks enqueued before the conference was passed only name a speaker.
+            Speaker stats = SpeakerStatsService.getStats(request.getParameter("speaker"), null);
+            if (stats != null
+                    && stats.getSessionCount() >= FeaturedSpeakerService.SESSIONS_THRESHOLD) {
+                MemcacheServiceFactory.getMemcacheService()
+                        .put(MEMCACHE_FEATURED_SPEAKER_KEY, stats);
+                HomePageCache.invalidate(MEMCACHE_FEATURED_SPEAKER_KEY);
             }
-            
-            MemcacheService memcacheService = MemcacheServiceFactory.getMemcacheService();
-            memcacheService.put(MEMCACHE_FEATURED_SPEAKER_KEY, sb.toString());
-
         }
         response.setStatus(204);
     }
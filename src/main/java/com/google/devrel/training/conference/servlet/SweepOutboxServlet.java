@@ -0,0 +1,27 @@
+package com.google.devrel.training.conference.servlet;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.devrel.training.conference.service.OutboxService;
+
+/**
+ * A servlet delivering the events whose scheduled dispatch was lost, see OutboxService.
+ * Run by cron, it stops dispatching well before the request deadline.
+ */
+@SuppressWarnings("serial")
+public class SweepOutboxServlet extends HttpServlet {
+
+    private static final long BUDGET_MILLIS = 45 * 1000;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+        throws ServletException, IOException {
+        OutboxService.sweep(System.currentTimeMillis() + BUDGET_MILLIS);
+        response.setStatus(204);
+    }
+}
@@ -0,0 +1,30 @@
+package com.google.devrel.training.conference.servlet;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.devrel.training.conference.service.RegistrationService;
+
+/**
+ * A servlet for syncing the conferences to attend of a Profile with its Registrations.
+ * Enqueued by every registration transaction as a backstop for the sync done by the API.
+ */
+@SuppressWarnings("serial")
+public class SyncProfileRegistrationServlet extends HttpServlet {
+
+    @Override
+    public void doPost(HttpServletRequest request, HttpServletResponse response)
+        throws ServletException, IOException {
+        // Failures propagate, so the task queue retries. Syncing again is harmless.
+        for (String websafeConferenceKey : request.getParameterValues("websafeConferenceKey")) {
+            for (String userId : request.getParameterValues("userId")) {
+                RegistrationService.syncProfile(userId, websafeConferenceKey);
+            }
+        }
+        response.setStatus(204);
+    }
+}
@@ -1,44 +1,72 @@
 package com.google.devrel.training.conference.spi;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.inject.Named;
 
 import com.google.api.server.spi.config.Api;
 import com.google.api.server.spi.config.ApiMethod;
 import com.google.api.server.spi.config.ApiMethod.HttpMethod;
+import com.google.api.server.spi.config.Nullable;
+import com.google.api.server.spi.response.BadRequestException;
+import com.google.api.server.spi.response.CollectionResponse;
 import com.google.api.server.spi.response.ConflictException;
 import com.google.api.server.spi.response.ForbiddenException;
 import com.google.api.server.spi.response.NotFoundException;
 import com.google.api.server.spi.response.UnauthorizedException;
 
+import com.google.common.base.Joiner;
 import com.googlecode.objectify.Key;
 import com.googlecode.objectify.Work;
 import com.googlecode.objectify.cmd.Query;
-import com.google.appengine.api.memcache.MemcacheService;
-import com.google.appengine.api.memcache.MemcacheServiceFactory;
-import com.google.appengine.api.taskqueue.Queue;
-import com.google.appengine.api.taskqueue.QueueFactory;
-import com.google.appengine.api.taskqueue.TaskOptions;
 import com.google.appengine.api.users.User;
 
 import static com.google.devrel.training.conference.service.OfyService.ofy;
 import static com.google.devrel.training.conference.service.OfyService.factory;
 
 import com.google.devrel.training.conference.Constants;
+import com.google.devrel.training.conference.domain.AdmissionTicket;
 import com.google.devrel.training.conference.domain.Announcement;
 import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.IntervalIndex;
+import com.google.devrel.training.conference.domain.OutboxEvent;
 import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.domain.Registration;
+import com.google.devrel.training.conference.domain.SeatShard;
 import com.google.devrel.training.conference.domain.Session;
 import com.google.devrel.training.conference.domain.Session.SessionType;
+import com.google.devrel.training.conference.domain.SessionImport;
+import com.google.devrel.training.conference.domain.SessionSnapshot;
 import com.google.devrel.training.conference.domain.Speaker;
 import com.google.devrel.training.conference.form.ConferenceForm;
 import com.google.devrel.training.conference.form.ConferenceQueryForm;
+import com.google.devrel.training.conference.form.ConferenceQueryIterator;
+import com.google.devrel.training.conference.form.ConferenceQueryPlan;
 import com.google.devrel.training.conference.form.ProfileForm;
 import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
 import com.google.devrel.training.conference.form.SessionForm;
+import com.google.devrel.training.conference.form.SessionImportForm;
+import com.google.devrel.training.conference.form.SessionQueryForm;
+import com.google.devrel.training.conference.service.AdmissionService;
+import com.google.devrel.training.conference.service.ConferenceCache;
+import com.google.devrel.training.conference.service.ConferenceQueryCache;
+import com.google.devrel.training.conference.service.FeaturedSpeakerService;
+import com.google.devrel.training.conference.service.HomePageCache;
+import com.google.devrel.training.conference.service.OutboxService;
+import com.google.devrel.training.conference.service.ProfileCache;
+import com.google.devrel.training.conference.service.RegistrationService;
+import com.google.devrel.training.conference.service.RoomBookingService;
+import com.google.devrel.training.conference.service.SeatShardService;
+import com.google.devrel.training.conference.service.SessionImportService;
+import com.google.devrel.training.conference.service.SessionSnapshotService;
+import com.google.devrel.training.conference.service.SpeakerStatsService;
 
 /**
  * Defines conference APIs.
@@ -50,6 +78,23 @@ import com.google.devrel.training.conference.form.SessionForm;
     description = "API for the Conference Central Backend application.")
 public class ConferenceApi {
 
+    /**
+     * The number of entity groups a transaction can touch, which bounds the conferences
+     * registerForConferences books per transaction.
+     */
+    private static final int MAX_ENTITY_GROUPS_PER_TRANSACTION = 25;
+
+    /**
+     * The number of conferences a page of queryConferences scans at most. A page may come
+     * back short of pageSize, with a nextPageToken, when the in-memory filters reject more.
+     */
+    private static final int MAX_SCANNED_PER_PAGE = 1000;
+
+    /**
+     * The number of rows importSessions accepts at most.
+     */
+    private static final int MAX_IMPORT_ROWS = 5000;
+
     /**
      * Creates or updates a Profile object associated with the given user
      * object.
@@ -74,27 +119,30 @@ public class ConferenceApi {
             throw new UnauthorizedException("Authorization required.");
         }
         
-        String userId = user.getUserId();
-        String mainEmail = user.getEmail();
-        String displayName = form.getDisplayName();
-        TeeShirtSize teeShirtSize = form.getTeeShirtSize();
+        final String userId = user.getUserId();
+        final String mainEmail = user.getEmail();
+        final String displayName = form.getDisplayName();
+        final TeeShirtSize teeShirtSize = form.getTeeShirtSize();
         
-        Profile profile = getProfile(user);
-        if (profile != null) {
-            profile.update(displayName, teeShirtSize);
-        } else {
-            if (displayName == null) {
-                displayName = extractDefaultDisplayNameFromEmail(user.getEmail());
-            }
-            
-            if (teeShirtSize == null) {
-                teeShirtSize = TeeShirtSize.NOT_SPECIFIED;
+        // Read in a transaction, so the profile isn't the copy shared by ProfileCache.
+        return ofy().transact(new Work<Profile>() {
+            public Profile run() {
+                Profile profile = ofy().load().key(Key.create(Profile.class, userId)).now();
+                if (profile != null) {
+                    profile.update(displayName, teeShirtSize);
+                } else {
+                    profile = new Profile(userId,
+                            displayName == null
+                                    ? extractDefaultDisplayNameFromEmail(mainEmail)
+                                    : displayName,
+                            mainEmail,
+                            teeShirtSize == null ? TeeShirtSize.NOT_SPECIFIED : teeShirtSize);
+                }
+                ofy().save().entity(profile).now();
+                ProfileCache.invalidate(profile);
+                return profile;
             }
-            profile = new Profile(userId, displayName, mainEmail, teeShirtSize);
-        }
-        ofy().save().entity(profile).now();
-
-        return profile;
+        });
     }
 
     
@@ -114,10 +162,7 @@ public class ConferenceApi {
             throw new UnauthorizedException("Authorization required");
         }
 
-        String userId = user.getUserId();
-        Key<Profile> key = Key.create(Profile.class, userId);
-        Profile profile = ofy().load().key(key).now();
-        return profile;
+        return ProfileCache.get(user.getUserId());
     }
     
     /**
@@ -141,48 +186,115 @@ public class ConferenceApi {
         // Get user's id, entity key and profile.
         final String userId = user.getUserId();
         Key<Profile> profileKey = Key.create(Profile.class, userId);
-        final Profile profile = getProfileFromUser(user);
-        final Queue queue = QueueFactory.getDefaultQueue();
         final Key<Conference> conferenceKey = factory().allocateId(profileKey, Conference.class);
                 
         Conference conf = ofy().transact(new Work<Conference>() {
             public Conference run() {
                 // Generate a key and create a new conference entity.
+                Profile profile = getProfileFromUser(user);
                 Conference conf = new Conference(conferenceKey.getId(), userId, form);
+                // Split the seats across shards, so registrations don't all write conf.
+                List<SeatShard> shards = conf.shardSeats(
+                        SeatShardService.getShardCount(conf.getMaxAttendees()));
                 ofy().save().entities(conf, profile).now();
+                ofy().save().entities(shards).now();
+                ProfileCache.invalidate(profile);
 
-                // Add send confirmation email task to push queue.
-                queue.add(ofy().getTransaction(), TaskOptions.Builder
-                                     .withUrl("/tasks/send_confirmation_email")
-                                     .param("email", profile.getMainEmail())
-                                     .param("conferenceInfo", conf.toString()));
+                // The confirmation email is enqueued when the event is delivered.
+                OutboxService.publish(conferenceKey, OutboxEvent.Type.CONFERENCE_CREATED,
+                        conferenceKey.getString());
 
                 return conf;
             }
         });
+        // Cached query results may now miss the new conference.
+        ConferenceQueryCache.invalidate();
         return conf;
     }
     
     /**
-     * Get a list of all conferences created.
-     * @param queryForm
-     * @return
+     * Get a page of the conferences matching the filters of queryForm.
+     * @param queryForm The filters, the page size and the cursor of the page.
+     * @return The conferences of the page, with the cursor of the next page as
+     *          nextPageToken, or no nextPageToken on the last page.
+     * @throws BadRequestException If the cursor is invalid.
      */
     @ApiMethod(name="queryConferences", path="queryConferences", httpMethod = HttpMethod.POST)
-    public List<Conference> queryConferences(final ConferenceQueryForm queryForm) {
-        Query<Conference> query = queryForm.getQuery();
-        
-        List<Conference> result = new ArrayList<>(0);
-        List<Key<Profile>> organisersKeys = new ArrayList<>(0);
+    public CollectionResponse<Conference> queryConferences(final ConferenceQueryForm queryForm)
+            throws BadRequestException {
+        // Taken before running the query, so the page is only cached for this generation.
+        String cacheKey = ConferenceQueryCache.cacheKey(queryForm);
+        ConferenceQueryCache.Page cached = ConferenceQueryCache.get(cacheKey);
+        if (cached != null) {
+            List<Conference> conferences = loadConferences(cached.getWebsafeConferenceKeys());
+            return CollectionResponse.<Conference>builder()
+                    .setItems(attachDetails(conferences))
+                    .setNextPageToken(cached.getNextPageToken())
+                    .build();
+        }
+
+        int pageSize = queryForm.getPageSize();
+        ConferenceQueryPlan plan = queryForm.getPlan();
         
-        for (Conference conference : query) {
-            Key<Profile> organiserKey = Key.create(Profile.class, conference.getOrganizerUserId());
-            organisersKeys.add(organiserKey);
-            result.add(conference);
+        List<Conference> result = new ArrayList<>(pageSize);
+        String nextPageToken = null;
+        try {
+            // Fetching one more match than the page tells whether there is a next page.
+            // With filters left to check in memory, or repeats to skip, the datastore
+            // streams chunks instead.
+            ConferenceQueryIterator iterator = plan.iterator(
+                    plan.hasInMemoryFilters() || plan.repeatsConferences() ? null : pageSize + 1);
+            String pageEnd = null;
+            int scanned = 0;
+            while (iterator.hasNext()) {
+                Conference conference = iterator.next();
+                scanned++;
+                if (plan.matches(conference)) {
+                    if (result.size() == pageSize) {
+                        nextPageToken = pageEnd;
+                        break;
+                    }
+                    result.add(conference);
+                    if (result.size() == pageSize) {
+                        pageEnd = iterator.getCursor();
+                    }
+                } else if (scanned >= MAX_SCANNED_PER_PAGE) {
+                    // Keep the request short; the next page resumes where this one stopped.
+                    nextPageToken = pageEnd != null ? pageEnd : iterator.getCursor();
+                    break;
+                }
+            }
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            // The datastore only rejects a malformed cursor once the query runs.
+            if (plan.getCursor() == null) {
+                throw e;
+            }
+            throw new BadRequestException("Invalid cursor: " + queryForm.getCursor());
         }
+        nextPageToken = plan.toCursor(nextPageToken);
         
-        ofy().load().keys(organisersKeys);
-        return result;
+        List<String> websafeConferenceKeys = new ArrayList<>(result.size());
+        for (Conference conference : result) {
+            websafeConferenceKeys.add(conference.getWebsafeKey());
+        }
+        ConferenceQueryCache.put(cacheKey,
+                new ConferenceQueryCache.Page(websafeConferenceKeys, nextPageToken));
+        return CollectionResponse.<Conference>builder()
+                .setItems(attachDetails(result))
+                .setNextPageToken(nextPageToken)
+                .build();
+    }
+    
+    /**
+     * Explain how queryConferences runs the filters of queryForm.
+     * @param queryForm The filters and the cursor of the query.
+     * @return The plan: the filters sent to the datastore, the filters checked in memory and
+     *          the estimates which decided between them.
+     */
+    @ApiMethod(name="explainQueryConferences", path="queryConferences/explain",
+            httpMethod = HttpMethod.POST)
+    public ConferenceQueryPlan explainQueryConferences(final ConferenceQueryForm queryForm) {
+        return queryForm.getPlan();
     }
     
     /**
@@ -205,7 +317,7 @@ public class ConferenceApi {
                                         .ancestor(profileKey)
                                         .order("name");
         
-        return query.list();
+        return attachDetails(query.list());
     }
         
     /**
@@ -233,29 +345,35 @@ public class ConferenceApi {
             throw new UnauthorizedException("Authorization required.");
         }
         
-        WrappedBoolean result = ofy().transact(new Work<WrappedBoolean>() {
-           public WrappedBoolean run() {
-               try {
-                   Conference conference = getConference(websafeConferenceKey);                   
-                   Profile profile = getProfileFromUser(user);
+        final String userId = user.getUserId();
+        // The Profile is kept out of the transaction. It only tells about registrations made
+        // before the Registration ledger existed, and has to exist for the sync afterwards.
+        Profile profile = getSavedProfileFromUser(user);
+        final boolean legacyRegistered =
+                profile.getConferenceKeysToAttend().contains(websafeConferenceKey);
 
-                   if (profile.getConferenceKeysToAttend().contains(websafeConferenceKey)) {
-                       return new WrappedBoolean(false, "Already registered.");
-                   } else if (conference.getSeatsAvailable() <= 0) {
-                       return new WrappedBoolean(false, "No seats left.");
-                   } else {
-                       profile.addToConferenceKeysToAttend(websafeConferenceKey);
-                       conference.bookSeats(1);
-                       ofy().save().entities(profile, conference).now();
-                       
-                       return new WrappedBoolean(true, "Registration successful.");
+        WrappedBoolean result;
+        try {
+            result = ofy().transact(new Work<WrappedBoolean>() {
+               public WrappedBoolean run() {
+                   WrappedBoolean result =
+                           bookRegistration(websafeConferenceKey, userId, legacyRegistered);
+                   if (result.getResult()) {
+                       RegistrationService.enqueueProfileSync(userId, websafeConferenceKey);
                    }
-               } catch (Exception e) {
-                   return new WrappedBoolean(false, "Unknown exception.");
+                   return result;
                }
-           }
-        });
+            });
+        } catch (RuntimeException e) {
+            // The transaction was rolled back.
+            result = new WrappedBoolean(false, "Unknown exception.");
+        }
         
+        if (result.getResult()) {
+            RegistrationService.trySyncProfile(userId, websafeConferenceKey);
+            // Show the new seats available at once, on this instance at least.
+            ConferenceCache.invalidate(Key.<Conference>create(websafeConferenceKey));
+        }
         if (!result.getResult()) {
             if (result.getReason().contains("Conference not found")) {
                 throw new NotFoundException(result.getReason());
@@ -272,6 +390,169 @@ public class ConferenceApi {
         return result;
     }
     
+    /**
+     * Books a seat and writes the Registration of the user, within the current transaction.
+     * Failures of the writes are let out, so the transaction rolls back.
+     * The transaction spans several entity groups, see Registration. The caller enqueues
+     * the sync of the Profile.
+     * @param websafeConferenceKey String representation of Conference key.
+     * @param userId The userId of the user who registers.
+     * @param legacyRegistered Whether the Profile lists the conference from before the
+     *          Registration ledger existed.
+     * @return WrappedBoolean with the same results as registerForConference.
+     */
+    private WrappedBoolean bookRegistration(final String websafeConferenceKey,
+            final String userId, final boolean legacyRegistered) {
+        Conference conference;
+        Registration registration;
+        try {
+            conference = getConference(websafeConferenceKey);
+            registration = ofy().load()
+                    .key(Registration.createKey(websafeConferenceKey, userId)).now();
+        } catch (Exception e) {
+            return new WrappedBoolean(false, "Unknown exception.");
+        }
+
+        if (registration == null ? legacyRegistered : registration.isActive()) {
+            return new WrappedBoolean(false, "Already registered.");
+        } else if (SeatShardService.getSeatsAvailable(conference) <= 0) {
+            return new WrappedBoolean(false, "No seats left.");
+        } else {
+            try {
+                SeatShardService.bookSeats(conference, 1,
+                        Registration.createKey(websafeConferenceKey, userId));
+            } catch (IllegalArgumentException e) {
+                // The last seats were taken since getSeatsAvailable was read.
+                return new WrappedBoolean(false, "No seats left.");
+            }
+            // Failures from here on must roll back the booking, so let them out.
+            if (registration == null) {
+                registration = new Registration(websafeConferenceKey, userId);
+            } else {
+                registration.activate();
+            }
+            ofy().save().entity(registration).now();
+
+            return new WrappedBoolean(true, "Registration successful.");
+        }
+    }
+    
+    /**
+     * Register to attend several conferences in one call.
+     * 
+     * The conferences are packed into as few transactions as the entity groups they touch
+     * allow, and each transaction enqueues a single sync of the Profile. Each conference
+     * succeeds or fails on its own, except that a failed transaction fails all the
+     * conferences it was booking.
+     * @param user The user who invokes this method, null when not not signed in.
+     * @param websafeConferenceKeys String representations of Conference keys.
+     * 
+     * @return A WrappedBoolean per key, in the order of the keys, with the same results as
+     *          registerForConference.
+     * 
+     * @throws UnauthorizedException When user is not signed in.
+     */
+    @ApiMethod(name="registerForConferences",
+            path="conferences/registration",
+            httpMethod = HttpMethod.POST
+            )
+    public List<WrappedBoolean> registerForConferences(final User user,
+            @Named("websafeConferenceKeys") final List<String> websafeConferenceKeys)
+            throws UnauthorizedException {
+        
+        if (user == null) {
+            throw new UnauthorizedException("Authorization required.");
+        }
+        
+        final String userId = user.getUserId();
+        final List<String> legacyKeys =
+                getSavedProfileFromUser(user).getConferenceKeysToAttend();
+        WrappedBoolean[] results = new WrappedBoolean[websafeConferenceKeys.size()];
+        
+        List<Key<Conference>> conferenceKeys = new ArrayList<>();
+        List<Integer> valid = new ArrayList<>();
+        for (int i = 0; i < websafeConferenceKeys.size(); i++) {
+            try {
+                conferenceKeys.add(Key.<Conference>create(websafeConferenceKeys.get(i)));
+                valid.add(i);
+            } catch (IllegalArgumentException e) {
+                results[i] = new WrappedBoolean(false, "Unknown exception.");
+            }
+        }
+        Map<Key<Conference>, Conference> conferences = ofy().load().keys(conferenceKeys);
+        
+        // Booking a conference touches the group of its Registration, those of the seat
+        // shards it may try, and the group of the Conference, shared by its organizer's
+        // other conferences.
+        List<List<Integer>> batches = new ArrayList<>();
+        List<Integer> batch = new ArrayList<>();
+        Set<Key<?>> batchGroups = new HashSet<>();
+        for (int k = 0; k < valid.size(); k++) {
+            int i = valid.get(k);
+            String websafeConferenceKey = websafeConferenceKeys.get(i);
+            Conference conference = conferences.get(conferenceKeys.get(k));
+            Set<Key<?>> groups = new HashSet<>();
+            groups.add(conferenceKeys.get(k).getRoot());
+            groups.add(Registration.createKey(websafeConferenceKey, userId));
+            for (int shard = 0; conference != null && shard < conference.getSeatShards();
+                    shard++) {
+                groups.add(SeatShard.createKey(websafeConferenceKey, shard));
+            }
+            Set<Key<?>> union = new HashSet<>(batchGroups);
+            union.addAll(groups);
+            if (!batch.isEmpty() && union.size() > MAX_ENTITY_GROUPS_PER_TRANSACTION) {
+                batches.add(batch);
+                batch = new ArrayList<>();
+                union = groups;
+            }
+            batch.add(i);
+            batchGroups = union;
+        }
+        if (!batch.isEmpty()) {
+            batches.add(batch);
+        }
+        
+        for (final List<Integer> booking : batches) {
+            List<WrappedBoolean> batchResults;
+            try {
+                batchResults = ofy().transact(new Work<List<WrappedBoolean>>() {
+                    public List<WrappedBoolean> run() {
+                        List<WrappedBoolean> batchResults = new ArrayList<>();
+                        List<String> booked = new ArrayList<>();
+                        for (int i : booking) {
+                            String websafeConferenceKey = websafeConferenceKeys.get(i);
+                            WrappedBoolean result = bookRegistration(websafeConferenceKey,
+                                    userId, legacyKeys.contains(websafeConferenceKey));
+                            if (result.getResult()) {
+                                booked.add(websafeConferenceKey);
+                            }
+                            batchResults.add(result);
+                        }
+                        if (!booked.isEmpty()) {
+                            RegistrationService.enqueueProfileSyncs(userId, booked);
+                        }
+                        return batchResults;
+                    }
+                });
+            } catch (RuntimeException e) {
+                // The transaction was rolled back.
+                batchResults = new ArrayList<>();
+                for (int i = 0; i < booking.size(); i++) {
+                    batchResults.add(new WrappedBoolean(false, "Unknown exception."));
+                }
+            }
+            for (int i = 0; i < booking.size(); i++) {
+                results[booking.get(i)] = batchResults.get(i);
+                if (batchResults.get(i).getResult()) {
+                    String websafeConferenceKey = websafeConferenceKeys.get(booking.get(i));
+                    RegistrationService.trySyncProfile(userId, websafeConferenceKey);
+                    ConferenceCache.invalidate(Key.<Conference>create(websafeConferenceKey));
+                }
+            }
+        }
+        return Arrays.asList(results);
+    }
+    
     /**
      * Unregister from a conference.
      * @param user The user who invokes this method, null when not not signed in.
@@ -296,27 +577,55 @@ public class ConferenceApi {
             throw new UnauthorizedException("Authorization required.");
         }
         
-        WrappedBoolean result = ofy().transact(new Work<WrappedBoolean>() {
-            public WrappedBoolean run() {
-                try {
-                    Conference conference = getConference(websafeConferenceKey);                    
-                    Profile profile = getProfileFromUser(user);
-                    
-                    if (!profile.getConferenceKeysToAttend().contains(websafeConferenceKey)) {
+        final String userId = user.getUserId();
+        // Registrations made before the Registration ledger existed are only in the Profile.
+        final boolean legacyRegistered = getProfileFromUser(user)
+                .getConferenceKeysToAttend().contains(websafeConferenceKey);
+
+        WrappedBoolean result;
+        try {
+            result = ofy().transact(new Work<WrappedBoolean>() {
+                public WrappedBoolean run() {
+                    Conference conference;
+                    Registration registration;
+                    try {
+                        conference = getConference(websafeConferenceKey);
+                        registration = ofy().load()
+                                .key(Registration.createKey(websafeConferenceKey, userId)).now();
+                    } catch (Exception e) {
+                        return new WrappedBoolean(false, "Unknown exception.");
+                    }
+
+                    if (registration == null ? !legacyRegistered : !registration.isActive()) {
                         return new WrappedBoolean(false, "Not registered.");
                     } else {
-                        profile.unregisterFromConference(websafeConferenceKey);
-                        conference.giveBackSeats(1);
-                        ofy().save().entities(profile, conference).now();
-                        
+                        SeatShardService.giveBackSeats(conference, 1,
+                                Registration.createKey(websafeConferenceKey, userId));
+                        // A legacy registration gets a cancelled ledger entry, so the sync
+                        // removes it from the Profile.
+                        if (registration == null) {
+                            registration = new Registration(websafeConferenceKey, userId);
+                        }
+                        registration.cancel();
+                        ofy().save().entity(registration).now();
+                        RegistrationService.enqueueProfileSync(userId, websafeConferenceKey);
+                        // Offer the seat to the waitlist.
+                        AdmissionService.enqueuePromotion(websafeConferenceKey);
+
                         return new WrappedBoolean(true, "Successfully unregistered.");
                     }
-                } catch (Exception e) {
-                    return new WrappedBoolean(false, "Unknown exception.");
                 }
-            }
-        });
+            });
+        } catch (RuntimeException e) {
+            // The transaction was rolled back.
+            result = new WrappedBoolean(false, "Unknown exception.");
+        }
         
+        if (result.getResult()) {
+            RegistrationService.trySyncProfile(userId, websafeConferenceKey);
+            // Show the new seats available at once, on this instance at least.
+            ConferenceCache.invalidate(Key.<Conference>create(websafeConferenceKey));
+        }
         if (!result.getResult()) {
             if (result.getReason().contains("Conference not found")) {
                 throw new NotFoundException(result.getReason());
@@ -330,6 +639,62 @@ public class ConferenceApi {
     }
  
     
+    /**
+     * Request a seat through the admission queue of a conference.
+     * Meant for registration openings with more users than registerForConference can serve;
+     * the seats are granted in arrival order by a worker.
+     * @param user The user who invokes this method, null when not not signed in.
+     * @param websafeConferenceKey String representation of Conference key.
+     * 
+     * @return The admission ticket of the user, with its position in the queue.
+     * 
+     * @throws UnauthorizedException When user is not signed in.
+     * @throws NotFoundException When there is no conference with this key.
+     */
+    @ApiMethod(name="requestAdmission",
+            path="conference/{websafeConferenceKey}/admission",
+            httpMethod = HttpMethod.POST
+            )
+    public AdmissionTicket requestAdmission(final User user,
+            @Named("websafeConferenceKey") final String websafeConferenceKey)
+            throws UnauthorizedException, NotFoundException {
+        if (user == null) {
+            throw new UnauthorizedException("Authorization required.");
+        }
+        getConference(websafeConferenceKey);
+        // The worker syncs the Profile of admitted users, so it has to exist.
+        getSavedProfileFromUser(user);
+        return AdmissionService.requestAdmission(websafeConferenceKey, user.getUserId());
+    }
+    
+    /**
+     * Poll the admission ticket of the user for a conference.
+     * @param user The user who invokes this method, null when not not signed in.
+     * @param websafeConferenceKey String representation of Conference key.
+     * 
+     * @return The admission ticket, with its position while it is waiting.
+     * 
+     * @throws UnauthorizedException When user is not signed in.
+     * @throws NotFoundException When the user didn't request admission.
+     */
+    @ApiMethod(name="getAdmission",
+            path="conference/{websafeConferenceKey}/admission",
+            httpMethod = HttpMethod.GET
+            )
+    public AdmissionTicket getAdmission(final User user,
+            @Named("websafeConferenceKey") final String websafeConferenceKey)
+            throws UnauthorizedException, NotFoundException {
+        if (user == null) {
+            throw new UnauthorizedException("Authorization required.");
+        }
+        AdmissionTicket ticket = AdmissionService.getTicket(websafeConferenceKey, user.getUserId());
+        if (ticket == null) {
+            throw new NotFoundException("No admission requested for conference: "
+                    + websafeConferenceKey);
+        }
+        return ticket;
+    }
+    
     /**
      * Get conferences, which user will attend.
      * @param user The user who invokes this method, null when not not signed in.
@@ -359,7 +724,7 @@ public class ConferenceApi {
         }
         
         Collection<Conference> conferences = ofy().load().keys(keysToAttend).values();
-        return conferences;
+        return attachDetails(conferences);
     }
     
     /**
@@ -376,7 +741,24 @@ public class ConferenceApi {
             @Named("websafeConferenceKey") final String websafeConferenceKey) 
             throws NotFoundException {
         Key<Conference> key = Key.create(websafeConferenceKey);
-        Conference conference = ofy().load().key(key).now();
+        // Concurrent reads of a popular conference share a single load.
+        Conference conference = ConferenceCache.get(key);
+        if (conference == null) {
+            throw new NotFoundException("No conference found with key: " + websafeConferenceKey);
+        }
+        return conference;
+    }
+
+    /**
+     * Loads a Conference without the cache of getConference, for callers which save it.
+     * @param websafeConferenceKey Conference's key.
+     * @return The conference.
+     * @throws NotFoundException If there is no conference with the given key.
+     */
+    private Conference loadConference(final String websafeConferenceKey)
+            throws NotFoundException {
+        Conference conference = ofy().load()
+                .key(Key.<Conference>create(websafeConferenceKey)).now();
         if (conference == null) {
             throw new NotFoundException("No conference found with key: " + websafeConferenceKey);
         }
@@ -391,37 +773,107 @@ public class ConferenceApi {
      * @return The object just created.
      * @throws UnauthorizedException When user is not signed in or is not the original Conference creator.
      * @throws NotFoundException When no Conference with this key is found.
+     * @throws BadRequestException When the speaker is missing or the duration can't be parsed.
+     * @throws ConflictException When the location is booked by another session at this time.
      */
     @ApiMethod(name="createSession", path="session/new", httpMethod = HttpMethod.POST)
     public Session createSession(final User user,
             final SessionForm sessionForm, 
             @Named("websafeConferenceKey") final String websafeConferenceKey) 
-            throws UnauthorizedException, NotFoundException {
-        final Conference conference = getConference(websafeConferenceKey);
+            throws UnauthorizedException, NotFoundException, BadRequestException,
+                ConflictException {
+        final Conference conference = loadConference(websafeConferenceKey);
         if (user == null || !user.getUserId().equals(conference.getOrganizerUserId())) {
             throw new UnauthorizedException("Authorization required.");
         }
+        String speaker = sessionForm.getSpeaker();
+        if (speaker == null || speaker.trim().isEmpty()) {
+            throw new BadRequestException("Speaker is required.");
+        }
+        try {
+            Session.parseDurationMinutes(sessionForm.getDuration());
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException(e.getMessage());
+        }
         
         final long conferenceId = conference.getId();
         final Key<Conference> conferenceKey = Key.create(Conference.class, conferenceId);
         final Key<Session> sessionKey = factory().allocateId(conferenceKey, Session.class);
-        final Queue queue = QueueFactory.getDefaultQueue();
 
+        // The sessions already booked in the location, if the new one overlaps them.
+        final List<String> overlapping = new ArrayList<>();
         Session session = ofy().transact(new Work<Session>() {
             public Session run() {
+                overlapping.clear();
                 Session session = new Session(sessionKey.getId(), conferenceId, sessionForm);
+                List<String> conflicts = RoomBookingService.book(
+                        Collections.singletonList(session),
+                        Collections.<Key<Session>>emptySet()).get(session);
+                if (conflicts != null) {
+                    overlapping.addAll(conflicts);
+                    return null;
+                }
+                SpeakerStatsService.addSession(session);
                 ofy().save().entities(conference, session).now();
-                
-                // Add get featured speakers to push queue.
-                queue.add(ofy().getTransaction(), TaskOptions.Builder
-                                    .withUrl("/tasks/set_featured_speaker")
-                                    .param("speaker", session.getSpeaker()));
+                OutboxService.publish(conferenceKey, OutboxEvent.Type.SESSION_CREATED,
+                        sessionKey.getString());
                 return session;
             }
         });        
+        if (session == null) {
+            throw new ConflictException(sessionForm.getLocation()
+                    + " is already booked at this time by: " + Joiner.on(", ").join(overlapping));
+        }
+        SessionSnapshotService.rebuild(websafeConferenceKey);
         return session;
     }
         
+    /**
+     * Import sessions into a Conference in bulk. Only the user who created the conference
+     * can add sessions to it.
+     * @param user The user who invokes this method, null when not signed in.
+     * @param websafeConferenceKey String representation of Conference key.
+     * @param importForm The sessions, as a JSON array of SessionForm objects, as CSV, or both.
+     * @return The outcome of the import, with the rows which couldn't be imported.
+     * @throws UnauthorizedException When user is not signed in or is not the original Conference creator.
+     * @throws NotFoundException When no Conference with this key is found.
+     * @throws BadRequestException When there are more than MAX_IMPORT_ROWS rows.
+     */
+    @ApiMethod(name="importSessions",
+            path="conference/{websafeConferenceKey}/sessions/import",
+            httpMethod = HttpMethod.POST)
+    public SessionImport importSessions(final User user,
+            @Named("websafeConferenceKey") final String websafeConferenceKey,
+            final SessionImportForm importForm)
+            throws UnauthorizedException, NotFoundException, BadRequestException {
+        Conference conference = loadConference(websafeConferenceKey);
+        if (user == null || !user.getUserId().equals(conference.getOrganizerUserId())) {
+            throw new UnauthorizedException("Authorization required.");
+        }
+        if (importForm.getRowCount() > MAX_IMPORT_ROWS) {
+            throw new BadRequestException("At most " + MAX_IMPORT_ROWS + " rows per import.");
+        }
+        return SessionImportService.importSessions(conference, importForm);
+    }
+    
+    /**
+     * Return the progress of a session import, published while it runs.
+     * @param importId The id of the import.
+     * @return The progress of the import.
+     * @throws NotFoundException When the import is unknown or finished long ago.
+     */
+    @ApiMethod(name="getSessionImport",
+            path="sessions/import/{importId}",
+            httpMethod = HttpMethod.GET)
+    public SessionImport getSessionImport(@Named("importId") final String importId)
+            throws NotFoundException {
+        SessionImport progress = SessionImportService.getProgress(importId);
+        if (progress == null) {
+            throw new NotFoundException("No session import found with id: " + importId);
+        }
+        return progress;
+    }
+        
     /**
      * Return all sessions for a conference with given key.
      * @param websafeConferenceKey String representation of Conference key.
@@ -434,25 +886,75 @@ public class ConferenceApi {
     public List<Session> getConferenceSessions(
             @Named("websafeConferenceKey") final String websafeConferenceKey)
             throws NotFoundException {
-        // TODO Fix conference query by key.
-        Key<Conference> key = Key.create(websafeConferenceKey);
-        Conference c = getConference(websafeConferenceKey);
-        Key<Conference> cKey = Key.create(Conference.class, c.getId());
-
-        if (ofy().load().key(key).now() == null) {
-            throw new NotFoundException("No conference found with key: " + key.toString());
-        }
+        return getSessionSnapshot(websafeConferenceKey).getSessions();
+    }
         
-        Query<Session> query = ofy().load()
-                                    .type(Session.class)
-                                    .ancestor(cKey)
-                                    .order("speaker");
-
-        return query.list();
+    /**
+     * Return the sessions of a conference with an ETag, unless the client has them already.
+     * @param websafeConferenceKey String representation of Conference key.
+     * @param etag The ETag of the sessions the client holds, if any.
+     * @return The sessions of the conference with their ETag. When etag is still current,
+     *          the response is marked notModified and holds no sessions.
+     * @throws NotFoundException If there is no conference with the given key.
+     */
+    @ApiMethod(name="getConferenceSessionsSnapshot",
+            path="conference/{websafeConferenceKey}/sessions",
+            httpMethod = HttpMethod.GET)
+    public SessionSnapshot getConferenceSessionsSnapshot(
+            @Named("websafeConferenceKey") final String websafeConferenceKey,
+            @Nullable @Named("etag") final String etag)
+            throws NotFoundException {
+        SessionSnapshot snapshot = getSessionSnapshot(websafeConferenceKey);
+        if (snapshot.getEtag().equals(etag)) {
+            return snapshot.notModified();
+        }
+        return snapshot;
+    }
+    
+    /**
+     * Get the cached snapshot of the sessions of a conference.
+     * @param websafeConferenceKey String representation of Conference key.
+     * @return The snapshot.
+     * @throws NotFoundException If there is no conference with the given key.
+     */
+    private static SessionSnapshot getSessionSnapshot(final String websafeConferenceKey)
+            throws NotFoundException {
+        SessionSnapshot snapshot = SessionSnapshotService.getSnapshot(websafeConferenceKey);
+        if (snapshot == null) {
+            throw new NotFoundException("No conference found with key: " + websafeConferenceKey);
+        }
+        return snapshot;
     }
         
     /**
-     * Filter conference sessions by type. The method calls getConferenceSessions.
+     * Search the sessions of a conference by type, start time window and duration bounds.
+     * @param websafeConferenceKey String representation of Conference key.
+     * @param queryForm The criteria, all optional.
+     * @return The matching sessions, ordered by start time when searching a time window,
+     *          else by duration when searching durations, else by speaker.
+     * @throws NotFoundException When there is no Conference with this key.
+     */
+    @ApiMethod(name="searchSessions",
+            path="conference/{websafeConferenceKey}/sessions/search",
+            httpMethod = HttpMethod.POST)
+    public List<Session> searchSessions(
+            @Named("websafeConferenceKey") final String websafeConferenceKey,
+            final SessionQueryForm queryForm) throws NotFoundException {
+        Key<Conference> conferenceKey = Key.create(websafeConferenceKey);
+        if (ofy().load().key(conferenceKey).now() == null) {
+            throw new NotFoundException("No conference found with key: " + websafeConferenceKey);
+        }
+        List<Session> result = new ArrayList<>();
+        for (Session session : queryForm.getQuery(conferenceKey)) {
+            if (queryForm.matches(session)) {
+                result.add(session);
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Filter conference sessions by type. The method calls searchSessions.
      * @param websafeConferenceKey String representation of Conference key.
      * @param typeOfSession The type of session to query for.
      * @return
@@ -464,14 +966,7 @@ public class ConferenceApi {
     public List<Session> getConferenceSessionsByType(
             @Named("websafeConferenceKey") final String websafeConferenceKey, 
             @Named("sessionType") final SessionType typeOfSession) throws NotFoundException {
-        List<Session> allSessions = getConferenceSessions(websafeConferenceKey);
-        List<Session> filteredSessions = new ArrayList<>();
-        for (Session session : allSessions) {
-            if (session.getType() == typeOfSession) {
-                filteredSessions.add(session);
-            }
-        }
-        return filteredSessions;
+        return searchSessions(websafeConferenceKey, new SessionQueryForm().type(typeOfSession));
     }
     
     /**
@@ -494,7 +989,8 @@ public class ConferenceApi {
      * @param user The user who invokes this method, null when not signed in.
      * @param websafeSessionKey String representation of Session key.
      * 
-     * @return WrappedBoolean true if added successfully, false otherwise.
+     * @return WrappedBoolean true if added successfully, false otherwise. The reason lists
+     *          the wishlist sessions overlapping this one, if any.
      * 
      * @throws UnauthorizedException When user is not signed in.
      * @throws NotFoundException When there is no session with this key.
@@ -522,8 +1018,14 @@ public class ConferenceApi {
                    if (profile.getSessionKeysWishlist().contains(websafeSessionKey)) {
                        return new WrappedBoolean(false, "Session already in wishlist.");
                    } else {
-                       profile.addToSessionKeysWishlist(websafeSessionKey);
+                       indexWishlist(profile);
+                       List<String> overlapping = profile.addToSessionKeysWishlist(session);
                        ofy().save().entity(profile).now();
+                       ProfileCache.invalidate(profile);
+                       if (!overlapping.isEmpty()) {
+                           return new WrappedBoolean(true, "Successfully added to wishlist. "
+                                   + "Overlaps with: " + Joiner.on(", ").join(overlapping));
+                       }
                        return new WrappedBoolean(true, "Successfully added to wishlist.");
                    }
                } catch (NotFoundException nfe) {
@@ -581,6 +1083,7 @@ public class ConferenceApi {
                     } else {
                         profile.deleteSessionInWishlist(websafeSessionKey);
                         ofy().save().entity(profile).now();
+                        ProfileCache.invalidate(profile);
                         return new WrappedBoolean(true, "Successfully removed from wishlist.");
                     }
                 } catch (NotFoundException nfe) {
@@ -635,28 +1138,122 @@ public class ConferenceApi {
         return sessions;
     }
     
+    /**
+     * Get the pairs of overlapping sessions in user's wishlist, from its interval index.
+     * @param user The user who invokes this method, null when not signed in.
+     * @return The overlaps, with the websafe keys of both sessions and the time they share.
+     * @throws UnauthorizedException When user is not signed in.
+     * @throws NotFoundException When there is no user with this profile.
+     */
+    @ApiMethod(name="getWishlistConflicts",
+            path="wishlist/conflicts",
+            httpMethod = HttpMethod.GET)
+    public List<IntervalIndex.Overlap> getWishlistConflicts(final User user)
+            throws UnauthorizedException, NotFoundException {
+        if (user == null) {
+            throw new UnauthorizedException("Authorization required.");
+        }
+        // Not getProfileFromUser, whose default profile has no wishlist to index.
+        Profile profile = ProfileCache.get(user.getUserId());
+        if (profile == null) {
+            throw new NotFoundException("Profile doesn't exist.");
+        }
+        if (!profile.isWishlistIndexed()) {
+            profile = ofy().transact(new Work<Profile>() {
+                public Profile run() {
+                    Profile profile = ofy().load()
+                            .key(Key.create(Profile.class, user.getUserId())).now();
+                    if (!profile.isWishlistIndexed()) {
+                        indexWishlist(profile);
+                        ofy().save().entity(profile).now();
+                        ProfileCache.invalidate(profile);
+                    }
+                    return profile;
+                }
+            });
+        }
+        return profile.getWishlistIndex().getOverlaps();
+    }
+    
+    /**
+     * Builds the interval index of the wishlist of profiles saved before it existed.
+     * @param profile The profile.
+     */
+    private static void indexWishlist(Profile profile) {
+        if (profile.isWishlistIndexed()) {
+            return;
+        }
+        List<Key<Session>> sessionKeys = new ArrayList<>();
+        for (String keyString : profile.getSessionKeysWishlist()) {
+            sessionKeys.add(Key.<Session>create(keyString));
+        }
+        // The sessions span many entity groups, more than a transaction may read.
+        profile.indexWishlist(ofy().transactionless().load().keys(sessionKeys).values());
+    }
+    
     /**
      * Get announcements from memcache (if any).
      * @return Announcement object if there are announcements, null otherwise.
      */
     @ApiMethod(name="getAnnouncement", path="announcement", httpMethod=HttpMethod.GET)
     public Announcement getAnnouncement() {
-        MemcacheService memcacheService = MemcacheServiceFactory.getMemcacheService();
-        Object announcement = memcacheService.get(Constants.MEMCACHE_ANNOUNCEMENTS_KEY);
+        String announcement = HomePageCache.getAnnouncement();
         
         return announcement == null ? 
-                null : new Announcement(announcement.toString());
+                null : new Announcement(announcement);
     }
     
     /**
      * Get featured speaker from memcache (if any).
      * A featured speaker is a speaker who has more than one session for a given conference.
+     * @param websafeConferenceKey String representation of Conference key, or null for the
+     *          top speaker of the conference whose speakers were ranked last.
+     * @return The stats of the speaker with the most sessions in that conference.
      */
     @ApiMethod(name="getFeaturedSpeaker", path="featuredSpeaker", httpMethod=HttpMethod.GET)
-    public Speaker getSpeaker() {
-        MemcacheService memcacheService = MemcacheServiceFactory.getMemcacheService();
-        Object speaker = memcacheService.get(Constants.MEMCACHE_FEATURED_SPEAKER_KEY);
-        return speaker == null ? null : new Speaker(speaker.toString());
+    public Speaker getSpeaker(
+            @Nullable @Named("websafeConferenceKey") final String websafeConferenceKey) {
+        if (websafeConferenceKey != null) {
+            List<Speaker> speakers = FeaturedSpeakerService.get(websafeConferenceKey);
+            return speakers.isEmpty() ? null : speakers.get(0);
+        }
+        return HomePageCache.getFeaturedSpeaker();
+    }
+    
+    /**
+     * Get the featured speakers of a conference, ranked by their number of sessions.
+     * @param websafeConferenceKey String representation of Conference key.
+     * @return The stats of the featured speakers, most sessions first.
+     */
+    @ApiMethod(name="getFeaturedSpeakers",
+            path="conference/{websafeConferenceKey}/featuredSpeakers",
+            httpMethod=HttpMethod.GET)
+    public List<Speaker> getFeaturedSpeakers(
+            @Named("websafeConferenceKey") final String websafeConferenceKey) {
+        return FeaturedSpeakerService.get(websafeConferenceKey);
+    }
+    
+    /**
+     * Get the session stats of a speaker, without querying the sessions.
+     * @param speaker Speaker's name as String.
+     * @param websafeConferenceKey String representation of Conference key, or null for the
+     *          stats of all conferences.
+     * @return The number of sessions of the speaker, and their number by type.
+     * @throws NotFoundException When the speaker has no sessions.
+     */
+    @ApiMethod(name="getSpeakerStats",
+            path="speaker/{speaker}/stats",
+            httpMethod = HttpMethod.GET)
+    public Speaker getSpeakerStats(@Named("speaker") final String speaker,
+            @Nullable @Named("websafeConferenceKey") final String websafeConferenceKey)
+            throws NotFoundException {
+        Long conferenceId = websafeConferenceKey == null ? null
+                : Key.<Conference>create(websafeConferenceKey).getId();
+        Speaker stats = SpeakerStatsService.getStats(speaker, conferenceId);
+        if (stats == null) {
+            throw new NotFoundException("No sessions found with speaker: " + speaker);
+        }
+        return stats;
     }
         
     /**
@@ -689,12 +1286,12 @@ public class ConferenceApi {
     /**
      * Get Profile entity from User object.
      * Create one if there is no entity for this user.
+     * Outside a transaction it comes from ProfileCache, so it must not be changed.
      * @param user
      * @return
      */
     private static Profile getProfileFromUser(User user) {
-        Key<Profile> key = Key.create(Profile.class, user.getUserId());
-        Profile profile = ofy().load().key(key).now();
+        Profile profile = ProfileCache.get(user.getUserId());
         
         if (profile == null) {
             String email = user.getEmail();
@@ -706,6 +1303,63 @@ public class ConferenceApi {
         return profile;
     }
     
+    /**
+     * Get Profile entity from User object.
+     * Save a new one if there is no entity for this user.
+     * @param user
+     * @return
+     */
+    private static Profile getSavedProfileFromUser(User user) {
+        Profile profile = ProfileCache.get(user.getUserId());
+        if (profile == null) {
+            profile = getProfileFromUser(user);
+            ofy().save().entity(profile).now();
+            ProfileCache.invalidate(profile);
+        }
+        return profile;
+    }
+    
+    /**
+     * Loads conferences with a single batch get, skipping the ones which no longer exist.
+     * @param websafeConferenceKeys String representations of the Conference keys.
+     * @return The conferences, in the order of the keys.
+     */
+    private static List<Conference> loadConferences(final List<String> websafeConferenceKeys) {
+        List<Key<Conference>> conferenceKeys = new ArrayList<>(websafeConferenceKeys.size());
+        for (String websafeConferenceKey : websafeConferenceKeys) {
+            conferenceKeys.add(Key.<Conference>create(websafeConferenceKey));
+        }
+        Map<Key<Conference>, Conference> conferences = ofy().load().keys(conferenceKeys);
+        List<Conference> result = new ArrayList<>(conferenceKeys.size());
+        for (Key<Conference> conferenceKey : conferenceKeys) {
+            Conference conference = conferences.get(conferenceKey);
+            if (conference != null) {
+                result.add(conference);
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Attaches the display names of the organizers and the sharded seats available to
+     * conferences of a list response, with a batch get each instead of one get per
+     * conference.
+     * @param conferences The conferences of the response.
+     * @return conferences, for chaining.
+     */
+    private static <C extends Collection<Conference>> C attachDetails(C conferences) {
+        SeatShardService.attachSeatsAvailable(conferences);
+        List<Key<Profile>> organizerKeys = new ArrayList<>(conferences.size());
+        for (Conference conference : conferences) {
+            organizerKeys.add(conference.getProfileKey());
+        }
+        Map<Key<Profile>, Profile> organizers = ofy().load().keys(organizerKeys);
+        for (Conference conference : conferences) {
+            conference.attachOrganizer(organizers.get(conference.getProfileKey()));
+        }
+        return conferences;
+    }
+    
     /**
      * Get the display name from the user's email. 
      */
@@ -243,7 +243,7 @@ conferenceApp.controllers.controller('CreateConferenceCtrl',
  * @description
  * A controller used for the Show conferences page.
  */
-conferenceApp.controllers.controller('ShowConferenceCtrl', function ($scope, $log, oauth2Provider, HTTP_ERRORS) {
+conferenceApp.controllers.controller('ShowConferenceCtrl', function ($scope, $log, $window, oauth2Provider, HTTP_ERRORS) {
 
     /**
      * Holds the status if the query is being executed.
@@ -278,7 +278,8 @@ conferenceApp.controllers.controller('ShowConferenceCtrl', function ($scope, $lo
         {displayName: '>=', enumValue: 'GTEQ'},
         {displayName: '<', enumValue: 'LT'},
         {displayName: '<=', enumValue: 'LTEQ'},
-        {displayName: '!=', enumValue: 'NE'}
+        {displayName: '!=', enumValue: 'NE'},
+        {displayName: 'in', enumValue: 'IN'}
     ];
 
     /**
@@ -287,6 +288,12 @@ conferenceApp.controllers.controller('ShowConferenceCtrl', function ($scope, $lo
      */
     $scope.conferences = [];
 
+    /**
+     * Holds the cursor of the next page of queryConferences, null on the last page.
+     * @type {string}
+     */
+    $scope.nextPageToken = null;
+
     /**
      * Holds the state if offcanvas is enabled.
      *
@@ -417,12 +424,43 @@ conferenceApp.controllers.controller('ShowConferenceCtrl', function ($scope, $lo
         }
     };
 
+    /**
+     * Loads the next page of the conferences on the 'ALL' tab, if there is one.
+     */
+    $scope.loadMoreConferences = function () {
+        if ($scope.selectedTab == 'ALL' && $scope.nextPageToken && !$scope.loading) {
+            $scope.queryConferencesAll(true);
+        }
+    };
+
+    /**
+     * Loads the next page when the page is scrolled close to the bottom.
+     */
+    var onScroll = function () {
+        if ($window.innerHeight + $window.pageYOffset >= document.body.offsetHeight - 100) {
+            $scope.$apply($scope.loadMoreConferences);
+        }
+    };
+    angular.element($window).bind('scroll', onScroll);
+    $scope.$on('$destroy', function () {
+        angular.element($window).unbind('scroll', onScroll);
+    });
+
     /**
      * Invokes the conference.queryConferences API.
+     *
+     * @param {boolean} loadMore if the next page should be appended to the conferences loaded,
+     *     instead of starting over from the first page.
      */
-    $scope.queryConferencesAll = function () {
+    $scope.queryConferencesAll = function (loadMore) {
         var sendFilters = {
-            filters: []
+            filters: [],
+            pageSize: $scope.pagination.pageSize
+        }
+        if (loadMore) {
+            sendFilters.cursor = $scope.nextPageToken;
+        } else {
+            $scope.nextPageToken = null;
         }
         for (var i = 0; i < $scope.filters.length; i++) {
             var filter = $scope.filters[i];
@@ -452,10 +490,13 @@ conferenceApp.controllers.controller('ShowConferenceCtrl', function ($scope, $lo
                         $scope.alertStatus = 'success';
                         $log.info($scope.messages);
 
-                        $scope.conferences = [];
+                        if (!loadMore) {
+                            $scope.conferences = [];
+                        }
                         angular.forEach(resp.items, function (conference) {
                             $scope.conferences.push(conference);
                         });
+                        $scope.nextPageToken = resp.nextPageToken || null;
                     }
                     $scope.submitted = true;
                 });
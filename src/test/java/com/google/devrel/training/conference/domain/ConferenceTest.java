@@ -6,6 +6,9 @@ import static org.junit.Assert.*;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
 import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.service.SeatShardService;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.VoidWork;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -132,5 +135,65 @@ public class ConferenceTest {
         Conference conference = new Conference(ID, ORGANIZER_USER_ID, conferenceForm);
         conference.giveBackSeats(1);
     }
+
+    @Test
+    public void testShardSeats() throws Exception {
+        Conference conference = new Conference(ID, ORGANIZER_USER_ID, conferenceForm);
+        List<SeatShard> shards = conference.shardSeats(3);
+        assertEquals(3, shards.size());
+        assertEquals(3, conference.getSeatShards());
+        // The remainder goes to the first shards.
+        assertEquals(167, shards.get(0).getCapacity());
+        assertEquals(167, shards.get(1).getCapacity());
+        assertEquals(166, shards.get(2).getCapacity());
+        ofy().save().entities(shards).now();
+        Key<Registration> owner = Registration.createKey(conference.getWebsafeKey(), "attendee");
+        assertEquals(CAP, SeatShardService.getSeatsAvailable(conference));
+        // Booking and giving back seats go to the shards.
+        SeatShardService.bookSeats(conference, 200, owner);
+        assertEquals(CAP - 200, SeatShardService.getSeatsAvailable(conference));
+        SeatShardService.giveBackSeats(conference, 100, owner);
+        assertEquals(CAP - 100, SeatShardService.getSeatsAvailable(conference));
+        // Until the sum is attached, the conference tells the snapshot.
+        assertEquals(CAP, conference.getSeatsAvailable());
+        conference.attachSeatsAvailable(CAP - 100);
+        assertEquals(CAP - 100, conference.getSeatsAvailable());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testShardedBookSeatsFailure() throws Exception {
+        Conference conference = new Conference(ID, ORGANIZER_USER_ID, conferenceForm);
+        ofy().save().entities(conference.shardSeats(3)).now();
+        SeatShardService.bookSeats(conference, CAP + 1,
+                Registration.createKey(conference.getWebsafeKey(), "attendee"));
+    }
+
+    @Test
+    public void testShardedBookSeatsRetry() throws Exception {
+        final Conference conference = new Conference(ID, ORGANIZER_USER_ID, conferenceForm);
+        ofy().save().entities(conference.shardSeats(3)).now();
+        final Key<Registration> owner =
+                Registration.createKey(conference.getWebsafeKey(), "attendee");
+        SeatShardService.bookSeats(conference, CAP - 5, owner);
+        ofy().transact(new VoidWork() {
+            public void vrun() {
+                try {
+                    SeatShardService.bookSeats(conference, 6, owner);
+                    fail("Only 5 seats are left.");
+                } catch (IllegalArgumentException e) {
+                    // The failed booking must leave the shards of the transaction intact.
+                }
+                SeatShardService.bookSeats(conference, 5, owner);
+            }
+        });
+        assertEquals(0, SeatShardService.getSeatsAvailable(conference));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testShardedConferenceBookSeats() throws Exception {
+        Conference conference = new Conference(ID, ORGANIZER_USER_ID, conferenceForm);
+        conference.shardSeats(3);
+        conference.bookSeats(1);
+    }
    
 }
\ No newline at end of file
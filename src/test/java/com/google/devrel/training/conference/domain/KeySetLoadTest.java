@@ -0,0 +1,108 @@
+package com.google.devrel.training.conference.domain;
+
+import static org.junit.Assert.*;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.googlecode.objectify.Key;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Load test comparing a KeySet with the list of websafe keys Profile stored before it, for a
+ * wishlist of sessions spread over a few conferences.
+ */
+public class KeySetLoadTest {
+
+    private static final Logger LOG = Logger.getLogger(KeySetLoadTest.class.getName());
+
+    private static final int CONFERENCES = 20;
+
+    private static final int SESSIONS_PER_CONFERENCE = 50;
+
+    private static final int WARMUP_ROUNDS = 100;
+
+    private static final int ROUNDS = 100;
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+    private List<String> websafeKeys;
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        websafeKeys = new ArrayList<>();
+        for (long c = 1; c <= CONFERENCES; c++) {
+            Key<Conference> conferenceKey = Key.create(
+                    Key.create(Profile.class, "organizer" + c), Conference.class, 1000 + c);
+            for (long s = 1; s <= SESSIONS_PER_CONFERENCE; s++) {
+                websafeKeys.add(Key.create(conferenceKey, Session.class, 5000000000L + s)
+                        .getString());
+            }
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        helper.tearDown();
+    }
+
+    @Test
+    public void testSize() throws Exception {
+        KeySet<Session> set = new KeySet<>(Session.class);
+        int chars = 0;
+        for (String websafeKey : websafeKeys) {
+            set.add(websafeKey);
+            chars += websafeKey.length();
+        }
+        int bytes = set.encode().length;
+        LOG.info(String.format("%d sessions over %d conferences: blob %d bytes, "
+                + "websafe keys %d characters",
+                websafeKeys.size(), CONFERENCES, bytes, chars));
+        assertEquals(websafeKeys.size(), KeySet.decode(Session.class, set.encode()).size());
+        assertTrue(bytes * 10 < chars);
+    }
+
+    @Test
+    public void testContains() throws Exception {
+        KeySet<Session> set = new KeySet<>(Session.class);
+        for (String websafeKey : websafeKeys) {
+            set.add(websafeKey);
+        }
+        // A copy of each key, so the list scan compares characters rather than references.
+        List<String> lookups = new ArrayList<>();
+        for (String websafeKey : websafeKeys) {
+            lookups.add(new String(websafeKey));
+        }
+
+        // The first rounds warm up both, so the JIT compiles them before the measure.
+        long setNanos = 0;
+        long listNanos = 0;
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (String websafeKey : lookups) {
+                assertTrue(set.contains(websafeKey));
+            }
+            long middle = System.nanoTime();
+            for (String websafeKey : lookups) {
+                assertTrue(websafeKeys.contains(websafeKey));
+            }
+            long end = System.nanoTime();
+            if (round >= WARMUP_ROUNDS) {
+                setNanos += middle - start;
+                listNanos += end - middle;
+            }
+        }
+        int lookupCount = ROUNDS * lookups.size();
+        LOG.info(String.format("contains over %d sessions: KeySet %.2fus, list scan %.2fus",
+                websafeKeys.size(), setNanos / 1000.0 / lookupCount,
+                listNanos / 1000.0 / lookupCount));
+    }
+}
@@ -1,7 +1,11 @@
 package com.google.devrel.training.conference.domain;
 
+import static com.google.devrel.training.conference.service.OfyService.ofy;
 import static org.junit.Assert.*;
 
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
 import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
@@ -12,6 +16,8 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -41,6 +47,7 @@ public class ProfileTest {
 
     @After
     public void tearDown() throws Exception {
+        ofy().clear();
         helper.tearDown();
     }
 
@@ -72,4 +79,113 @@ public class ProfileTest {
         conferenceKeys.add(conferenceKey.getString());
         assertEquals(conferenceKeys, profile.getConferenceKeysToAttend());
     }
+
+    @Test
+    public void testWishlistIndex() throws Exception {
+        IntervalIndex index = profile.getWishlistIndex();
+        assertTrue(index.add("a", 100, 200).isEmpty());
+        assertTrue(index.add("b", 300, 400).isEmpty());
+        // Touching intervals don't overlap.
+        assertTrue(index.add("c", 200, 300).isEmpty());
+        assertEquals(Arrays.asList("b", "c"), sorted(index.add("d", 250, 350)));
+        assertEquals(Arrays.asList("a", "b", "c", "d"), sorted(index.add("e", 0, 1000)));
+
+        List<IntervalIndex.Overlap> overlaps = profile.getWishlistIndex().getOverlaps();
+        assertEquals(6, overlaps.size());
+        IntervalIndex.Overlap first = overlaps.get(0);
+        assertEquals("e", first.getFirstKey());
+        assertEquals("a", first.getSecondKey());
+        assertEquals(100, first.getStart().getTime());
+        assertEquals(200, first.getEnd().getTime());
+
+        assertTrue(index.remove("e"));
+        assertFalse(index.remove("e"));
+        assertEquals(2, profile.getWishlistIndex().getOverlaps().size());
+    }
+
+    @Test
+    public void testKeySetMembership() throws Exception {
+        Key<Profile> organizer = Key.create(Profile.class, "organizer");
+        String first = Key.create(organizer, Conference.class, 1L).getString();
+        String second = Key.create(organizer, Conference.class, 5000000000L).getString();
+        String root = Key.create(Conference.class, 7L).getString();
+        profile.addToConferenceKeysToAttend(second);
+        profile.addToConferenceKeysToAttend(first);
+        profile.addToConferenceKeysToAttend(root);
+
+        List<String> keys = profile.getConferenceKeysToAttend();
+        assertEquals(3, keys.size());
+        assertTrue(keys.contains(first));
+        assertTrue(keys.contains(second));
+        assertFalse(keys.contains(Key.create(organizer, Conference.class, 2L).getString()));
+        assertFalse(keys.contains("not a key"));
+
+        KeySet<Conference> decoded = KeySet.decode(Conference.class,
+                KeySet.decode(Conference.class, encode(keys)).encode());
+        assertEquals(keys, decoded.asList());
+
+        profile.unregisterFromConference(first);
+        assertEquals(2, keys.size());
+        assertFalse(keys.contains(first));
+    }
+
+    @Test
+    public void testKeySetSize() throws Exception {
+        // A power user with 1000 wishlist sessions across 20 conferences.
+        KeySet<Session> set = new KeySet<>(Session.class);
+        int websafeLength = 0;
+        long id = 4503599627370496L;
+        for (int i = 0; i < 1000; i++) {
+            id += 1 + (i * 7919L) % 100000;
+            String key = Key.create(Key.create(Conference.class, 5629499534213120L + i % 20),
+                    Session.class, id).getString();
+            websafeLength += key.length();
+            set.add(key);
+        }
+        byte[] blob = set.encode();
+        assertTrue("The blob should be far smaller than the websafe keys: " + blob.length
+                + " vs " + websafeLength, blob.length * 10 < websafeLength);
+        assertEquals(1000, KeySet.decode(Session.class, blob).size());
+    }
+
+    @Test
+    public void testLegacyKeyLists() throws Exception {
+        // Profiles stored before the KeySet hold lists of websafe keys.
+        String conferenceKey = Key.create(Key.create(Profile.class, "organizer"),
+                Conference.class, 1L).getString();
+        String sessionKey = Key.create(Key.create(Conference.class, 1L), Session.class, 2L)
+                .getString();
+        Entity entity = new Entity(Key.create(Profile.class, USER_ID).getRaw());
+        entity.setProperty("displayName", DISPLAY_NAME);
+        entity.setProperty("conferencesKeysToAttend", Arrays.asList(conferenceKey));
+        entity.setProperty("sessionsKeysWishlist", Arrays.asList(sessionKey, "not a key"));
+        DatastoreServiceFactory.getDatastoreService().put(entity);
+
+        Profile legacy = ofy().load().key(Key.create(Profile.class, USER_ID)).now();
+        assertEquals(Arrays.asList(conferenceKey), legacy.getConferenceKeysToAttend());
+        assertEquals(Arrays.asList(sessionKey), legacy.getSessionKeysWishlist());
+
+        // Saving drops the lists for the blobs.
+        ofy().save().entity(legacy).now();
+        entity = DatastoreServiceFactory.getDatastoreService().get(entity.getKey());
+        assertFalse(entity.hasProperty("conferencesKeysToAttend"));
+        assertTrue(entity.getProperty("conferencesToAttend") instanceof Blob);
+        ofy().clear();
+        assertEquals(Arrays.asList(sessionKey), ofy().load()
+                .key(Key.create(Profile.class, USER_ID)).now().getSessionKeysWishlist());
+    }
+
+    private static byte[] encode(List<String> keys) {
+        KeySet<Conference> set = new KeySet<>(Conference.class);
+        for (String key : keys) {
+            set.add(key);
+        }
+        return set.encode();
+    }
+
+    private static List<String> sorted(List<String> keys) {
+        List<String> sorted = new ArrayList<>(keys);
+        Collections.sort(sorted);
+        return sorted;
+    }
 }
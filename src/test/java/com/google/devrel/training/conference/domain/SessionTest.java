@@ -1,21 +1,31 @@
 package com.google.devrel.training.conference.domain;
 
 import static com.google.devrel.training.conference.domain.Session.SessionType;
+import static com.google.devrel.training.conference.service.OfyService.ofy;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.List;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
 import com.google.devrel.training.conference.form.SessionForm;
 import com.google.devrel.training.conference.domain.Session;
+import com.google.devrel.training.conference.service.SessionMigrationService;
+import com.googlecode.objectify.Key;
 
 /**
  * Tests for Session POJO.
@@ -52,6 +62,7 @@ public class SessionTest {
     
     @After
     public void tearDown() throws Exception {
+        ofy().clear();
         helper.tearDown();
     }
     
@@ -74,4 +85,82 @@ public class SessionTest {
         assertNotSame(startTime, session.startTime());
     }
 
+    @Test
+    public void testDurationMinutes() throws Exception {
+        assertEquals(Integer.valueOf(120), Session.parseDurationMinutes("2h"));
+        assertEquals(Integer.valueOf(90), Session.parseDurationMinutes("1h30m"));
+        assertEquals(Integer.valueOf(90), Session.parseDurationMinutes("90"));
+        assertEquals(Integer.valueOf(45), Session.parseDurationMinutes("45 min"));
+        assertEquals(Integer.valueOf(120), Session.parseDurationMinutes("2 Hours"));
+        assertNull(Session.parseDurationMinutes(null));
+
+        Session session = new Session(ID, CONFERENCE_ID,
+                new SessionForm(SPEAKER, startTime, "90", SESSION_TYPE, LOCATION));
+        assertEquals(Integer.valueOf(90), session.getDurationMinutes());
+        assertEquals("1h30m", session.getDuration());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidDuration() throws Exception {
+        Session.parseDurationMinutes("all day");
+    }
+
+    @Test
+    public void testLegacyDuration() throws Exception {
+        // Sessions stored before durationMinutes hold the duration as typed.
+        Key<Session> key = Key.create(
+                Key.create(Conference.class, CONFERENCE_ID), Session.class, ID);
+        Entity entity = new Entity(key.getRaw());
+        entity.setProperty("speaker", SPEAKER);
+        entity.setProperty("duration", "1h 15m");
+        DatastoreServiceFactory.getDatastoreService().put(entity);
+
+        Session session = ofy().load().key(key).now();
+        assertEquals(Integer.valueOf(75), session.getDurationMinutes());
+        assertEquals("1h15m", session.getDuration());
+    }
+
+    @Test
+    public void testLegacyResave() throws Exception {
+        Key<Conference> conferenceKey = Key.create(Conference.class, CONFERENCE_ID);
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        String[] durations = {"1h 15m", "all day", null};
+        for (int i = 0; i < durations.length; i++) {
+            Entity entity = new Entity(Key.create(conferenceKey, Session.class, ID + i).getRaw());
+            entity.setProperty("speaker", SPEAKER);
+            entity.setUnindexedProperty("startTime", startTime);
+            entity.setUnindexedProperty("duration", durations[i]);
+            datastore.put(entity);
+        }
+        Session current = new Session(ID + 3, CONFERENCE_ID, sessionForm);
+        ofy().save().entity(current).now();
+        ofy().clear();
+
+        Session invalid = ofy().load().key(Key.create(conferenceKey, Session.class, ID + 1)).now();
+        assertTrue(invalid.legacy());
+        assertEquals("all day", invalid.invalidLegacyDuration());
+        assertTrue(ofy().load().key(Key.create(conferenceKey, Session.class, ID + 2)).now()
+                .legacy());
+        assertFalse(ofy().load().entity(current).now().legacy());
+        // Unindexed, the legacy sessions are missing from the queries.
+        assertEquals(1, ofy().load().type(Session.class).ancestor(conferenceKey)
+                .filter("startTime >=", startTime).count());
+
+        assertNull(SessionMigrationService.resave(null));
+        ofy().clear();
+
+        assertEquals(4, ofy().load().type(Session.class).ancestor(conferenceKey)
+                .filter("startTime >=", startTime).count());
+        List<Session> timed = ofy().load().type(Session.class).ancestor(conferenceKey)
+                .filter("durationMinutes >", 0).list();
+        assertEquals(2, timed.size());
+        assertEquals(Integer.valueOf(75), timed.get(0).getDurationMinutes());
+        for (long id = ID; id < ID + 3; id++) {
+            Entity entity = datastore.get(Key.create(conferenceKey, Session.class, id).getRaw());
+            assertFalse(entity.hasProperty("duration"));
+            assertFalse(ofy().load().key(Key.create(conferenceKey, Session.class, id)).now()
+                    .legacy());
+        }
+    }
+
 }
@@ -0,0 +1,196 @@
+package com.google.devrel.training.conference.spi;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.api.server.spi.response.NotFoundException;
+import com.google.appengine.api.users.User;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.devrel.training.conference.domain.AdmissionTicket;
+import com.google.devrel.training.conference.domain.AdmissionTicket.Status;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.domain.Registration;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.service.AdmissionService;
+import com.google.devrel.training.conference.service.ConferenceCache;
+import com.google.devrel.training.conference.service.ProfileCache;
+import com.googlecode.objectify.Key;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the admission queue of conferences.
+ */
+public class ConferenceApiAdmissionTest {
+
+    private static final int CAP = 2;
+
+    private User organizer;
+
+    private User user1;
+
+    private User user2;
+
+    private User user3;
+
+    private String websafeConferenceKey;
+
+    private ConferenceApi conferenceApi;
+
+    /**
+     * The helper here applies all jobs at once, since the worker reads the queue with a global
+     * query. A percentage of 0 would turn off cross-group transactions.
+     */
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(),
+                    new LocalTaskQueueTestConfig()
+                            .setQueueXmlPath("src/main/webapp/WEB-INF/queue.xml"));
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        conferenceApi = new ConferenceApi();
+        organizer = new User("organizer@gmail.com", "gmail.com", "123456789");
+        user1 = new User("user1@gmail.com", "gmail.com", "1");
+        user2 = new User("user2@gmail.com", "gmail.com", "2");
+        user3 = new User("user3@gmail.com", "gmail.com", "3");
+        Conference conference = conferenceApi.createConference(organizer,
+                new ConferenceForm("Flash opening", null, null, null, null, null, CAP));
+        websafeConferenceKey = conference.getWebsafeKey();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ProfileCache.clearLocal();
+        ConferenceCache.clearLocal();
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    @Test
+    public void testAdmissionInArrivalOrder() throws Exception {
+        AdmissionTicket ticket = conferenceApi.requestAdmission(user1, websafeConferenceKey);
+        assertEquals(Status.WAITING, ticket.getStatus());
+        assertEquals(Integer.valueOf(1), ticket.getPosition());
+        Thread.sleep(5);
+        conferenceApi.requestAdmission(user2, websafeConferenceKey);
+        Thread.sleep(5);
+        ticket = conferenceApi.requestAdmission(user3, websafeConferenceKey);
+        assertEquals(Integer.valueOf(3), ticket.getPosition());
+
+        assertEquals(3, AdmissionService.admitNext(websafeConferenceKey));
+
+        ticket = conferenceApi.getAdmission(user1, websafeConferenceKey);
+        assertEquals(Status.ADMITTED, ticket.getStatus());
+        assertNull(ticket.getPosition());
+        assertEquals(Status.ADMITTED,
+                conferenceApi.getAdmission(user2, websafeConferenceKey).getStatus());
+        ticket = conferenceApi.getAdmission(user3, websafeConferenceKey);
+        assertEquals(Status.WAITLISTED, ticket.getStatus());
+        assertEquals(Integer.valueOf(1), ticket.getPosition());
+
+        assertEquals(0, conferenceApi.getConference(websafeConferenceKey).getSeatsAvailable());
+        assertTrue("The admitted user should hold a registration.", ofy().load()
+                .key(Registration.createKey(websafeConferenceKey, user1.getUserId()))
+                .now().isActive());
+        assertNull(ofy().load()
+                .key(Registration.createKey(websafeConferenceKey, user3.getUserId())).now());
+        assertNotNull("The Profile should be created on request.",
+                ofy().load().key(Key.create(Profile.class, user3.getUserId())).now());
+    }
+
+    @Test
+    public void testBatchLeavesRoomForShards() throws Exception {
+        Conference conference = conferenceApi.createConference(organizer,
+                new ConferenceForm("Big opening", null, null, null, null, null, 2000));
+        String websafeKey = conference.getWebsafeKey();
+        assertEquals(20, conference.getSeatShards());
+        for (int i = 0; i < 6; i++) {
+            conferenceApi.requestAdmission(
+                    new User("crowd" + i + "@gmail.com", "gmail.com", "crowd" + i), websafeKey);
+            Thread.sleep(5);
+        }
+        // The conference, 20 shards and 4 Registrations make 25 entity groups.
+        assertEquals(4, AdmissionService.admitNext(websafeKey));
+        assertEquals(2, AdmissionService.admitNext(websafeKey));
+        ConferenceCache.clearLocal();
+        assertEquals(1994, conferenceApi.getConference(websafeKey).getSeatsAvailable());
+    }
+
+    @Test
+    public void testPositionMovesUpWithTheHead() throws Exception {
+        Conference conference = conferenceApi.createConference(organizer,
+                new ConferenceForm("Big opening", null, null, null, null, null, 2000));
+        String websafeKey = conference.getWebsafeKey();
+        User last = null;
+        for (int i = 0; i < 6; i++) {
+            last = new User("crowd" + i + "@gmail.com", "gmail.com", "crowd" + i);
+            conferenceApi.requestAdmission(last, websafeKey);
+            Thread.sleep(5);
+        }
+        assertEquals(Integer.valueOf(6),
+                conferenceApi.getAdmission(last, websafeKey).getPosition());
+        // The first batch takes 4 tickets out of the queue.
+        assertEquals(4, AdmissionService.admitNext(websafeKey));
+        assertEquals(Integer.valueOf(2),
+                conferenceApi.getAdmission(last, websafeKey).getPosition());
+    }
+
+    @Test
+    public void testWaitlistPromotion() throws Exception {
+        conferenceApi.requestAdmission(user1, websafeConferenceKey);
+        Thread.sleep(5);
+        conferenceApi.requestAdmission(user2, websafeConferenceKey);
+        Thread.sleep(5);
+        conferenceApi.requestAdmission(user3, websafeConferenceKey);
+        Thread.sleep(5);
+        conferenceApi.requestAdmission(organizer, websafeConferenceKey);
+        AdmissionService.admitNext(websafeConferenceKey);
+        assertEquals(Integer.valueOf(2),
+                conferenceApi.getAdmission(organizer, websafeConferenceKey).getPosition());
+        // Nothing to do while no seats are given back.
+        assertEquals(0, AdmissionService.admitNext(websafeConferenceKey));
+
+        // Both freed seats are promoted in a single run, in arrival order.
+        conferenceApi.unregisterFromConference(user1, websafeConferenceKey);
+        conferenceApi.unregisterFromConference(user2, websafeConferenceKey);
+        assertEquals(2, AdmissionService.admitNext(websafeConferenceKey));
+        assertEquals(Status.ADMITTED,
+                conferenceApi.getAdmission(user3, websafeConferenceKey).getStatus());
+        assertEquals(Status.ADMITTED,
+                conferenceApi.getAdmission(organizer, websafeConferenceKey).getStatus());
+        assertEquals(0, conferenceApi.getConference(websafeConferenceKey).getSeatsAvailable());
+    }
+
+    @Test
+    public void testRequestAdmissionKeepsPlace() throws Exception {
+        AdmissionTicket first = conferenceApi.requestAdmission(user1, websafeConferenceKey);
+        Thread.sleep(5);
+        AdmissionTicket second = conferenceApi.requestAdmission(user1, websafeConferenceKey);
+        assertEquals(first.getRequested(), second.getRequested());
+        assertEquals(1, AdmissionService.admitNext(websafeConferenceKey));
+    }
+
+    @Test
+    public void testAdmitAlreadyRegistered() throws Exception {
+        conferenceApi.registerForConference(user1, websafeConferenceKey);
+        conferenceApi.requestAdmission(user1, websafeConferenceKey);
+        AdmissionService.admitNext(websafeConferenceKey);
+
+        AdmissionTicket ticket = conferenceApi.getAdmission(user1, websafeConferenceKey);
+        assertEquals(Status.ADMITTED, ticket.getStatus());
+        assertEquals("Already registered.", ticket.getReason());
+        assertEquals(CAP - 1, conferenceApi.getConference(websafeConferenceKey).getSeatsAvailable());
+    }
+
+    @Test(expected = NotFoundException.class)
+    public void testGetAdmissionWithoutRequest() throws Exception {
+        conferenceApi.getAdmission(user1, websafeConferenceKey);
+    }
+}
@@ -3,18 +3,26 @@ package com.google.devrel.training.conference.spi;
 import static com.google.devrel.training.conference.service.OfyService.ofy;
 import static org.junit.Assert.*;
 
+import com.google.api.server.spi.response.BadRequestException;
+import com.google.api.server.spi.response.CollectionResponse;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
 import com.google.common.collect.ImmutableList;
 import com.google.devrel.training.conference.domain.Conference;
 import com.google.devrel.training.conference.form.ConferenceForm;
 import com.google.devrel.training.conference.form.ConferenceQueryForm;
+import com.google.devrel.training.conference.form.ConferenceQueryPlan;
+import com.google.devrel.training.conference.service.ConferenceCache;
+import com.google.devrel.training.conference.service.ConferenceQueryCache;
+import com.google.devrel.training.conference.service.ProfileCache;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
@@ -74,7 +82,9 @@ public class ConferenceApiGlobalQueryTest {
      */
     private final LocalServiceTestHelper helper =
             new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
-                    .setDefaultHighRepJobPolicyUnappliedJobPercentage(0));
+                    .setDefaultHighRepJobPolicyUnappliedJobPercentage(0),
+                    new LocalTaskQueueTestConfig()
+                            .setQueueXmlPath("src/main/webapp/WEB-INF/queue.xml"));
 
     private Conference conference1;
 
@@ -111,6 +121,9 @@ public class ConferenceApiGlobalQueryTest {
 
     @After
     public void tearDown() throws Exception {
+        ProfileCache.clearLocal();
+        ConferenceCache.clearLocal();
+        ConferenceQueryCache.clearLocal();
         ofy().clear();
         helper.tearDown();
     }
@@ -119,7 +132,8 @@ public class ConferenceApiGlobalQueryTest {
     public void testEmptyQuery() throws Exception {
         // Empty query.
         ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm();
-        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm);
+        List<Conference> conferences = new ArrayList<>(
+                conferenceApi.queryConferences(conferenceQueryForm).getItems());
         assertEquals(3, conferences.size());
         assertTrue("The result should contain conference1.", conferences.contains(conference1));
         assertTrue("The result should contain conference2.", conferences.contains(conference2));
@@ -129,6 +143,100 @@ public class ConferenceApiGlobalQueryTest {
         assertEquals(conference2, conferences.get(2));
     }
 
+    @Test
+    public void testPagination() throws Exception {
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm().pageSize(2);
+        CollectionResponse<Conference> page = conferenceApi.queryConferences(conferenceQueryForm);
+        List<Conference> conferences = new ArrayList<>(page.getItems());
+        assertEquals(2, conferences.size());
+        assertEquals(conference1, conferences.get(0));
+        assertEquals(conference3, conferences.get(1));
+        assertNotNull("There should be a next page.", page.getNextPageToken());
+
+        conferenceQueryForm.cursor(page.getNextPageToken());
+        page = conferenceApi.queryConferences(conferenceQueryForm);
+        conferences = new ArrayList<>(page.getItems());
+        assertEquals(1, conferences.size());
+        assertEquals(conference2, conferences.get(0));
+        assertNull("The last page shouldn't have a next page.", page.getNextPageToken());
+    }
+
+    @Test
+    public void testPaginationNE() throws Exception {
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.MAX_ATTENDEES,
+                        ConferenceQueryForm.Operator.NE,
+                        "1000"
+                ))
+                .pageSize(1);
+        CollectionResponse<Conference> page = conferenceApi.queryConferences(conferenceQueryForm);
+        assertEquals(conference1, page.getItems().iterator().next());
+        assertNotNull("There should be a next page.", page.getNextPageToken());
+
+        conferenceQueryForm.cursor(page.getNextPageToken());
+        page = conferenceApi.queryConferences(conferenceQueryForm);
+        assertEquals(conference3, page.getItems().iterator().next());
+        assertNull("The last page shouldn't have a next page.", page.getNextPageToken());
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void testInvalidCursor() throws Exception {
+        conferenceApi.queryConferences(new ConferenceQueryForm().cursor("invalid"));
+    }
+
+    @Test
+    public void testQueryCache() throws Exception {
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.CITY,
+                        ConferenceQueryForm.Operator.EQ,
+                        "Tokyo"
+                ));
+        assertEquals(1, conferenceApi.queryConferences(conferenceQueryForm).getItems().size());
+        assertArrayEquals(new long[] {0, 0, 1}, ConferenceQueryCache.getStats());
+        List<Conference> conferences = new ArrayList<>(
+                conferenceApi.queryConferences(conferenceQueryForm).getItems());
+        assertEquals(conference3, conferences.get(0));
+        assertArrayEquals(new long[] {1, 0, 1}, ConferenceQueryCache.getStats());
+
+        // A new conference is missed until the cache is invalidated.
+        Conference conference4 = new Conference(1004L, USER_ID, new ConferenceForm(
+                "Tokyo Summit", null, null, CITY3, null, null, CAP1));
+        ofy().save().entity(conference4).now();
+        assertEquals(1, conferenceApi.queryConferences(conferenceQueryForm).getItems().size());
+        ConferenceQueryCache.invalidate();
+        conferences = new ArrayList<>(
+                conferenceApi.queryConferences(conferenceQueryForm).getItems());
+        assertEquals(2, conferences.size());
+        assertTrue("The result should contain conference4.", conferences.contains(conference4));
+        assertArrayEquals(new long[] {2, 0, 2}, ConferenceQueryCache.getStats());
+    }
+
+    @Test
+    public void testQuerySignature() throws Exception {
+        ConferenceQueryForm.Filter topic = new ConferenceQueryForm.Filter(
+                ConferenceQueryForm.Field.TOPIC, ConferenceQueryForm.Operator.EQ, "Cloud");
+        ConferenceQueryForm.Filter month = new ConferenceQueryForm.Filter(
+                ConferenceQueryForm.Field.MONTH, ConferenceQueryForm.Operator.EQ, "6");
+        ConferenceQueryForm.Filter paddedMonth = new ConferenceQueryForm.Filter(
+                ConferenceQueryForm.Field.MONTH, ConferenceQueryForm.Operator.EQ, "06");
+        ConferenceQueryForm.Filter otherMonth = new ConferenceQueryForm.Filter(
+                ConferenceQueryForm.Field.MONTH, ConferenceQueryForm.Operator.EQ, "7");
+        String signature = new ConferenceQueryForm().filter(topic).filter(month).getSignature();
+        assertEquals(signature,
+                new ConferenceQueryForm().filter(paddedMonth).filter(topic).getSignature());
+        assertFalse(signature.equals(
+                new ConferenceQueryForm().filter(topic).filter(otherMonth).getSignature()));
+        assertEquals(
+                new ConferenceQueryForm().filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.CITY, ConferenceQueryForm.Operator.IN,
+                        "Tokyo,London")).getSignature(),
+                new ConferenceQueryForm().filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.CITY, ConferenceQueryForm.Operator.IN,
+                        "London, Tokyo")).getSignature());
+    }
+
     @Test
     public void testCityQuery() throws Exception {
         // A query only specifies the city.
@@ -138,11 +246,54 @@ public class ConferenceApiGlobalQueryTest {
                         ConferenceQueryForm.Operator.EQ,
                         "Tokyo"
                 ));
-        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm);
+        List<Conference> conferences = new ArrayList<>(
+                conferenceApi.queryConferences(conferenceQueryForm).getItems());
         assertEquals(1, conferences.size());
         assertTrue("The result should contain conference3.", conferences.contains(conference3));
     }
 
+    @Test
+    public void testCityInQuery() throws Exception {
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.CITY,
+                        ConferenceQueryForm.Operator.IN,
+                        "Tokyo, Mountain View"
+                ));
+        List<Conference> conferences = new ArrayList<>(
+                conferenceApi.queryConferences(conferenceQueryForm).getItems());
+        assertEquals(2, conferences.size());
+        assertEquals(conference1, conferences.get(0));
+        assertEquals(conference3, conferences.get(1));
+    }
+
+    @Test
+    public void testTopicsInPagination() throws Exception {
+        // Every conference matches both topics, but shows up once.
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.TOPIC,
+                        ConferenceQueryForm.Operator.IN,
+                        "Platform,Cloud"
+                ))
+                .pageSize(2);
+        assertEquals(2, conferenceApi.explainQueryConferences(conferenceQueryForm)
+                .getSubQueries().size());
+        CollectionResponse<Conference> page = conferenceApi.queryConferences(conferenceQueryForm);
+        List<Conference> conferences = new ArrayList<>(page.getItems());
+        assertEquals(2, conferences.size());
+        assertEquals(conference1, conferences.get(0));
+        assertEquals(conference3, conferences.get(1));
+        assertNotNull("There should be a next page.", page.getNextPageToken());
+
+        conferenceQueryForm.cursor(page.getNextPageToken());
+        page = conferenceApi.queryConferences(conferenceQueryForm);
+        conferences = new ArrayList<>(page.getItems());
+        assertEquals(1, conferences.size());
+        assertEquals(conference2, conferences.get(0));
+        assertNull("The last page shouldn't have a next page.", page.getNextPageToken());
+    }
+
     @Test
     public void testTopicsQuery() throws Exception {
         // A query only specifies the topics.
@@ -152,7 +303,8 @@ public class ConferenceApiGlobalQueryTest {
                         ConferenceQueryForm.Operator.EQ,
                         "Japan"
                 ));
-        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm);
+        List<Conference> conferences = new ArrayList<>(
+                conferenceApi.queryConferences(conferenceQueryForm).getItems());
         assertEquals(1, conferences.size());
         assertTrue("The result should contain conference3.", conferences.contains(conference3));
     }
@@ -176,7 +328,8 @@ public class ConferenceApiGlobalQueryTest {
                         ConferenceQueryForm.Operator.EQ,
                         "6"
                 ));
-        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm);
+        List<Conference> conferences = new ArrayList<>(
+                conferenceApi.queryConferences(conferenceQueryForm).getItems());
         assertEquals(1, conferences.size());
         assertTrue("The result should contain conference2.", conferences.contains(conference2));
     }
@@ -190,7 +343,8 @@ public class ConferenceApiGlobalQueryTest {
                         ConferenceQueryForm.Operator.GT,
                         "999"
                 ));
-        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm);
+        List<Conference> conferences = new ArrayList<>(
+                conferenceApi.queryConferences(conferenceQueryForm).getItems());
         assertEquals(2, conferences.size());
         assertTrue("The result should contain conference2.", conferences.contains(conference2));
         assertTrue("The result should contain conference3.", conferences.contains(conference3));
@@ -207,7 +361,8 @@ public class ConferenceApiGlobalQueryTest {
                         ConferenceQueryForm.Operator.LT,
                         "1001"
                 ));
-        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm);
+        List<Conference> conferences = new ArrayList<>(
+                conferenceApi.queryConferences(conferenceQueryForm).getItems());
         assertEquals(2, conferences.size());
         assertTrue("The result should contain conference1.", conferences.contains(conference1));
         assertTrue("The result should contain conference2.", conferences.contains(conference2));
@@ -224,7 +379,8 @@ public class ConferenceApiGlobalQueryTest {
                         ConferenceQueryForm.Operator.GTEQ,
                         "1000"
                 ));
-        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm);
+        List<Conference> conferences = new ArrayList<>(
+                conferenceApi.queryConferences(conferenceQueryForm).getItems());
         assertEquals(2, conferences.size());
         assertTrue("The result should contain conference2.", conferences.contains(conference2));
         assertTrue("The result should contain conference3.", conferences.contains(conference3));
@@ -241,7 +397,8 @@ public class ConferenceApiGlobalQueryTest {
                         ConferenceQueryForm.Operator.LTEQ,
                         "1000"
                 ));
-        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm);
+        List<Conference> conferences = new ArrayList<>(
+                conferenceApi.queryConferences(conferenceQueryForm).getItems());
         assertEquals(2, conferences.size());
         assertTrue("The result should contain conference1.", conferences.contains(conference1));
         assertTrue("The result should contain conference2.", conferences.contains(conference2));
@@ -258,7 +415,8 @@ public class ConferenceApiGlobalQueryTest {
                         ConferenceQueryForm.Operator.NE,
                         "1000"
                 ));
-        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm);
+        List<Conference> conferences = new ArrayList<>(
+                conferenceApi.queryConferences(conferenceQueryForm).getItems());
         assertEquals(2, conferences.size());
         assertTrue("The result should contain conference1.", conferences.contains(conference1));
         assertTrue("The result should contain conference3.", conferences.contains(conference3));
@@ -266,7 +424,7 @@ public class ConferenceApiGlobalQueryTest {
         assertEquals(conference3, conferences.get(1));
     }
 
-    @Test(expected = IllegalArgumentException.class)
+    @Test
     public void testMultipleInequalityFilter() throws Exception {
         // A query specifies the maxAttendees <= 1000 and month != 6.
         ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
@@ -280,5 +438,107 @@ public class ConferenceApiGlobalQueryTest {
                         ConferenceQueryForm.Operator.NE,
                         "6"
                 ));
+        List<Conference> conferences = new ArrayList<>(
+                conferenceApi.queryConferences(conferenceQueryForm).getItems());
+        assertEquals(1, conferences.size());
+        assertEquals(conference1, conferences.get(0));
+
+        // Both fields match 2 conferences, so the one without NE goes to the datastore.
+        ConferenceQueryPlan plan = conferenceApi.explainQueryConferences(conferenceQueryForm);
+        assertEquals(ImmutableList.of("maxAttendees <= 1000"), plan.getDatastoreFilters());
+        assertEquals(ImmutableList.of("month != 6"), plan.getInMemoryFilters());
+        assertEquals(ImmutableList.of("maxAttendees", "name"), plan.getOrder());
+        assertEquals(ImmutableList.of("maxAttendees: 2", "month: 2"), plan.getEstimates());
+    }
+
+    @Test
+    public void testMultipleInequalityFilterChoiceCached() throws Exception {
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.MONTH,
+                        ConferenceQueryForm.Operator.GT,
+                        "4"
+                ))
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.MAX_ATTENDEES,
+                        ConferenceQueryForm.Operator.LTEQ,
+                        "1000"
+                ));
+        // Both fields match 2 conferences, so the first one goes to the datastore.
+        ConferenceQueryPlan plan = conferenceApi.explainQueryConferences(conferenceQueryForm);
+        assertEquals(ImmutableList.of("month > 4"), plan.getDatastoreFilters());
+        assertEquals(ImmutableList.of("month: 2", "maxAttendees: 2"), plan.getEstimates());
+
+        // Counting again would now pick maxAttendees, but the choice for these filters holds.
+        for (long id = 2001; id < 2004; id++) {
+            ofy().save().entity(new Conference(id, USER_ID, new ConferenceForm(
+                    "Summit " + id, null, null, CITY3, startDate3, endDate3, CAP3))).now();
+        }
+        plan = conferenceApi.explainQueryConferences(conferenceQueryForm);
+        assertEquals(ImmutableList.of("month > 4"), plan.getDatastoreFilters());
+        assertEquals(ImmutableList.of("month: 2", "maxAttendees: 2"), plan.getEstimates());
+        List<Conference> conferences = new ArrayList<>(
+                conferenceApi.queryConferences(conferenceQueryForm).getItems());
+        assertEquals(ImmutableList.of(conference2), conferences);
+    }
+
+    @Test
+    public void testListPropertyNotEqualPagination() throws Exception {
+        ofy().delete().entities(conference1, conference2, conference3).now();
+        List<Conference> expected = new ArrayList<>();
+        String[][] topics = {{"Alpha", "Zulu"}, {"Bravo"}, {"Charlie"}, {"November"}, {"Zulu"}};
+        for (int i = 0; i < topics.length; i++) {
+            Conference conference = new Conference(2001L + i, USER_ID, new ConferenceForm(
+                    topics[i][0] + " Summit", null, ImmutableList.copyOf(topics[i]), CITY1,
+                    null, null, CAP1));
+            ofy().save().entity(conference).now();
+            expected.add(conference);
+        }
+        // topics < Mike returns the Alpha Summit first, by Alpha, and topics > Mike returns
+        // it again pages later, by Zulu. The local datastore only resumes topics > cursors
+        // on conferences without smaller topics, so the repeat sits inside a page.
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.TOPIC,
+                        ConferenceQueryForm.Operator.NE,
+                        "Mike"
+                ))
+                .pageSize(1);
+        List<Conference> conferences = new ArrayList<>();
+        CollectionResponse<Conference> page;
+        do {
+            page = conferenceApi.queryConferences(conferenceQueryForm);
+            conferences.addAll(page.getItems());
+            conferenceQueryForm.cursor(page.getNextPageToken());
+        } while (page.getNextPageToken() != null && conferences.size() < 10);
+        assertEquals(expected, conferences);
+    }
+
+    @Test
+    public void testMultipleInequalityFilterPagination() throws Exception {
+        // A query specifies the month > 2 and maxAttendees > 600.
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.MONTH,
+                        ConferenceQueryForm.Operator.GT,
+                        "2"
+                ))
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.MAX_ATTENDEES,
+                        ConferenceQueryForm.Operator.GT,
+                        "600"
+                ))
+                .pageSize(1);
+        assertEquals(ImmutableList.of("maxAttendees > 600"),
+                conferenceApi.explainQueryConferences(conferenceQueryForm).getDatastoreFilters());
+        CollectionResponse<Conference> page = conferenceApi.queryConferences(conferenceQueryForm);
+        assertEquals(conference2, page.getItems().iterator().next());
+        assertTrue("The cursor should name the planned field.",
+                page.getNextPageToken().startsWith("maxAttendees:"));
+
+        conferenceQueryForm.cursor(page.getNextPageToken());
+        page = conferenceApi.queryConferences(conferenceQueryForm);
+        assertEquals(conference3, page.getItems().iterator().next());
+        assertNull("The last page shouldn't have a next page.", page.getNextPageToken());
     }
 }
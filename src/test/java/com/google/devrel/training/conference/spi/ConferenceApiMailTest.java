@@ -0,0 +1,203 @@
+package com.google.devrel.training.conference.spi;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.appengine.api.taskqueue.TaskOptions.Method;
+import com.google.appengine.api.taskqueue.dev.QueueStateInfo.TaskStateInfo;
+import com.google.appengine.api.users.User;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.DeadLetterMail;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.service.ConferenceCache;
+import com.google.devrel.training.conference.service.MailService;
+import com.google.devrel.training.conference.service.MailTransport;
+import com.google.devrel.training.conference.service.OutboxService;
+import com.google.devrel.training.conference.service.ProfileCache;
+import com.googlecode.objectify.Key;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.mail.MessagingException;
+
+/**
+ * Tests for the mail pipeline, with an in-memory transport in place of the Mail service.
+ */
+public class ConferenceApiMailTest {
+
+    private static final Logger LOG = Logger.getLogger(ConferenceApiMailTest.class.getName());
+
+    private static final int MAILS = 500;
+
+    /**
+     * Records the mails sent, and fails the ones to addresses starting with "fail".
+     */
+    private static class InMemoryMailTransport implements MailTransport {
+
+        private final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+
+        private final List<String> bodies = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public void send(String to, String subject, String body) throws MessagingException {
+            if (to.startsWith("fail")) {
+                throw new MessagingException("Mailbox unavailable: " + to);
+            }
+            sent.add(to + ": " + subject);
+            bodies.add(body);
+        }
+    }
+
+    /**
+     * The helper here applies all jobs at once, since the dead letters are read with a global
+     * query.
+     */
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(),
+                    new LocalTaskQueueTestConfig().setDisableAutoTaskExecution(true)
+                            .setQueueXmlPath("src/main/webapp/WEB-INF/queue.xml"));
+
+    private InMemoryMailTransport transport;
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        transport = new InMemoryMailTransport();
+        MailService.setTransport(transport, 10000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        MailService.setTransport(null, 8);
+        OutboxService.clearLocal();
+        ProfileCache.clearLocal();
+        ConferenceCache.clearLocal();
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    @Test
+    public void testConfirmationMail() throws Exception {
+        Conference conference = new ConferenceApi().createConference(
+                new User("organizer@gmail.com", "gmail.com", "123456789"),
+                new ConferenceForm("Mail test", null, null, null, null, null, 10));
+
+        // The mail is enqueued when the event of the new conference is delivered.
+        assertEquals(1, OutboxService.sweep(Long.MAX_VALUE));
+        // The task carries only the key of the conference.
+        List<TaskStateInfo> tasks = LocalTaskQueueTestConfig.getLocalTaskQueue()
+                .getQueueStateInfo().get(MailService.QUEUE_NAME).getTaskInfo();
+        assertEquals(1, tasks.size());
+        assertEquals("websafeConferenceKey=" + conference.getWebsafeKey(),
+                tasks.get(0).getBody());
+
+        awaitTasks();
+        assertEquals(1, MailService.processBatch());
+        assertEquals(Collections.singletonList(
+                "organizer@gmail.com: You created a new conference"), transport.sent);
+        assertTrue(transport.bodies.get(0).contains("Mail test"));
+        assertEquals(0, MailService.processBatch());
+    }
+
+    @Test
+    public void testConfirmationPerConference() throws Exception {
+        // Conference ids are only unique under their organizer.
+        Key<Conference> first = Key.create(Key.create(Profile.class, "1"), Conference.class, 1);
+        Key<Conference> second = Key.create(Key.create(Profile.class, "2"), Conference.class, 1);
+        MailService.enqueueConfirmation(first);
+        MailService.enqueueConfirmation(second);
+        // Delivered again.
+        MailService.enqueueConfirmation(first);
+        assertEquals(2, LocalTaskQueueTestConfig.getLocalTaskQueue()
+                .getQueueStateInfo().get(MailService.QUEUE_NAME).getCountTasks());
+    }
+
+    @Test
+    public void testConfirmationBatch() throws Exception {
+        ConferenceApi conferenceApi = new ConferenceApi();
+        User organizer = new User("organizer@gmail.com", "gmail.com", "123456789");
+        for (int i = 0; i < 3; i++) {
+            conferenceApi.createConference(organizer,
+                    new ConferenceForm("Batch " + i, null, null, null, null, null, 10));
+        }
+        Conference deleted = conferenceApi.createConference(organizer,
+                new ConferenceForm("Deleted", null, null, null, null, null, 10));
+        assertEquals(4, OutboxService.sweep(Long.MAX_VALUE));
+        ofy().delete().key(Key.create(deleted.getWebsafeKey())).now();
+        ofy().clear();
+
+        awaitTasks();
+        // The mail of a deleted conference is dropped.
+        assertEquals(4, MailService.processBatch());
+        assertEquals(3, transport.sent.size());
+        assertArrayEquals(new long[] {3, 0, 0}, MailService.getStats());
+        assertEquals(0, MailService.processBatch());
+    }
+
+    @Test
+    public void testRetriesAndDeadLetters() throws Exception {
+        MailService.enqueue("fail@gmail.com", "Subject", "Body");
+        // A mail without a recipient can never be sent.
+        QueueFactory.getQueue(MailService.QUEUE_NAME).add(TaskOptions.Builder
+                .withMethod(Method.PULL)
+                .param("subject", "Subject"));
+
+        awaitTasks();
+        assertEquals(2, MailService.processBatch());
+        assertArrayEquals(new long[] {0, 1, 1}, MailService.getStats());
+        List<DeadLetterMail> deadLetters = ofy().load().type(DeadLetterMail.class).list();
+        assertEquals(1, deadLetters.size());
+        assertNull(deadLetters.get(0).getTo());
+        assertEquals(1, deadLetters.get(0).getAttempts());
+
+        // The failed mail backs off, so it isn't leased again at once.
+        assertEquals(0, MailService.processBatch());
+        assertEquals(1, LocalTaskQueueTestConfig.getLocalTaskQueue().getQueueStateInfo()
+                .get(MailService.QUEUE_NAME).getCountTasks());
+    }
+
+    @Test
+    public void testThroughput() throws Exception {
+        for (int i = 0; i < MAILS; i++) {
+            MailService.enqueue("attendee" + i + "@gmail.com", "Subject", "Body");
+        }
+
+        awaitTasks();
+        long start = System.nanoTime();
+        assertEquals(MAILS, MailService.drain(System.currentTimeMillis() + 60 * 1000));
+        long elapsed = System.nanoTime() - start;
+        assertEquals(MAILS, transport.sent.size());
+        assertEquals(0, MailService.processBatch());
+        LOG.info(String.format("Sent %d mails in batches at %.0f mails per second.",
+                MAILS, MAILS * 1e9 / elapsed));
+    }
+
+    /**
+     * Waits until the tasks just enqueued can be leased: the local queue only leases tasks
+     * whose ETA is strictly in the past.
+     */
+    private static void awaitTasks() throws InterruptedException {
+        long latest = 0;
+        for (TaskStateInfo task : LocalTaskQueueTestConfig.getLocalTaskQueue()
+                .getQueueStateInfo().get(MailService.QUEUE_NAME).getTaskInfo()) {
+            latest = Math.max(latest, task.getEtaMillis());
+        }
+        while (System.currentTimeMillis() <= latest) {
+            Thread.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package com.google.devrel.training.conference.spi;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.users.User;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.apphosting.api.ApiProxy;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.form.ConferenceQueryForm;
+import com.google.devrel.training.conference.form.ProfileForm;
+import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.google.devrel.training.conference.form.SessionForm;
+import com.google.devrel.training.conference.service.ConferenceCache;
+import com.google.devrel.training.conference.service.ConferenceQueryCache;
+import com.google.devrel.training.conference.service.ProfileCache;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests that conference lists resolve their organizers with a constant number of datastore
+ * calls, whatever the number of conferences.
+ */
+public class ConferenceApiRpcCountTest {
+
+    private static final int ORGANIZERS = 5;
+
+    private static final int READERS = 20;
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(), new LocalMemcacheServiceTestConfig(),
+                    new LocalTaskQueueTestConfig()
+                            .setQueueXmlPath("src/main/webapp/WEB-INF/queue.xml"));
+
+    private ConferenceApi conferenceApi;
+
+    private List<User> organizers;
+
+    private CountingDelegate counter;
+
+    @SuppressWarnings("rawtypes")
+    private ApiProxy.Delegate original;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Exception {
+        helper.setUp();
+        conferenceApi = new ConferenceApi();
+        organizers = new ArrayList<>();
+        for (int i = 0; i < ORGANIZERS; i++) {
+            User organizer = new User("organizer" + i + "@gmail.com", "gmail.com", "id" + i);
+            conferenceApi.saveProfile(organizer,
+                    new ProfileForm("Organizer " + i, TeeShirtSize.M));
+            conferenceApi.createConference(organizer,
+                    new ConferenceForm("Conference " + i, null, null, null, null, null, 10));
+            conferenceApi.createConference(organizer,
+                    new ConferenceForm("Workshop " + i, null, null, null, null, null, 10));
+            organizers.add(organizer);
+        }
+        // Start from cold caches, so every load reaches the datastore.
+        ofy().clear();
+        MemcacheServiceFactory.getMemcacheService().clearAll();
+
+        original = ApiProxy.getDelegate();
+        counter = new CountingDelegate(original);
+        ApiProxy.setDelegate(counter);
+    }
+
+    @After
+    @SuppressWarnings("unchecked")
+    public void tearDown() throws Exception {
+        ProfileCache.clearLocal();
+        ConferenceCache.clearLocal();
+        ApiProxy.setDelegate(original);
+        ConferenceQueryCache.clearLocal();
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    @Test
+    public void testQueryConferencesPageGets() throws Exception {
+        Collection<Conference> page = conferenceApi.queryConferences(
+                new ConferenceQueryForm().pageSize(2 * ORGANIZERS)).getItems();
+        assertEquals(2 * ORGANIZERS, page.size());
+        for (Conference conference : page) {
+            assertTrue(conference.getOrganizerDisplayName().startsWith("Organizer "));
+            assertEquals(10, conference.getSeatsAvailable());
+        }
+        // One get for the conferences of the page, one for all their organizers and one for
+        // all their seat shards.
+        assertTrue("Expected at most 3 gets, got " + counter.gets.get(),
+                counter.gets.get() <= 3);
+    }
+
+    @Test
+    public void testGetConferencesCreatedGets() throws Exception {
+        Collection<Conference> conferences =
+                conferenceApi.getConferencesCreated(organizers.get(0));
+        assertEquals(2, conferences.size());
+        int gets = counter.gets.get();
+        for (Conference conference : conferences) {
+            assertEquals("Organizer 0", conference.getOrganizerDisplayName());
+            assertEquals(10, conference.getSeatsAvailable());
+        }
+        assertEquals("Display names and seats should be attached already.", gets,
+                counter.gets.get());
+    }
+
+    @Test
+    public void testGetConferenceSessionsCalls() throws Exception {
+        User organizer = organizers.get(0);
+        String websafeConferenceKey =
+                conferenceApi.getConferencesCreated(organizer).get(0).getWebsafeKey();
+        conferenceApi.createSession(organizer,
+                new SessionForm("Speaker", null, null, null, null), websafeConferenceKey);
+        ofy().clear();
+        counter.reset();
+
+        assertEquals(1, conferenceApi.getConferenceSessions(websafeConferenceKey).size());
+        assertEquals("The sessions should come from the snapshot.", 0, counter.datastoreCalls.get());
+        assertEquals("Expected a single memcache read.", 1, counter.memcacheCalls.get());
+    }
+
+    @Test
+    public void testGetConferenceHerd() throws Exception {
+        final Conference conference =
+                conferenceApi.getConferencesCreated(organizers.get(0)).get(0);
+        ofy().clear();
+        MemcacheServiceFactory.getMemcacheService().clearAll();
+        counter.reset();
+        // Slow gets keep the first load in flight while the other reads arrive.
+        counter.getDelayMillis = 50;
+
+        final ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(READERS);
+        List<Future<String>> reads = new ArrayList<>();
+        for (int i = 0; i < READERS; i++) {
+            reads.add(executor.submit(new Callable<String>() {
+                public String call() throws Exception {
+                    ApiProxy.setEnvironmentForCurrentThread(environment);
+                    start.await();
+                    try {
+                        return conferenceApi.getConference(conference.getWebsafeKey())
+                                .getOrganizerDisplayName();
+                    } finally {
+                        ofy().clear();
+                    }
+                }
+            }));
+        }
+        start.countDown();
+        for (Future<String> read : reads) {
+            assertEquals("Organizer 0", read.get());
+        }
+        executor.shutdown();
+
+        long[] stats = ConferenceCache.getStats();
+        long loads = stats[1];
+        assertEquals(READERS, stats[0] + loads + stats[2]);
+        assertTrue("Expected the reads to share a load, got " + loads + " loads.",
+                loads < READERS / 2);
+        // Each load gets the conference, its organizer and its seat shards.
+        assertEquals(3 * loads, counter.gets.get());
+    }
+
+    /**
+     * Forwards every call to the original delegate, counting datastore and memcache calls.
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static class CountingDelegate implements ApiProxy.Delegate<ApiProxy.Environment> {
+
+        private final ApiProxy.Delegate delegate;
+
+        private final AtomicInteger gets = new AtomicInteger();
+
+        private final AtomicInteger datastoreCalls = new AtomicInteger();
+
+        private final AtomicInteger memcacheCalls = new AtomicInteger();
+
+        private volatile long getDelayMillis;
+
+        CountingDelegate(final ApiProxy.Delegate delegate) {
+            this.delegate = delegate;
+        }
+
+        private void count(final String packageName, final String methodName) {
+            if ("datastore_v3".equals(packageName) && "Get".equals(methodName)) {
+                gets.incrementAndGet();
+                if (getDelayMillis > 0) {
+                    Uninterruptibles.sleepUninterruptibly(getDelayMillis, TimeUnit.MILLISECONDS);
+                }
+            }
+            if ("datastore_v3".equals(packageName)) {
+                datastoreCalls.incrementAndGet();
+            } else if ("memcache".equals(packageName)) {
+                memcacheCalls.incrementAndGet();
+            }
+        }
+
+        void reset() {
+            gets.set(0);
+            datastoreCalls.set(0);
+            memcacheCalls.set(0);
+            getDelayMillis = 0;
+        }
+
+        @Override
+        public byte[] makeSyncCall(ApiProxy.Environment environment, String packageName,
+                                   String methodName, byte[] request) {
+            count(packageName, methodName);
+            return delegate.makeSyncCall(environment, packageName, methodName, request);
+        }
+
+        @Override
+        public Future<byte[]> makeAsyncCall(ApiProxy.Environment environment, String packageName,
+                                            String methodName, byte[] request,
+                                            ApiProxy.ApiConfig apiConfig) {
+            count(packageName, methodName);
+            return delegate.makeAsyncCall(environment, packageName, methodName, request,
+                    apiConfig);
+        }
+
+        @Override
+        public void log(ApiProxy.Environment environment, ApiProxy.LogRecord record) {
+            delegate.log(environment, record);
+        }
+
+        @Override
+        public void flushLogs(ApiProxy.Environment environment) {
+            delegate.flushLogs(environment);
+        }
+
+        @Override
+        public List<Thread> getRequestThreads(ApiProxy.Environment environment) {
+            return delegate.getRequestThreads(environment);
+        }
+    }
+}
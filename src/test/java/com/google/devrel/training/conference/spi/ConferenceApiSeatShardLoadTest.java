@@ -0,0 +1,142 @@
+package com.google.devrel.training.conference.spi;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.api.server.spi.response.ConflictException;
+import com.google.api.server.spi.response.ForbiddenException;
+import com.google.appengine.api.users.User;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.apphosting.api.ApiProxy;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.SeatShard;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.service.ConferenceCache;
+import com.google.devrel.training.conference.service.ProfileCache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Load test for concurrent registrations against conferences with and without seat shards.
+ */
+public class ConferenceApiSeatShardLoadTest {
+
+    private static final Logger LOG =
+            Logger.getLogger(ConferenceApiSeatShardLoadTest.class.getName());
+
+    private static final String ORGANIZER_USER_ID = "123456789";
+
+    private static final int THREADS = 4;
+
+    private static final int CAP = 40;
+
+    private ConferenceApi conferenceApi;
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+                    .setDefaultHighRepJobPolicyUnappliedJobPercentage(100),
+                    new LocalTaskQueueTestConfig()
+                            .setQueueXmlPath("src/main/webapp/WEB-INF/queue.xml"));
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        conferenceApi = new ConferenceApi();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ProfileCache.clearLocal();
+        ConferenceCache.clearLocal();
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    @Test
+    public void testRegistrationsPerSecond() throws Exception {
+        double unsharded = registrationsPerSecond(1001L, 0);
+        double oneShard = registrationsPerSecond(1002L, 1);
+        double fourShards = registrationsPerSecond(1003L, 4);
+        double tenShards = registrationsPerSecond(1004L, 10);
+        LOG.info(String.format("Registrations per second with %d threads: unsharded %.1f, "
+                + "1 shard %.1f, 4 shards %.1f, 10 shards %.1f",
+                THREADS, unsharded, oneShard, fourShards, tenShards));
+    }
+
+    /**
+     * Registers CAP users concurrently and checks that every successful registration booked
+     * a seat. Registrations may fail on contention, but never with "No seats left."
+     *
+     * @return the number of successful registrations per second.
+     */
+    private double registrationsPerSecond(final long conferenceId, final int shards)
+            throws Exception {
+        Conference conference = new Conference(conferenceId, ORGANIZER_USER_ID,
+                new ConferenceForm("Load test", null, null, null, null, null, CAP));
+        List<SeatShard> seatShards = shards == 0
+                ? Collections.<SeatShard>emptyList() : conference.shardSeats(shards);
+        ofy().save().entity(conference).now();
+        ofy().save().entities(seatShards).now();
+        final String websafeConferenceKey = conference.getWebsafeKey();
+
+        final ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+        final AtomicInteger registered = new AtomicInteger();
+        final AtomicInteger rejected = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        List<Callable<Void>> registrations = new ArrayList<>();
+        for (int i = 0; i < CAP; i++) {
+            final User user = new User("user" + i + "@gmail.com", "gmail.com",
+                    conferenceId + "-" + i);
+            registrations.add(new Callable<Void>() {
+                public Void call() throws Exception {
+                    ApiProxy.setEnvironmentForCurrentThread(environment);
+                    try {
+                        conferenceApi.registerForConference(user, websafeConferenceKey);
+                        registered.incrementAndGet();
+                    } catch (ConflictException e) {
+                        rejected.incrementAndGet();
+                    } catch (ForbiddenException e) {
+                        // The transaction gave up on contention.
+                        failed.incrementAndGet();
+                    } finally {
+                        ofy().clear();
+                    }
+                    return null;
+                }
+            });
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        long start = System.nanoTime();
+        executor.invokeAll(registrations);
+        long elapsed = System.nanoTime() - start;
+        executor.shutdown();
+
+        ofy().clear();
+        conference = conferenceApi.getConference(websafeConferenceKey);
+        int seatsBooked = CAP - conference.getSeatsAvailable();
+        assertEquals("No registration should be rejected while seats are left.",
+                0, rejected.get());
+        assertEquals(CAP, registered.get() + failed.get());
+        // The local datastore may apply a commit it reported as failed, so only the
+        // successful registrations are known to hold a seat.
+        assertTrue(seatsBooked >= registered.get());
+        assertTrue(seatsBooked <= CAP);
+        LOG.info(String.format("%d shards: %d registrations failed on contention.",
+                shards, failed.get()));
+        return registered.get() * 1e9 / elapsed;
+    }
+}
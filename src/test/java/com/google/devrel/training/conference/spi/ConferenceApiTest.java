@@ -3,20 +3,50 @@ package com.google.devrel.training.conference.spi;
 import static com.google.devrel.training.conference.service.OfyService.ofy;
 import static org.junit.Assert.*;
 
+import com.google.api.server.spi.response.BadRequestException;
+import com.google.api.server.spi.response.ConflictException;
+import com.google.api.server.spi.response.NotFoundException;
 import com.google.api.server.spi.response.UnauthorizedException;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.dev.QueueStateInfo.TaskStateInfo;
 import com.google.appengine.api.users.User;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.devrel.training.conference.Constants;
 import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.IntervalIndex;
+import com.google.devrel.training.conference.domain.OutboxEvent;
 // import com.google.devrel.training.conference.domain.Conference;
 import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.domain.Registration;
+import com.google.devrel.training.conference.domain.SeatShard;
 import com.google.devrel.training.conference.domain.Session;
 import com.google.devrel.training.conference.domain.Session.SessionType;
+import com.google.devrel.training.conference.domain.SessionImport;
+import com.google.devrel.training.conference.domain.SessionSnapshot;
+import com.google.devrel.training.conference.domain.Speaker;
 import com.google.devrel.training.conference.form.ConferenceForm;
 // import com.google.devrel.training.conference.form.ConferenceForm;
 import com.google.devrel.training.conference.form.ProfileForm;
 import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
 import com.google.devrel.training.conference.form.SessionForm;
+import com.google.devrel.training.conference.form.SessionImportForm;
+import com.google.devrel.training.conference.form.SessionQueryForm;
+import com.google.devrel.training.conference.service.ConferenceCache;
+import com.google.devrel.training.conference.service.FeaturedSpeakerService;
+import com.google.devrel.training.conference.service.HomePageCache;
+import com.google.devrel.training.conference.service.NearlySoldOutService;
+import com.google.devrel.training.conference.service.OutboxHandler;
+import com.google.devrel.training.conference.service.OutboxService;
+import com.google.devrel.training.conference.service.RegistrationService;
+import com.google.devrel.training.conference.service.ProfileCache;
+import com.google.devrel.training.conference.service.SeatShardService;
+import com.google.devrel.training.conference.service.SpeakerStatsService;
+import com.google.devrel.training.conference.spi.ConferenceApi.WrappedBoolean;
 import com.googlecode.objectify.Key;
 
 import org.junit.After;
@@ -26,6 +56,7 @@ import org.junit.Test;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 
@@ -58,7 +89,9 @@ public class ConferenceApiTest {
 
     private final LocalServiceTestHelper helper =
             new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
-                    .setDefaultHighRepJobPolicyUnappliedJobPercentage(100));
+                    .setDefaultHighRepJobPolicyUnappliedJobPercentage(100),
+                    new LocalTaskQueueTestConfig().setDisableAutoTaskExecution(true)
+                            .setQueueXmlPath("src/main/webapp/WEB-INF/queue.xml"));
 
     @Before
     public void setUp() throws Exception {
@@ -69,6 +102,11 @@ public class ConferenceApiTest {
 
     @After
     public void tearDown() throws Exception {
+        ProfileCache.clearLocal();
+        ConferenceCache.clearLocal();
+        HomePageCache.clearLocal();
+        FeaturedSpeakerService.clearLocal();
+        OutboxService.clearLocal();
         ofy().clear();
         helper.tearDown();
     }
@@ -175,6 +213,28 @@ public class ConferenceApiTest {
 
 
     
+    @Test
+    public void testProfileCache() throws Exception {
+        conferenceApi.saveProfile(user, new ProfileForm(DISPLAY_NAME, TEE_SHIRT_SIZE));
+        Profile profile = conferenceApi.getProfile(user);
+        assertEquals(1, profile.getVersion());
+        assertSame(profile, conferenceApi.getProfile(user));
+        assertArrayEquals(new long[] {1, 1}, ProfileCache.getStats());
+
+        // Saving the profile drops the cached copy.
+        conferenceApi.saveProfile(user, new ProfileForm("Updated Name", TEE_SHIRT_SIZE));
+        profile = conferenceApi.getProfile(user);
+        assertEquals("Updated Name", profile.getDisplayName());
+        assertEquals(2, profile.getVersion());
+
+        // So does changing the registrations.
+        Conference conference = conferenceApi.createConference(user, new ConferenceForm(
+                NAME, DESCRIPTION, null, CITY, null, null, CAP));
+        conferenceApi.registerForConference(user, conference.getWebsafeKey());
+        assertEquals(Arrays.asList(conference.getWebsafeKey()),
+                conferenceApi.getProfile(user).getConferenceKeysToAttend());
+    }
+
     @Test
     public void testCreateConference() throws Exception {
         DateFormat dateFormat = new SimpleDateFormat("MM/dd/yyyy");
@@ -257,6 +317,22 @@ public class ConferenceApiTest {
     }
     
     @Test
+    public void testConferenceCache() throws Exception {
+        Conference conference = conferenceApi.createConference(user, new ConferenceForm(
+                NAME, DESCRIPTION, new ArrayList<String>(), CITY, null, null, CAP));
+        String conferenceWebsafeKey = conference.getWebsafeKey();
+        assertEquals(CAP, conferenceApi.getConference(conferenceWebsafeKey).getSeatsAvailable());
+        assertEquals(CAP, conferenceApi.getConference(conferenceWebsafeKey).getSeatsAvailable());
+        assertArrayEquals(new long[] {1, 1, 0}, ConferenceCache.getStats());
+
+        // A registration on this instance drops the cached conference.
+        conferenceApi.registerForConference(user, conferenceWebsafeKey);
+        assertEquals(CAP - 1,
+                conferenceApi.getConference(conferenceWebsafeKey).getSeatsAvailable());
+        assertArrayEquals(new long[] {1, 2, 0}, ConferenceCache.getStats());
+    }
+
+        @Test
     public void testRegistrations() throws Exception {
         DateFormat dateFormat = new SimpleDateFormat("MM/dd/yyyy");
         Date startDate = dateFormat.parse("03/25/2014");
@@ -290,6 +366,112 @@ public class ConferenceApiTest {
                 profile.getConferenceKeysToAttend().contains(conference.getWebsafeKey()));
     }
     
+    @Test
+    public void testRegistrationLedger() throws Exception {
+        ConferenceForm conferenceForm = new ConferenceForm(
+                NAME, DESCRIPTION, new ArrayList<String>(), CITY, null, null, CAP);
+        Conference conference = conferenceApi.createConference(user, conferenceForm);
+        String websafeKey = conference.getWebsafeKey();
+        Key<Registration> registrationKey = Registration.createKey(websafeKey, USER_ID);
+
+        conferenceApi.registerForConference(user, websafeKey);
+        Registration registration = ofy().load().key(registrationKey).now();
+        assertTrue("The registration should be active.", registration.isActive());
+
+        conferenceApi.unregisterFromConference(user, websafeKey);
+        registration = ofy().load().key(registrationKey).now();
+        assertFalse("The registration should be cancelled.", registration.isActive());
+
+        // Registering again reactivates the same ledger entry.
+        conferenceApi.registerForConference(user, websafeKey);
+        registration = ofy().load().key(registrationKey).now();
+        Profile profile = ofy().load().key(Key.create(Profile.class, USER_ID)).now();
+        assertTrue("The registration should be active.", registration.isActive());
+        assertEquals(1, profile.getConferenceKeysToAttend().size());
+        assertEquals(CAP - 1, conferenceApi.getConference(websafeKey).getSeatsAvailable());
+    }
+
+    @Test(expected = ConflictException.class)
+    public void testRegisterTwice() throws Exception {
+        ConferenceForm conferenceForm = new ConferenceForm(
+                NAME, DESCRIPTION, new ArrayList<String>(), CITY, null, null, CAP);
+        Conference conference = conferenceApi.createConference(user, conferenceForm);
+        conferenceApi.registerForConference(user, conference.getWebsafeKey());
+        conferenceApi.registerForConference(user, conference.getWebsafeKey());
+    }
+
+    @Test
+    public void testRegisterForConferences() throws Exception {
+        Conference conference1 = conferenceApi.createConference(user, new ConferenceForm(
+                NAME, DESCRIPTION, new ArrayList<String>(), CITY, null, null, CAP));
+        Conference conference2 = conferenceApi.createConference(user, new ConferenceForm(
+                NAME, DESCRIPTION, new ArrayList<String>(), CITY, null, null, CAP));
+        User organizer = new User("organizer@gmail.com", "gmail.com", "987654321");
+        Conference fullConference = conferenceApi.createConference(organizer, new ConferenceForm(
+                NAME, DESCRIPTION, new ArrayList<String>(), CITY, null, null, 0));
+
+        List<WrappedBoolean> results = conferenceApi.registerForConferences(user, Arrays.asList(
+                conference1.getWebsafeKey(), fullConference.getWebsafeKey(),
+                conference2.getWebsafeKey(), conference1.getWebsafeKey(), "invalid"));
+        assertEquals(5, results.size());
+        assertTrue(results.get(0).getResult());
+        assertEquals("No seats left.", results.get(1).getReason());
+        assertTrue(results.get(2).getResult());
+        assertEquals("Already registered.", results.get(3).getReason());
+        assertFalse(results.get(4).getResult());
+
+        assertEquals(CAP - 1,
+                conferenceApi.getConference(conference1.getWebsafeKey()).getSeatsAvailable());
+        assertEquals(CAP - 1,
+                conferenceApi.getConference(conference2.getWebsafeKey()).getSeatsAvailable());
+        Profile profile = ofy().load().key(Key.create(Profile.class, USER_ID)).now();
+        assertEquals(2, profile.getConferenceKeysToAttend().size());
+    }
+
+    @Test
+    public void testRegisterForConferencesBatch() throws Exception {
+        User organizer = new User("organizer@gmail.com", "gmail.com", "987654321");
+        List<String> websafeConferenceKeys = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            websafeConferenceKeys.add(conferenceApi.createConference(organizer,
+                    new ConferenceForm(NAME + i, DESCRIPTION, new ArrayList<String>(), CITY,
+                            null, null, 10)).getWebsafeKey());
+        }
+
+        // The conferences, their Registrations and single shards fit in one transaction,
+        // which enqueues one sync of the Profile for all of them.
+        for (WrappedBoolean result
+                : conferenceApi.registerForConferences(user, websafeConferenceKeys)) {
+            assertTrue(result.getReason(), result.getResult());
+        }
+        assertEquals(1, countTasks(RegistrationService.SYNC_PROFILE_URL));
+        Profile profile = ofy().load().key(Key.create(Profile.class, USER_ID)).now();
+        assertEquals(8, profile.getConferenceKeysToAttend().size());
+    }
+
+    @Test
+    public void testUnregisterLegacyRegistration() throws Exception {
+        ConferenceForm conferenceForm = new ConferenceForm(
+                NAME, DESCRIPTION, new ArrayList<String>(), CITY, null, null, CAP);
+        Conference conference = conferenceApi.createConference(user, conferenceForm);
+        String websafeKey = conference.getWebsafeKey();
+        // A registration made before the ledger existed is only in the Profile.
+        SeatShardService.bookSeats(conference, 1,
+                Registration.createKey(websafeKey, USER_ID));
+        Profile profile = ofy().load().key(Key.create(Profile.class, USER_ID)).now();
+        profile.addToConferenceKeysToAttend(websafeKey);
+        ofy().save().entity(profile).now();
+
+        Boolean result = conferenceApi.unregisterFromConference(user, websafeKey).getResult();
+        profile = ofy().load().key(Key.create(Profile.class, USER_ID)).now();
+        assertTrue("unregisterFromConference should succeed.", result);
+        assertEquals(CAP, conferenceApi.getConference(websafeKey).getSeatsAvailable());
+        assertFalse("Profile shouldn't have the conference key anymore.",
+                profile.getConferenceKeysToAttend().contains(websafeKey));
+        assertFalse("The legacy registration should be cancelled in the ledger.",
+                ofy().load().key(Registration.createKey(websafeKey, USER_ID)).now().isActive());
+    }
+    
     @Test
     public void testCreateSession() throws Exception {
         DateFormat dateFormat = new SimpleDateFormat("MM/dd/yyyy");
@@ -340,6 +522,454 @@ public class ConferenceApiTest {
         
     }
     
+    @Test
+    public void testSessionSnapshot() throws Exception {
+        Conference conference = conferenceApi.createConference(user, new ConferenceForm(
+                NAME, DESCRIPTION, new ArrayList<String>(), CITY, null, null, CAP));
+        String conferenceWebsafeKey = conference.getWebsafeKey();
+        Session session1 = conferenceApi.createSession(user,
+                new SessionForm("Speaker B", null, null, null, null), conferenceWebsafeKey);
+
+        SessionSnapshot snapshot =
+                conferenceApi.getConferenceSessionsSnapshot(conferenceWebsafeKey, null);
+        assertFalse(snapshot.isNotModified());
+        assertEquals(Arrays.asList(session1), snapshot.getSessions());
+        String etag = snapshot.getEtag();
+
+        // The client holding the current ETag gets no sessions.
+        snapshot = conferenceApi.getConferenceSessionsSnapshot(conferenceWebsafeKey, etag);
+        assertTrue(snapshot.isNotModified());
+        assertTrue(snapshot.getSessions().isEmpty());
+
+        // A new session changes the ETag, and shows up at once.
+        Session session2 = conferenceApi.createSession(user,
+                new SessionForm("Speaker A", null, null, null, null), conferenceWebsafeKey);
+        snapshot = conferenceApi.getConferenceSessionsSnapshot(conferenceWebsafeKey, etag);
+        assertFalse(snapshot.isNotModified());
+        assertFalse(etag.equals(snapshot.getEtag()));
+        assertEquals(Arrays.asList(session2, session1),
+                conferenceApi.getConferenceSessions(conferenceWebsafeKey));
+
+        // A lost snapshot is read again from the datastore.
+        MemcacheServiceFactory.getMemcacheService().clearAll();
+        assertEquals(Arrays.asList(session2, session1),
+                conferenceApi.getConferenceSessions(conferenceWebsafeKey));
+    }
+
+    @Test
+    public void testSearchSessions() throws Exception {
+        Conference conference = conferenceApi.createConference(user, new ConferenceForm(
+                NAME, DESCRIPTION, new ArrayList<String>(), CITY, null, null, CAP));
+        String conferenceWebsafeKey = conference.getWebsafeKey();
+        DateFormat dateFormat = new SimpleDateFormat("MM/dd/yyyy HH:mm");
+        Session morningTalk = conferenceApi.createSession(user, new SessionForm("A",
+                dateFormat.parse("03/25/2014 09:00"), "45m", SessionType.LECTURE, null),
+                conferenceWebsafeKey);
+        Session morningWorkshop = conferenceApi.createSession(user, new SessionForm("B",
+                dateFormat.parse("03/25/2014 10:00"), "3h", SessionType.WORKSHOP, null),
+                conferenceWebsafeKey);
+        Session eveningTalk = conferenceApi.createSession(user, new SessionForm("C",
+                dateFormat.parse("03/25/2014 19:00"), "1h", SessionType.LECTURE, null),
+                conferenceWebsafeKey);
+
+        assertEquals(Arrays.asList(morningTalk, eveningTalk),
+                conferenceApi.searchSessions(conferenceWebsafeKey,
+                        new SessionQueryForm().type(SessionType.LECTURE)));
+        assertEquals(Arrays.asList(morningTalk, morningWorkshop),
+                conferenceApi.searchSessions(conferenceWebsafeKey, new SessionQueryForm()
+                        .startTime(null, dateFormat.parse("03/25/2014 12:00"))));
+        assertEquals(Arrays.asList(eveningTalk, morningWorkshop),
+                conferenceApi.searchSessions(conferenceWebsafeKey,
+                        new SessionQueryForm().durationMinutes(60, null)));
+        // The duration bounds are checked in memory here.
+        assertEquals(Arrays.asList(morningWorkshop),
+                conferenceApi.searchSessions(conferenceWebsafeKey, new SessionQueryForm()
+                        .startTime(null, dateFormat.parse("03/25/2014 12:00"))
+                        .durationMinutes(60, null)));
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void testCreateSessionWithInvalidDuration() throws Exception {
+        Conference conference = conferenceApi.createConference(user, new ConferenceForm(
+                NAME, DESCRIPTION, new ArrayList<String>(), CITY, null, null, CAP));
+        conferenceApi.createSession(user, new SessionForm("A", null, "all day", null, null),
+                conference.getWebsafeKey());
+    }
+
+    @Test
+    public void testSpeakerStats() throws Exception {
+        Conference conference1 = conferenceApi.createConference(user, new ConferenceForm(
+                NAME, DESCRIPTION, new ArrayList<String>(), CITY, null, null, CAP));
+        Conference conference2 = conferenceApi.createConference(user, new ConferenceForm(
+                NAME, DESCRIPTION, new ArrayList<String>(), CITY, null, null, CAP));
+        conferenceApi.createSession(user, new SessionForm("A", null, null,
+                SessionType.KEYNOTE, null), conference1.getWebsafeKey());
+        conferenceApi.createSession(user, new SessionForm("A", null, null,
+                SessionType.LECTURE, null), conference1.getWebsafeKey());
+        conferenceApi.createSession(user, new SessionForm("A", null, null,
+                SessionType.LECTURE, null), conference2.getWebsafeKey());
+
+        Speaker stats = conferenceApi.getSpeakerStats("A", null);
+        assertEquals(3, stats.getSessionCount());
+        assertEquals(Integer.valueOf(1), stats.getSessionTypeCounts().get("KEYNOTE"));
+        assertEquals(Integer.valueOf(2), stats.getSessionTypeCounts().get("LECTURE"));
+
+        stats = conferenceApi.getSpeakerStats("A", conference1.getWebsafeKey());
+        assertEquals(2, stats.getSessionCount());
+        assertEquals(Integer.valueOf(1), stats.getSessionTypeCounts().get("LECTURE"));
+        assertEquals(1, conferenceApi.getSpeakerStats("A", conference2.getWebsafeKey())
+                .getSessionCount());
+    }
+
+    @Test
+    public void testFeaturedSpeakers() throws Exception {
+        Conference conference = conferenceApi.createConference(user, new ConferenceForm(
+                NAME, DESCRIPTION, new ArrayList<String>(), CITY, null, null, CAP));
+        String conferenceWebsafeKey = conference.getWebsafeKey();
+        for (String speaker : Arrays.asList("A", "B", "B", "C", "C", "C")) {
+            conferenceApi.createSession(user, new SessionForm(speaker, null, null, null, null),
+                    conferenceWebsafeKey);
+        }
+
+        // The burst of sessions schedules a single recompute.
+        int tasks = 0;
+        for (TaskStateInfo task : LocalTaskQueueTestConfig.getLocalTaskQueue()
+                .getQueueStateInfo().get(QueueFactory.getDefaultQueue().getQueueName())
+                .getTaskInfo()) {
+            if (task.getUrl().equals("/tasks/set_featured_speaker")) {
+                tasks++;
+            }
+        }
+        assertTrue("Sessions should share the recompute task.", tasks <= 2);
+
+        List<Speaker> featured = conferenceApi.getFeaturedSpeakers(conferenceWebsafeKey);
+        assertEquals(2, featured.size());
+        assertEquals("C", featured.get(0).getName());
+        assertEquals("B", featured.get(1).getName());
+        assertEquals("C", conferenceApi.getSpeaker(conferenceWebsafeKey).getName());
+
+        conferenceApi.createSession(user, new SessionForm("B", null, null, null, null),
+                conferenceWebsafeKey);
+        conferenceApi.createSession(user, new SessionForm("B", null, null, null, null),
+                conferenceWebsafeKey);
+        FeaturedSpeakerService.recompute(conferenceWebsafeKey);
+        assertEquals("B", conferenceApi.getSpeaker(conferenceWebsafeKey).getName());
+        assertEquals("B", conferenceApi.getSpeaker(null).getName());
+    }
+
+    @Test
+    public void testAnnouncementCache() throws Exception {
+        assertNull(conferenceApi.getAnnouncement());
+        MemcacheService memcacheService = MemcacheServiceFactory.getMemcacheService();
+        memcacheService.put(Constants.MEMCACHE_ANNOUNCEMENTS_KEY, "Sold out: A");
+        // The missing announcement is still cached on this instance.
+        assertNull(conferenceApi.getAnnouncement());
+        HomePageCache.invalidate(Constants.MEMCACHE_ANNOUNCEMENTS_KEY);
+        assertEquals("Sold out: A", conferenceApi.getAnnouncement().toString());
+        memcacheService.delete(Constants.MEMCACHE_ANNOUNCEMENTS_KEY);
+        assertEquals("Sold out: A", conferenceApi.getAnnouncement().toString());
+    }
+
+    @Test
+    public void testNearlySoldOutAnnouncement() throws Exception {
+        Conference conference = conferenceApi.createConference(user, new ConferenceForm(
+                NAME, DESCRIPTION, new ArrayList<String>(), CITY, null, null, 6));
+        String conferenceWebsafeKey = conference.getWebsafeKey();
+        List<User> attendees = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            attendees.add(new User("attendee" + i + "@gmail.com", "gmail.com", "attendee" + i));
+        }
+
+        // Seat changes are published by the registration which crosses the range.
+        Key<Registration> enteredKey = Registration.createKey(conferenceWebsafeKey, "attendee1");
+        Key<Registration> soldOutKey = Registration.createKey(conferenceWebsafeKey, "attendee5");
+        conferenceApi.registerForConference(attendees.get(0), conferenceWebsafeKey);
+        conferenceApi.registerForConference(attendees.get(1), conferenceWebsafeKey);
+        assertEquals(0, OutboxService.dispatch(Registration.createKey(conferenceWebsafeKey,
+                "attendee0")));
+        assertEquals(1, OutboxService.dispatch(enteredKey));
+        assertEquals("The following conferences are nearly sold out: " + NAME + " ",
+                conferenceApi.getAnnouncement().toString());
+
+        // Moves within the range publish nothing, sold out conferences leave the announcement.
+        for (int i = 2; i < 6; i++) {
+            conferenceApi.registerForConference(attendees.get(i), conferenceWebsafeKey);
+        }
+        assertEquals(0, OutboxService.dispatch(Registration.createKey(conferenceWebsafeKey,
+                "attendee4")));
+        assertEquals(1, OutboxService.dispatch(soldOutKey));
+        assertNull(conferenceApi.getAnnouncement());
+
+        conferenceApi.unregisterFromConference(attendees.get(5), conferenceWebsafeKey);
+        assertEquals(1, OutboxService.dispatch(soldOutKey));
+        assertEquals(1, NearlySoldOutService.getSet().get(conferenceWebsafeKey)
+                .getSeatsAvailable());
+        assertNotNull(conferenceApi.getAnnouncement());
+        // Nothing was written next to the conference but its creation.
+        assertEquals(1, OutboxService.dispatch(Key.<Conference>create(conferenceWebsafeKey)));
+
+        // The repair puts back a lost announcement.
+        MemcacheServiceFactory.getMemcacheService().delete(
+                Constants.MEMCACHE_ANNOUNCEMENTS_KEY);
+        NearlySoldOutService.repair();
+        assertNotNull(conferenceApi.getAnnouncement());
+    }
+
+    @Test
+    public void testNearlySoldOutRepair() throws Exception {
+        Conference conference = conferenceApi.createConference(user, new ConferenceForm(
+                NAME, DESCRIPTION, new ArrayList<String>(), CITY, null, null, 300));
+        String conferenceWebsafeKey = conference.getWebsafeKey();
+        assertEquals(3, conference.getSeatShards());
+        // Concurrent bookings left 3 seats, but each estimated more, so none published.
+        List<SeatShard> shards = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            SeatShard shard = ofy().load()
+                    .key(SeatShard.createKey(conferenceWebsafeKey, i)).now();
+            shard.bookSeats(i == 0 ? 97 : 100);
+            shards.add(shard);
+        }
+        ofy().save().entities(shards).now();
+        for (SeatShard shard : shards) {
+            // Applies the write, so the global query of the repair sees it.
+            DatastoreServiceFactory.getDatastoreService().get(Key.create(shard).getRaw());
+        }
+        assertTrue(NearlySoldOutService.getSet().isEmpty());
+
+        NearlySoldOutService.repair();
+        assertEquals(3, NearlySoldOutService.getSet().get(conferenceWebsafeKey)
+                .getSeatsAvailable());
+        assertNotNull(conferenceApi.getAnnouncement());
+    }
+
+    @Test
+    public void testOutbox() throws Exception {
+        Conference conference = conferenceApi.createConference(user, new ConferenceForm(
+                NAME, DESCRIPTION, new ArrayList<String>(), CITY, null, null, CAP));
+        Key<Conference> conferenceKey = Key.create(conference.getWebsafeKey());
+        for (int i = 0; i < 3; i++) {
+            conferenceApi.createSession(user, new SessionForm("A" + i, null, null, null, null),
+                    conference.getWebsafeKey());
+        }
+
+        final List<String> handled = new ArrayList<>();
+        OutboxHandler handler = new OutboxHandler() {
+            public void handle(OutboxEvent event) {
+                if (handled.size() == 1) {
+                    handled.add("failed");
+                    throw new IllegalStateException("Mailbox unavailable.");
+                }
+                handled.add(String.valueOf(event.getSequence()));
+            }
+        };
+        OutboxService.register(OutboxEvent.Type.SESSION_CREATED, handler);
+        try {
+            // The events of the sessions wait behind the one which fails.
+            Key<Conference> sessionsKey = Key.create(Conference.class, conference.getId());
+            try {
+                OutboxService.dispatch(sessionsKey);
+                fail("The failure of the handler should propagate.");
+            } catch (IllegalStateException e) {
+                // Expected.
+            }
+            assertEquals(2, OutboxService.dispatch(sessionsKey));
+            assertEquals(0, OutboxService.dispatch(sessionsKey));
+            assertEquals(Arrays.asList("1", "failed", "2", "3"), handled);
+        } finally {
+            OutboxService.unregister(OutboxEvent.Type.SESSION_CREATED, handler);
+        }
+
+        // Each owner has its own events, and the wishlist publishes none.
+        conferenceApi.addSessionToWishList(user, conferenceApi.getConferenceSessions(
+                conference.getWebsafeKey()).get(0).getWebsafeKey());
+        assertEquals(0, OutboxService.dispatch(Key.create(Profile.class, USER_ID)));
+        assertEquals(1, OutboxService.dispatch(conferenceKey));
+        long[] stats = OutboxService.getStats();
+        assertEquals(4, stats[0]);
+        assertEquals(1, stats[1]);
+        assertTrue(stats[3] >= 0 && stats[2] >= stats[3]);
+    }
+
+    @Test
+    public void testOutboxDeadLetter() throws Exception {
+        Conference conference = conferenceApi.createConference(user, new ConferenceForm(
+                NAME, DESCRIPTION, new ArrayList<String>(), CITY, null, null, CAP));
+        for (int i = 0; i < 2; i++) {
+            conferenceApi.createSession(user, new SessionForm("A" + i, null, null, null, null),
+                    conference.getWebsafeKey());
+        }
+
+        final List<Long> handled = new ArrayList<>();
+        OutboxHandler handler = new OutboxHandler() {
+            public void handle(OutboxEvent event) {
+                if (event.getSequence() == 1) {
+                    throw new IllegalStateException("Never deliverable.");
+                }
+                handled.add(event.getSequence());
+            }
+        };
+        OutboxService.register(OutboxEvent.Type.SESSION_CREATED, handler);
+        try {
+            Key<Conference> sessionsKey = Key.create(Conference.class, conference.getId());
+            for (int i = 1; i < OutboxService.MAX_ATTEMPTS; i++) {
+                try {
+                    OutboxService.dispatch(sessionsKey);
+                    fail("The failure of the handler should propagate.");
+                } catch (IllegalStateException e) {
+                    // Expected.
+                }
+            }
+            assertTrue(handled.isEmpty());
+            // The last attempt parks the event and lets the next one through.
+            assertEquals(1, OutboxService.dispatch(sessionsKey));
+            assertEquals(Arrays.asList(2L), handled);
+            assertEquals(0, OutboxService.dispatch(sessionsKey));
+            assertNull(ofy().load().key(Key.create(sessionsKey, OutboxEvent.class, 1)).now());
+        } finally {
+            OutboxService.unregister(OutboxEvent.Type.SESSION_CREATED, handler);
+        }
+        long[] stats = OutboxService.getStats();
+        assertEquals(OutboxService.MAX_ATTEMPTS, stats[1]);
+        assertEquals(1, stats[5]);
+    }
+
+    private static int countTasks(final String url) {
+        int tasks = 0;
+        for (TaskStateInfo task : LocalTaskQueueTestConfig.getLocalTaskQueue()
+                .getQueueStateInfo().get(QueueFactory.getDefaultQueue().getQueueName())
+                .getTaskInfo()) {
+            if (task.getUrl().equals(url)) {
+                tasks++;
+            }
+        }
+        return tasks;
+    }
+
+    @Test
+    public void testImportSessions() throws Exception {
+        Conference conference = conferenceApi.createConference(user, new ConferenceForm(
+                NAME, DESCRIPTION, new ArrayList<String>(), CITY, null, null, CAP));
+        String conferenceWebsafeKey = conference.getWebsafeKey();
+        conferenceApi.createSession(user, new SessionForm("A", null, null, null, null),
+                conferenceWebsafeKey);
+
+        // More rows than a single write can hold, by speakers with and without stats.
+        List<SessionForm> forms = new ArrayList<>();
+        for (int i = 0; i < 600; i++) {
+            forms.add(new SessionForm(i % 2 == 0 ? "A" : "B", null, "1h",
+                    SessionType.LECTURE, null));
+        }
+        forms.add(new SessionForm(null, null, null, null, null));
+        String csv = "speaker,startTime,duration,type,location\n"
+                + "\"Doe, Jane\",2014-03-25 09:30,45m,keynote,Room 1\n"
+                + "C,2014-03-25,all day,,\n"
+                + "C,,,party,\n";
+        SessionImport result = conferenceApi.importSessions(user, conferenceWebsafeKey,
+                new SessionImportForm().importId("import-1").sessions(forms).csv(csv));
+
+        assertTrue(result.isDone());
+        assertEquals(604, result.getTotalRows());
+        assertEquals(601, result.getImportedCount());
+        assertEquals(3, result.getFailedCount());
+        assertEquals(601, result.getErrors().get(0).getRow());
+        assertEquals(603, result.getErrors().get(1).getRow());
+        assertEquals(604, result.getErrors().get(2).getRow());
+        assertEquals(602, conferenceApi.getConferenceSessions(conferenceWebsafeKey).size());
+        assertEquals(601, conferenceApi.getSessionImport("import-1").getImportedCount());
+
+        Session keynote = conferenceApi.searchSessions(conferenceWebsafeKey,
+                new SessionQueryForm().type(SessionType.KEYNOTE)).get(0);
+        assertEquals("Doe, Jane", keynote.getSpeaker());
+        assertEquals("45m", keynote.getDuration());
+        assertEquals("Room 1", keynote.getLocation());
+
+        // The stats in all conferences follow from the events of the batches.
+        assertEquals(1, conferenceApi.getSpeakerStats("A", null).getSessionCount());
+        Key<Conference> sessionsKey = Key.create(Conference.class, conference.getId());
+        OutboxEvent imported = null;
+        for (OutboxEvent event : ofy().load().type(OutboxEvent.class).ancestor(sessionsKey)) {
+            if (event.getType() == OutboxEvent.Type.SESSIONS_IMPORTED) {
+                imported = event;
+                break;
+            }
+        }
+        assertTrue(OutboxService.dispatch(sessionsKey) > 1);
+        assertTrue(result.getFailures().isEmpty());
+        // An event delivered again isn't counted twice.
+        SpeakerStatsService.addGlobalSessions(imported);
+        assertEquals(301, conferenceApi.getSpeakerStats("A", null).getSessionCount());
+        assertEquals(301, conferenceApi.getSpeakerStats("A", conferenceWebsafeKey)
+                .getSessionCount());
+        assertEquals(300, conferenceApi.getSpeakerStats("B", null).getSessionCount());
+        assertEquals(Integer.valueOf(300), conferenceApi.getSpeakerStats("B",
+                conferenceWebsafeKey).getSessionTypeCounts().get("LECTURE"));
+    }
+
+    @Test(expected = UnauthorizedException.class)
+    public void testImportSessionsWithoutUser() throws Exception {
+        Conference conference = conferenceApi.createConference(user, new ConferenceForm(
+                NAME, DESCRIPTION, new ArrayList<String>(), CITY, null, null, CAP));
+        conferenceApi.importSessions(null, conference.getWebsafeKey(),
+                new SessionImportForm().csv("A"));
+    }
+
+    @Test
+    public void testRoomDoubleBooking() throws Exception {
+        Conference conference = conferenceApi.createConference(user, new ConferenceForm(
+                NAME, DESCRIPTION, new ArrayList<String>(), CITY, null, null, CAP));
+        String conferenceWebsafeKey = conference.getWebsafeKey();
+        DateFormat dateFormat = new SimpleDateFormat("MM/dd/yyyy HH:mm");
+        Date nine = dateFormat.parse("03/25/2014 09:00");
+        Date ten = dateFormat.parse("03/25/2014 10:00");
+        Session talk = conferenceApi.createSession(user,
+                new SessionForm("A", nine, "1h", null, "Room 1"), conferenceWebsafeKey);
+        // Another room, a session starting as the talk ends, and one without a duration.
+        conferenceApi.createSession(user,
+                new SessionForm("B", nine, "1h", null, "Room 2"), conferenceWebsafeKey);
+        conferenceApi.createSession(user,
+                new SessionForm("C", ten, "1h", null, "Room 1"), conferenceWebsafeKey);
+        conferenceApi.createSession(user,
+                new SessionForm("D", nine, null, null, "Room 1"), conferenceWebsafeKey);
+
+        try {
+            conferenceApi.createSession(user, new SessionForm("E",
+                    dateFormat.parse("03/25/2014 09:30"), "15m", null, " room  1"),
+                    conferenceWebsafeKey);
+            fail("Room 1 should be booked.");
+        } catch (ConflictException e) {
+            assertTrue(e.getMessage().endsWith(talk.getWebsafeKey()));
+        }
+        assertEquals(4, conferenceApi.getConferenceSessions(conferenceWebsafeKey).size());
+        assertNull(ofy().load().key(Speaker.createKey("E")).now());
+
+        // Imported rows are checked against the bookings and against each other.
+        String csv = "F,2014-03-25 12:00,1h,,Room 2\n"
+                + "G,2014-03-25 12:30,1h,,Room 2\n";
+        SessionImport result = conferenceApi.importSessions(user, conferenceWebsafeKey,
+                new SessionImportForm().csv(csv));
+        assertEquals(1, result.getImportedCount());
+        assertEquals(2, result.getErrors().get(0).getRow());
+    }
+
+    @Test(expected = NotFoundException.class)
+    public void testStatsOfUnknownSpeaker() throws Exception {
+        conferenceApi.getSpeakerStats("Nobody", null);
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void testCreateSessionWithoutSpeaker() throws Exception {
+        Conference conference = conferenceApi.createConference(user, new ConferenceForm(
+                NAME, DESCRIPTION, new ArrayList<String>(), CITY, null, null, CAP));
+        conferenceApi.createSession(user, new SessionForm(" ", null, null, null, null),
+                conference.getWebsafeKey());
+    }
+
+    @Test(expected = NotFoundException.class)
+    public void testGetSessionsOfMissingConference() throws Exception {
+        conferenceApi.getConferenceSessions(
+                Key.create(Key.create(Profile.class, USER_ID), Conference.class, 1L).getString());
+    }
+    
     @Test
     public void testSessionWishlist() throws Exception {
         DateFormat dateFormat = new SimpleDateFormat("MM/dd/yyyy");
@@ -370,5 +1000,42 @@ public class ConferenceApiTest {
         assertFalse("Profile should not have the session websafe key in wishlist.",
                 profile.getSessionKeysWishlist().contains(sessionWebsafeKey));
     }
+    
+    @Test
+    public void testWishlistConflicts() throws Exception {
+        Conference conference = conferenceApi.createConference(user, new ConferenceForm(
+                NAME, DESCRIPTION, new ArrayList<String>(), CITY, null, null, CAP));
+        String conferenceWebsafeKey = conference.getWebsafeKey();
+        DateFormat dateFormat = new SimpleDateFormat("MM/dd/yyyy HH:mm");
+        Session morning = conferenceApi.createSession(user, new SessionForm("A",
+                dateFormat.parse("03/25/2014 09:00"), "2h", null, null), conferenceWebsafeKey);
+        Session noon = conferenceApi.createSession(user, new SessionForm("B",
+                dateFormat.parse("03/25/2014 10:30"), "1h", null, null), conferenceWebsafeKey);
+        Session evening = conferenceApi.createSession(user, new SessionForm("C",
+                dateFormat.parse("03/25/2014 19:00"), null, null, null), conferenceWebsafeKey);
+
+        assertEquals("Successfully added to wishlist.", conferenceApi.addSessionToWishList(
+                user, morning.getWebsafeKey()).getReason());
+        assertEquals("Successfully added to wishlist.", conferenceApi.addSessionToWishList(
+                user, evening.getWebsafeKey()).getReason());
+        WrappedBoolean result = conferenceApi.addSessionToWishList(user, noon.getWebsafeKey());
+        assertTrue(result.getResult());
+        assertTrue(result.getReason().endsWith("Overlaps with: " + morning.getWebsafeKey()));
+
+        List<IntervalIndex.Overlap> conflicts = conferenceApi.getWishlistConflicts(user);
+        assertEquals(1, conflicts.size());
+        assertEquals(morning.getWebsafeKey(), conflicts.get(0).getFirstKey());
+        assertEquals(noon.getWebsafeKey(), conflicts.get(0).getSecondKey());
+        assertEquals(dateFormat.parse("03/25/2014 10:30"), conflicts.get(0).getStart());
+        assertEquals(dateFormat.parse("03/25/2014 11:00"), conflicts.get(0).getEnd());
+
+        conferenceApi.deleteSessionInWishlist(user, morning.getWebsafeKey());
+        assertTrue(conferenceApi.getWishlistConflicts(user).isEmpty());
+    }
+
+    @Test(expected = NotFoundException.class)
+    public void testWishlistConflictsWithoutProfile() throws Exception {
+        conferenceApi.getWishlistConflicts(user);
+    }
         
 }